@@ -0,0 +1,198 @@
+/*
+ * ChangeTracker.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.document;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tracks whether a text still matches its original content without ever materializing it.
+ * <p/>
+ * The tracker is fed the editor changes as reported by
+ * {@link android.text.TextWatcher#onTextChanged(CharSequence, int, int, int)} and keeps a summary
+ * of them: the regions of the current text that differ from the original, each one along with the
+ * range of the original text it replaced. Between two regions, the text is the original text
+ * shifted by the length difference of the regions before. A change merges with the regions it
+ * touches only, and the merged region is compared with the original range it replaced when both
+ * have the same length, a region back to its original content is dropped. Telling whether the
+ * text is modified costs O(1), recording a change costs O(regions) plus the length of the merged
+ * region when it is compared.
+ * <p/>
+ * Moving text around may leave regions of different lengths whose chars still happen to spell
+ * the original text, the text is then reported as modified.
+ */
+public class ChangeTracker {
+
+  private final CharSequence original;
+  /**
+   * The changed regions, in text order. None of them matches its original range.
+   */
+  private final List<Region> regions = new ArrayList<>();
+  private int length;
+
+  /**
+   * Creates a tracker for an unchanged text.
+   *
+   * @param original
+   *   The original text. It must not change afterward.
+   */
+  public ChangeTracker(@NonNull CharSequence original) {
+    this.original = original;
+    this.length = original.length();
+  }
+
+  /**
+   * Records a change: {@code before} chars starting at {@code start} were replaced by
+   * {@code count} chars.
+   *
+   * @param text
+   *   The text once changed
+   * @param start
+   *   The index of the first replaced char
+   * @param before
+   *   The number of chars replaced
+   * @param count
+   *   The number of chars inserted in their place
+   */
+  public void onTextChanged(@NonNull CharSequence text, int start, int before, int count) {
+    int end = start + before;
+    int delta = count - before;
+    // The regions that overlap or touch the replaced range merge with it.
+    int first = 0;
+    while ((first < this.regions.size()) && (this.regions.get(first).getEnd() < start)) {
+      first++;
+    }
+    int last = first;
+    while ((last < this.regions.size()) && (this.regions.get(last).start <= end)) {
+      last++;
+    }
+    Region merged;
+    if (first == last) {
+      // Before the replaced range, the text is the original one shifted by the previous region.
+      int originalStart = (first > 0) ? this.regions.get(first - 1).toOriginal(start) : start;
+      merged = new Region(start, count, originalStart, before);
+    } else {
+      Region head = this.regions.get(first);
+      Region tail = this.regions.get(last - 1);
+      int mergedStart = Math.min(start, head.start);
+      int mergedEnd = Math.max(end, tail.getEnd());
+      int originalStart = head.originalStart - (head.start - mergedStart);
+      int originalEnd = tail.getOriginalEnd() + (mergedEnd - tail.getEnd());
+      merged = new Region(mergedStart, (mergedEnd - mergedStart) + delta, originalStart,
+                          originalEnd - originalStart);
+      this.regions.subList(first, last).clear();
+    }
+    for (int i = first; i < this.regions.size(); i++) {
+      this.regions.get(i).start += delta;
+    }
+    if (!merged.matches(text, this.original)) {
+      this.regions.add(first, merged);
+    }
+    this.length += delta;
+  }
+
+  /**
+   * @return the index of the first char that may differ from the original text, or -1 if there
+   * was no change at all
+   */
+  public int getFirstChange() {
+    return this.regions.isEmpty() ? -1 : this.regions.get(0).start;
+  }
+
+  /**
+   * @return the index after the last char that may differ from the original text, or -1 if there
+   * was no change at all
+   */
+  public int getLastChange() {
+    return this.regions.isEmpty() ? -1 : this.regions.get(this.regions.size() - 1).getEnd();
+  }
+
+  /**
+   * @return the current length of the text
+   */
+  public int length() {
+    return this.length;
+  }
+
+  /**
+   * @return true if the text differs from the original
+   */
+  public boolean isModified() {
+    return !this.regions.isEmpty();
+  }
+
+  /**
+   * A region of the current text that replaced a range of the original text.
+   */
+  private static final class Region {
+
+    private int start;
+    private final int length;
+    private final int originalStart;
+    private final int originalLength;
+
+    Region(int start, int length, int originalStart, int originalLength) {
+      this.start = start;
+      this.length = length;
+      this.originalStart = originalStart;
+      this.originalLength = originalLength;
+    }
+
+    int getEnd() {
+      return this.start + this.length;
+    }
+
+    int getOriginalEnd() {
+      return this.originalStart + this.originalLength;
+    }
+
+    /**
+     * Maps an index of the text after the region to the original text.
+     */
+    int toOriginal(int index) {
+      return this.getOriginalEnd() + (index - this.getEnd());
+    }
+
+    /**
+     * @return true if the region holds the original range it replaced
+     */
+    boolean matches(@NonNull CharSequence text, @NonNull CharSequence original) {
+      if (this.length != this.originalLength) {
+        return false;
+      }
+      for (int i = 0; i < this.length; i++) {
+        if (text.charAt(this.start + i) != original.charAt(this.originalStart + i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,241 @@
+/*
+ * CharsetDetector.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.document;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.bleushan.laboratoire1.utils.MemoryUnit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+
+/**
+ * Detects the charset of a text file from a sample of its first bytes.
+ * <p/>
+ * The detection picks, in that order:
+ * <ol>
+ * <li>UTF-8, UTF-16BE or UTF-16LE if the file starts with the matching byte order mark;</li>
+ * <li>UTF-8 if the sample is valid UTF-8;</li>
+ * <li>Windows-1252 if the sample uses the C1 range bytes it defines as printable chars;</li>
+ * <li>ISO-8859-1 otherwise, since any byte sequence is valid ISO-8859-1.</li>
+ * </ol>
+ * Only the sample is inspected, so the file is decoded a single time, with the detected charset.
+ * Should a later byte turn out not to be valid in that charset, the file can be decoded again with
+ * the {@link #getFallback(Charset) fallback} of the charset.
+ * The UTF-16 charsets are reported with an explicit byte order and the byte order mark is skipped,
+ * which keeps the file decodable from any char boundary.
+ */
+public final class CharsetDetector {
+
+  /**
+   * The size, in bytes, of the sample the detection is based on.
+   */
+  public static final int SAMPLE_SIZE = (int) MemoryUnit.KILOBYTE.toByte(8);
+  public static final Charset UTF_8 = Charset.forName("UTF-8");
+  public static final Charset UTF_16BE = Charset.forName("UTF-16BE");
+  public static final Charset UTF_16LE = Charset.forName("UTF-16LE");
+  public static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+  /**
+   * Windows-1252, or ISO-8859-1 on the odd platform that doesn't support it.
+   */
+  public static final Charset WINDOWS_1252 =
+    Charset.isSupported("windows-1252") ? Charset.forName("windows-1252") : ISO_8859_1;
+
+  private CharsetDetector() {
+  }
+
+  /**
+   * Detects the charset of a file.
+   *
+   * @param channel
+   *   A channel to the file, its position is left untouched
+   *
+   * @return the detection result
+   */
+  @NonNull
+  public static Result detect(@NonNull FileChannel channel) throws IOException {
+    long size = channel.size();
+    int length = (int) Math.min(size, SAMPLE_SIZE);
+    if (length == 0) {
+      return new Result(UTF_8, 0);
+    }
+    return detect(channel.map(MapMode.READ_ONLY, 0, length), length < size);
+  }
+
+  /**
+   * Detects the charset of a sample of bytes.
+   *
+   * @param sample
+   *   The first bytes of a file, from its position to its limit
+   * @param truncated
+   *   Whether the file goes on after the sample, a multi-byte char may then be cut at its end
+   *
+   * @return the detection result
+   */
+  @NonNull
+  public static Result detect(@NonNull ByteBuffer sample, boolean truncated) {
+    int start = sample.position();
+    int length = sample.remaining();
+    if ((length >= 3) && ((sample.get(start) & 0xFF) == 0xEF) &&
+        ((sample.get(start + 1) & 0xFF) == 0xBB) && ((sample.get(start + 2) & 0xFF) == 0xBF)) {
+      return new Result(UTF_8, 3);
+    }
+    if (length >= 2) {
+      int first = sample.get(start) & 0xFF;
+      int second = sample.get(start + 1) & 0xFF;
+      if ((first == 0xFE) && (second == 0xFF)) {
+        return new Result(UTF_16BE, 2);
+      }
+      if ((first == 0xFF) && (second == 0xFE)) {
+        return new Result(UTF_16LE, 2);
+      }
+    }
+    if (isUtf8(sample, truncated)) {
+      return new Result(UTF_8, 0);
+    }
+    for (int i = start; i < (start + length); i++) {
+      int b = sample.get(i) & 0xFF;
+      // Windows-1252 leaves these C1 bytes undefined, it would fail to decode them.
+      if ((b == 0x81) || (b == 0x8D) || (b == 0x8F) || (b == 0x90) || (b == 0x9D)) {
+        return new Result(ISO_8859_1, 0);
+      }
+    }
+    for (int i = start; i < (start + length); i++) {
+      int b = sample.get(i) & 0xFF;
+      if ((b >= 0x80) && (b <= 0x9F)) {
+        return new Result(WINDOWS_1252, 0);
+      }
+    }
+    return new Result(ISO_8859_1, 0);
+  }
+
+  /**
+   * Gets the charset to decode a file with when it isn't valid in its detected charset past the
+   * sample. Windows-1252 is tried after UTF-8, then ISO-8859-1 which decodes any byte.
+   *
+   * @param charset
+   *   The charset the file failed to decode with
+   *
+   * @return the charset to try next, or null if there's none left
+   */
+  @Nullable
+  public static Charset getFallback(@NonNull Charset charset) {
+    if (charset.equals(UTF_8)) {
+      return WINDOWS_1252;
+    }
+    if (charset.equals(WINDOWS_1252) && !charset.equals(ISO_8859_1)) {
+      return ISO_8859_1;
+    }
+    return null;
+  }
+
+  /**
+   * Validates a sample as UTF-8, rejecting overlong forms, surrogates and code points above
+   * U+10FFFF like the platform decoder does.
+   */
+  private static boolean isUtf8(@NonNull ByteBuffer sample, boolean truncated) {
+    int end = sample.limit();
+    int i = sample.position();
+    while (i < end) {
+      int b = sample.get(i) & 0xFF;
+      int count;
+      int min = 0x80;
+      int max = 0xBF;
+      if (b < 0x80) {
+        i++;
+        continue;
+      } else if ((b >= 0xC2) && (b <= 0xDF)) {
+        count = 1;
+      } else if ((b >= 0xE0) && (b <= 0xEF)) {
+        count = 2;
+        if (b == 0xE0) {
+          min = 0xA0;
+        } else if (b == 0xED) {
+          max = 0x9F;
+        }
+      } else if ((b >= 0xF0) && (b <= 0xF4)) {
+        count = 3;
+        if (b == 0xF0) {
+          min = 0x90;
+        } else if (b == 0xF4) {
+          max = 0x8F;
+        }
+      } else {
+        return false;
+      }
+      for (int j = 1; j <= count; j++) {
+        if ((i + j) >= end) {
+          // The sample ends in the middle of a char.
+          return truncated;
+        }
+        int continuation = sample.get(i + j) & 0xFF;
+        if ((continuation < min) || (continuation > max)) {
+          return false;
+        }
+        min = 0x80;
+        max = 0xBF;
+      }
+      i += count + 1;
+    }
+    return true;
+  }
+
+  /**
+   * The result of a detection.
+   */
+  public static final class Result {
+
+    private final Charset charset;
+    private final int byteOrderMarkLength;
+
+    Result(@NonNull Charset charset, int byteOrderMarkLength) {
+      this.charset = charset;
+      this.byteOrderMarkLength = byteOrderMarkLength;
+    }
+
+    /**
+     * @return the detected charset
+     */
+    @NonNull
+    public Charset getCharset() {
+      return this.charset;
+    }
+
+    /**
+     * @return the length, in bytes, of the byte order mark the file starts with. The text starts
+     * right after it.
+     */
+    public int getByteOrderMarkLength() {
+      return this.byteOrderMarkLength;
+    }
+  }
+}
@@ -0,0 +1,301 @@
+/*
+ * DocumentCache.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.document;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.DocumentsContract.Document;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.bleushan.laboratoire1.utils.MemoryUnit;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A process-wide cache of the recently opened documents.
+ * <p/>
+ * The cache remembers the last {@link #MAX_ENTRIES} documents opened, most recent first, along
+ * with the modification time and size they had when they were decoded. The decoded text and the
+ * block layout of the most recent ones are kept as well, within a {@link #MAX_SIZE} budget, so
+ * reopening a document that didn't change since needs neither mapping nor decoding the file. The
+ * least recently used texts are dropped first, while their documents stay in the recent list.
+ * <p/>
+ * This class is thread safe.
+ */
+public final class DocumentCache {
+
+  /**
+   * The maximum number of documents remembered.
+   */
+  public static final int MAX_ENTRIES = 64;
+  /**
+   * The maximum size, in bytes, of the cached texts.
+   */
+  public static final long MAX_SIZE = MemoryUnit.MEGABYTE.toByte(8);
+  private static final DocumentCache INSTANCE = new DocumentCache();
+  private final LinkedHashMap<Uri, Entry> entries = new LinkedHashMap<Uri, Entry>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Uri, Entry> eldest) {
+      if (this.size() > MAX_ENTRIES) {
+        DocumentCache.this.size -= eldest.getValue().getCost();
+        return true;
+      }
+      return false;
+    }
+  };
+  private long size = 0;
+
+  private DocumentCache() {
+  }
+
+  /**
+   * @return the shared document cache
+   */
+  public static DocumentCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Reads the modification time of a document. For a document provider URI, it's a metadata query
+   * that doesn't touch the document content.
+   *
+   * @param resolver
+   *   The resolver to query
+   * @param uri
+   *   The document URI
+   *
+   * @return the modification time of the document, in milliseconds since the epoch, or -1 if it
+   * isn't known
+   */
+  public static long getLastModified(@NonNull ContentResolver resolver, @NonNull Uri uri) {
+    if (ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+      long lastModified = new File(uri.getPath()).lastModified();
+      return (lastModified > 0) ? lastModified : -1;
+    }
+    try (Cursor cursor = resolver.query(uri, new String[]{Document.COLUMN_LAST_MODIFIED}, null,
+                                        null, null)) {
+      if ((cursor != null) && cursor.moveToFirst()) {
+        long lastModified = cursor.getLong(0);
+        return (lastModified > 0) ? lastModified : -1;
+      }
+    } catch (RuntimeException e) {
+      // Not every provider supports the column.
+      e.printStackTrace();
+    }
+    return -1;
+  }
+
+  /**
+   * Looks a document up.
+   *
+   * @param uri
+   *   The document URI
+   * @param lastModified
+   *   The current modification time of the document
+   * @param size
+   *   The current size, in bytes, of the document
+   *
+   * @return a snapshot of the cached document, or null if it isn't cached or changed since it was
+   */
+  @Nullable
+  public synchronized Entry get(@NonNull Uri uri, long lastModified, long size) {
+    Entry entry = this.entries.get(uri);
+    if ((entry == null) || (entry.text == null)) {
+      return null;
+    }
+    if ((entry.lastModified != lastModified) || (entry.layout.getByteLength() != size)) {
+      this.size -= entry.getCost();
+      entry.text = null;
+      return null;
+    }
+    // The cached text may be dropped as soon as the lock is released.
+    return new Entry(entry.lastModified, entry.layout, entry.text);
+  }
+
+  /**
+   * Records that a document was opened, and caches its text if it fits in the budget.
+   *
+   * @param uri
+   *   The document URI
+   * @param lastModified
+   *   The modification time of the document when it was read, or -1 if unknown, the text is then
+   *   not cached
+   * @param text
+   *   The document text as it was loaded
+   * @param content
+   *   The decoded content of the text, or null to only record the document as recent. It's the
+   *   document the decoded chunks were appended to, it must not change anymore.
+   */
+  public synchronized void put(@NonNull Uri uri,
+                               long lastModified,
+                               @NonNull MappedText text,
+                               @Nullable PieceTable content) {
+    Entry previous = this.entries.remove(uri);
+    if (previous != null) {
+      this.size -= previous.getCost();
+    }
+    // Keep the block layout only, the copy holds no decoded block.
+    Entry entry = new Entry(lastModified, new MappedText(text.getChannel(), text),
+                            (lastModified > 0) ? content : null);
+    if (entry.getCost() > MAX_SIZE) {
+      entry.text = null;
+    }
+    this.entries.put(uri, entry);
+    this.size += entry.getCost();
+    this.trim();
+  }
+
+  /**
+   * Drops the cached text of a document that was written, it stays among the recent documents.
+   * A write may leave the modification time and the size of the document as they were.
+   *
+   * @param uri
+   *   The document URI
+   */
+  public synchronized void invalidate(@NonNull Uri uri) {
+    // Looking the entry up would make it the most recently used.
+    for (Map.Entry<Uri, Entry> mapEntry : this.entries.entrySet()) {
+      if (mapEntry.getKey().equals(uri)) {
+        Entry entry = mapEntry.getValue();
+        this.size -= entry.getCost();
+        entry.text = null;
+        return;
+      }
+    }
+  }
+
+  /**
+   * Forgets a document.
+   */
+  public synchronized void remove(@NonNull Uri uri) {
+    Entry entry = this.entries.remove(uri);
+    if (entry != null) {
+      this.size -= entry.getCost();
+    }
+  }
+
+  /**
+   * @return the URIs of the recently opened documents, most recent first
+   */
+  @NonNull
+  public synchronized List<Uri> getRecentUris() {
+    List<Uri> uris = new ArrayList<>(this.entries.keySet());
+    // The map iterates from the least recently used.
+    for (int i = 0, j = uris.size() - 1; i < j; i++, j--) {
+      uris.set(i, uris.set(j, uris.get(i)));
+    }
+    return uris;
+  }
+
+  /**
+   * @return the size, in bytes, of the cached texts
+   */
+  public synchronized long getSize() {
+    return this.size;
+  }
+
+  /**
+   * Drops the least recently used texts until the cache fits in its budget.
+   */
+  private void trim() {
+    Iterator<Entry> it = this.entries.values().iterator();
+    while ((this.size > MAX_SIZE) && it.hasNext()) {
+      Entry entry = it.next();
+      if (entry.text != null) {
+        this.size -= entry.getCost();
+        entry.text = null;
+      }
+    }
+  }
+
+  /**
+   * A cached document.
+   */
+  public static final class Entry {
+
+    private final long lastModified;
+    private final MappedText layout;
+    private PieceTable text;
+
+    Entry(long lastModified, @NonNull MappedText layout, @Nullable PieceTable text) {
+      this.lastModified = lastModified;
+      this.layout = layout;
+      this.text = text;
+    }
+
+    /**
+     * @return the decoded content of the document, it must not be changed
+     */
+    @NonNull
+    public PieceTable getText() {
+      return this.text;
+    }
+
+    /**
+     * @return the charset the document was decoded with
+     */
+    @NonNull
+    public Charset getCharset() {
+      return this.layout.getCharset();
+    }
+
+    /**
+     * Creates a {@link MappedText} of the document, without decoding it again.
+     *
+     * @param channel
+     *   A channel to the document file, it must stay open for as long as the text is used
+     *
+     * @return the document text
+     */
+    @NonNull
+    public MappedText open(@NonNull FileChannel channel) {
+      return new MappedText(channel, this.layout);
+    }
+
+    /**
+     * @return the size, in bytes, the entry is accounted for. Only the cached text counts, along
+     * with the room its buffer has left.
+     */
+    long getCost() {
+      return (this.text != null)
+             ? ((2L * this.text.getAddedCapacity()) + this.layout.getLayoutSize())
+             : 0;
+    }
+  }
+}
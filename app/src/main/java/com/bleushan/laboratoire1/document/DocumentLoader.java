@@ -0,0 +1,537 @@
+/*
+ * DocumentLoader.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.document;
+
+import android.support.annotation.NonNull;
+
+import com.bleushan.laboratoire1.utils.MemoryUnit;
+import com.bleushan.laboratoire1.utils.Metric;
+import com.bleushan.laboratoire1.utils.ParallelExecutor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A streaming text document loader.
+ * <p/>
+ * Rather than mapping a whole file and decoding it into a single string, the loader maps the file
+ * one {@link #WINDOW_SIZE} window at a time and decodes each window on a background thread. The
+ * decoded text is handed over to a {@link Callback} in {@link #CHUNK_SIZE} chunks, on the executor
+ * given at construction, as soon as it is available. At most {@link #MAX_PENDING_CHUNKS} chunks
+ * can be waiting for the callback at any given time, so the heap used by the loader stays bounded
+ * no matter how big the file is.
+ * <p/>
+ * While decoding, the loader records where each window starts in a {@link MappedText}, which then
+ * gives access to the whole document without holding it on the heap. The loader does not own the
+ * channel it reads from. It's up to the caller to close it once the loading is over, or once the
+ * {@link MappedText} is no longer used.
+ * <p/>
+ * Unless a charset is given, the loader detects it with a {@link CharsetDetector} before decoding,
+ * so the file is usually decoded a single time. The detection only looks at the first bytes, if a
+ * later byte isn't valid in the detected charset the file is decoded again from its start with the
+ * {@link CharsetDetector#getFallback(Charset) fallback} charset, and the callback is told to drop
+ * the chunks it was handed over so far.
+ * <p/>
+ * The windows of a file decoded with one of the detected charsets start on a char boundary, so
+ * they are decoded in parallel, on the {@link ParallelExecutor}, and handed over in order. Other
+ * charsets are decoded one window after the other.
+ */
+public class DocumentLoader {
+
+  /**
+   * The size, in bytes, of a mapped window.
+   */
+  public static final long WINDOW_SIZE = MemoryUnit.KILOBYTE.toByte(256);
+  /**
+   * The size, in chars, of a chunk of text handed over to the callback.
+   */
+  public static final int CHUNK_SIZE = (int) MemoryUnit.KILOBYTE.toByte(32);
+  /**
+   * The maximum number of chunks that can wait for the callback at once.
+   */
+  public static final int MAX_PENDING_CHUNKS = 4;
+  private static final ExecutorService EXECUTOR =
+    Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(@NonNull Runnable r) {
+        Thread thread = new Thread(r, DocumentLoader.class.getSimpleName());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  private final FileChannel channel;
+  private final Executor callbackExecutor;
+  private final Semaphore pendingChunks = new Semaphore(MAX_PENDING_CHUNKS);
+  private Charset charset;
+  private volatile MappedText text;
+  private volatile boolean cancelled = false;
+
+  /**
+   * Creates a loader for a channel that detects the document charset.
+   *
+   * @param channel
+   *   The channel to read the document from
+   * @param callbackExecutor
+   *   The executor on which the callback methods are invoked. Usually, the main thread.
+   */
+  public DocumentLoader(@NonNull FileChannel channel, @NonNull Executor callbackExecutor) {
+    this.channel = channel;
+    this.callbackExecutor = callbackExecutor;
+  }
+
+  /**
+   * Creates a loader for a channel.
+   *
+   * @param channel
+   *   The channel to read the document from
+   * @param charset
+   *   The charset used to decode the document. It must be stateless, UTF-16 must be given with an
+   *   explicit byte order.
+   * @param callbackExecutor
+   *   The executor on which the callback methods are invoked. Usually, the main thread.
+   */
+  public DocumentLoader(@NonNull FileChannel channel,
+                        @NonNull Charset charset,
+                        @NonNull Executor callbackExecutor) {
+    this(channel, callbackExecutor);
+    this.charset = charset;
+  }
+
+  /**
+   * Starts loading the document in the background.
+   *
+   * @param callback
+   *   The callback notified of the loading progress
+   */
+  public void load(@NonNull final Callback callback) {
+    EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        DocumentLoader.this.run(callback);
+      }
+    });
+  }
+
+  /**
+   * Cancels the loading. No chunk is handed over to the callback once this method returns, and
+   * {@link Callback#onLoadCancelled()} is invoked instead of the other terminal callback methods.
+   */
+  public void cancel() {
+    this.cancelled = true;
+  }
+
+  /**
+   * @return the channel the document is read from
+   */
+  @NonNull
+  public FileChannel getChannel() {
+    return this.channel;
+  }
+
+  public boolean isCancelled() {
+    return this.cancelled;
+  }
+
+  /**
+   * @return the loaded document text, which also tells its charset. It's only complete once
+   * {@link Callback#onLoadFinished(long, int)} has been invoked.
+   */
+  public MappedText getText() {
+    return this.text;
+  }
+
+  private void run(@NonNull final Callback callback) {
+    long byteCount = 0;
+    int charCount = 0;
+    try {
+      long size = this.channel.size();
+      long textStart = 0;
+      boolean isDetected = false;
+      if (this.charset == null) {
+        CharsetDetector.Result detected = CharsetDetector.detect(this.channel);
+        this.charset = detected.getCharset();
+        textStart = detected.getByteOrderMarkLength();
+        // A byte order mark settles the charset, otherwise only the sample was checked.
+        isDetected = (textStart == 0);
+      }
+      boolean isRestart = false;
+      while (true) {
+        try {
+          byteCount = textStart;
+          charCount = 0;
+          this.text = new MappedText(this.channel, this.charset, byteCount);
+          this.start(callback, this.charset, textStart, isRestart);
+          if (isSplittable(this.charset) && ((size - byteCount) > WINDOW_SIZE)) {
+            charCount = this.decodeParallel(callback, byteCount, size);
+            byteCount = size;
+          } else {
+            CharsetDecoder decoder = this.charset.newDecoder()
+                                                 .onMalformedInput(CodingErrorAction.REPORT)
+                                                 .onUnmappableCharacter(CodingErrorAction.REPORT);
+            CharBuffer out = CharBuffer.allocate(CHUNK_SIZE);
+            boolean endOfInput = (byteCount == size);
+            while ((byteCount < size) && !this.cancelled) {
+              long length = Math.min(WINDOW_SIZE, size - byteCount);
+              long start = System.nanoTime();
+              MappedByteBuffer window = this.channel.map(MapMode.READ_ONLY, byteCount, length);
+              Metric.DOCUMENT_MAP.recordSince(start);
+              // The time spent waiting for the callback to catch up isn't part of the decoding.
+              long decodeNanos = 0;
+              endOfInput = ((byteCount + length) == size);
+              this.text.addBlock(byteCount, charCount + out.position());
+              CoderResult result;
+              do {
+                start = System.nanoTime();
+                result = decoder.decode(window, out, endOfInput);
+                decodeNanos += System.nanoTime() - start;
+                if (result.isError()) {
+                  result.throwException();
+                }
+                if (result.isOverflow()) {
+                  charCount += this.publish(out, callback);
+                }
+              } while (result.isOverflow() && !this.cancelled);
+              Metric.DOCUMENT_DECODE.getHistogram().record(decodeNanos);
+              // A character may straddle two windows. Its first bytes are left undecoded in the
+              // current window, so the next window simply starts with them.
+              byteCount += window.position();
+            }
+            if (!this.cancelled && endOfInput) {
+              while (decoder.flush(out).isOverflow()) {
+                charCount += this.publish(out, callback);
+              }
+            }
+            charCount += this.publish(out, callback);
+          }
+          break;
+        } catch (CharacterCodingException e) {
+          Charset fallback = isDetected ? CharsetDetector.getFallback(this.charset) : null;
+          if ((fallback == null) || this.cancelled) {
+            throw e;
+          }
+          this.charset = fallback;
+          isRestart = true;
+        }
+      }
+      if (!this.cancelled) {
+        this.text.setLength(byteCount, charCount);
+      }
+    } catch (final IOException e) {
+      if (!this.cancelled) {
+        this.callbackExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            callback.onLoadFailed(e);
+          }
+        });
+        return;
+      }
+    }
+    this.finish(callback, byteCount, charCount);
+  }
+
+  /**
+   * Tells whether a charset can be decoded from a window boundary found by
+   * {@link #findWindowStart(long, long)}.
+   */
+  private static boolean isSplittable(@NonNull Charset charset) {
+    return charset.equals(CharsetDetector.UTF_8) || charset.equals(CharsetDetector.UTF_16BE) ||
+           charset.equals(CharsetDetector.UTF_16LE) || charset.equals(CharsetDetector.ISO_8859_1) ||
+           charset.equals(CharsetDetector.WINDOWS_1252);
+  }
+
+  /**
+   * Decodes the windows of the document in parallel on the {@link ParallelExecutor}, and hands
+   * them over to the callback in order. Each window is decoded on its own, into a buffer sized for
+   * the most chars it can decode to, so the chunks are taken straight from it. A few more windows
+   * than there are threads are decoded ahead of the callback, which bounds the heap used.
+   *
+   * @return the number of chars decoded
+   */
+  private int decodeParallel(@NonNull Callback callback, long start, long size)
+    throws IOException {
+    int charCount = 0;
+    int maxPendingWindows = ParallelExecutor.getInstance().getParallelism() + 1;
+    ArrayDeque<FutureTask<CharBuffer>> windows = new ArrayDeque<>(maxPendingWindows);
+    ArrayDeque<Long> windowStarts = new ArrayDeque<>(maxPendingWindows);
+    long next = start;
+    try {
+      while (((next < size) || !windows.isEmpty()) && !this.cancelled) {
+        while ((next < size) && (windows.size() < maxPendingWindows)) {
+          long end = this.findWindowStart(next + WINDOW_SIZE, size);
+          FutureTask<CharBuffer> window = this.decodeWindow(next, end);
+          windows.add(window);
+          windowStarts.add(next);
+          ParallelExecutor.getInstance().execute(window);
+          next = end;
+        }
+        CharBuffer chars = this.getWindow(windows.remove());
+        this.text.addBlock(windowStarts.remove(), charCount);
+        // The window buffer isn't reused, the chunks are views of it rather than copies.
+        for (int i = 0; (i < chars.limit()) && !this.cancelled; i += CHUNK_SIZE) {
+          charCount +=
+            this.publishChunk(chars.subSequence(i, Math.min(i + CHUNK_SIZE, chars.limit())),
+                              callback);
+        }
+      }
+    } finally {
+      for (FutureTask<CharBuffer> window : windows) {
+        window.cancel(false);
+      }
+    }
+    return charCount;
+  }
+
+  /**
+   * Finds the first char boundary at or after an offset, so that a window can start there.
+   */
+  private long findWindowStart(long offset, long size) throws IOException {
+    if (offset >= size) {
+      return size;
+    }
+    if (this.charset.equals(CharsetDetector.UTF_8)) {
+      // Skip the continuation bytes of the char the offset falls in, there are at most three.
+      ByteBuffer bytes = ByteBuffer.allocate(3);
+      this.channel.read(bytes, offset);
+      int skipped = 0;
+      while ((skipped < bytes.position()) && ((bytes.get(skipped) & 0xC0) == 0x80)) {
+        skipped++;
+      }
+      return Math.min(size, offset + skipped);
+    } else if (this.charset.equals(CharsetDetector.UTF_16BE) ||
+               this.charset.equals(CharsetDetector.UTF_16LE)) {
+      // The windows are a whole number of code units, only a surrogate pair can be split.
+      ByteBuffer bytes = ByteBuffer.allocate(2);
+      this.channel.read(bytes, offset);
+      if (bytes.position() == 2) {
+        int high = bytes.get(this.charset.equals(CharsetDetector.UTF_16BE) ? 0 : 1) & 0xFC;
+        if (high == 0xDC) {
+          return Math.min(size, offset + 2);
+        }
+      }
+    }
+    return offset;
+  }
+
+  @NonNull
+  private FutureTask<CharBuffer> decodeWindow(final long start, final long end) {
+    return new FutureTask<>(new Callable<CharBuffer>() {
+      @Override
+      public CharBuffer call() throws IOException {
+        long time = System.nanoTime();
+        MappedByteBuffer window = DocumentLoader.this.channel.map(MapMode.READ_ONLY, start,
+                                                                  end - start);
+        Metric.DOCUMENT_MAP.recordSince(time);
+        time = System.nanoTime();
+        CharsetDecoder decoder = DocumentLoader.this.charset
+          .newDecoder()
+          .onMalformedInput(CodingErrorAction.REPORT)
+          .onUnmappableCharacter(CodingErrorAction.REPORT);
+        CharBuffer out =
+          CharBuffer.allocate((int) Math.ceil((end - start) * decoder.maxCharsPerByte()));
+        CoderResult result = decoder.decode(window, out, true);
+        if (!result.isUnderflow()) {
+          result.throwException();
+        }
+        result = decoder.flush(out);
+        if (!result.isUnderflow()) {
+          result.throwException();
+        }
+        Metric.DOCUMENT_DECODE.recordSince(time);
+        out.flip();
+        return out;
+      }
+    });
+  }
+
+  /**
+   * Waits for a window to be decoded.
+   */
+  @NonNull
+  private CharBuffer getWindow(@NonNull FutureTask<CharBuffer> window) throws IOException {
+    try {
+      return window.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * Hands the decoded content of a buffer over to the callback and clears the buffer.
+   *
+   * @return the number of chars handed over
+   */
+  private int publish(@NonNull CharBuffer out, @NonNull Callback callback) throws IOException {
+    out.flip();
+    String chunk = out.toString();
+    out.clear();
+    return this.publishChunk(chunk, callback);
+  }
+
+  /**
+   * Hands a chunk of decoded text over to the callback. The chunk must not change afterward.
+   *
+   * @return the number of chars handed over
+   */
+  private int publishChunk(@NonNull final CharSequence chunk, @NonNull final Callback callback)
+    throws IOException {
+    if (chunk.length() == 0) {
+      return 0;
+    }
+    try {
+      // Wait for the callback to catch up if too many chunks are already in flight.
+      while (!this.pendingChunks.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+        if (this.cancelled) {
+          return 0;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    }
+    this.callbackExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        DocumentLoader.this.pendingChunks.release();
+        if (!DocumentLoader.this.cancelled) {
+          callback.onTextLoaded(chunk);
+        }
+      }
+    });
+    return chunk.length();
+  }
+
+  /**
+   * Tells the callback which charset the document is decoded with, before the chunks decoded with
+   * it are handed over.
+   */
+  private void start(@NonNull final Callback callback,
+                     @NonNull final Charset charset,
+                     final long textOffset,
+                     final boolean isRestart) {
+    this.callbackExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (!DocumentLoader.this.cancelled) {
+          callback.onDecodingStarted(charset, textOffset, isRestart);
+        }
+      }
+    });
+  }
+
+  private void finish(@NonNull final Callback callback, final long byteCount, final int charCount) {
+    this.callbackExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (DocumentLoader.this.cancelled) {
+          callback.onLoadCancelled();
+        } else {
+          callback.onLoadFinished(byteCount, charCount);
+        }
+      }
+    });
+  }
+
+  /**
+   * Receives the progress of a {@link DocumentLoader}. All methods are invoked on the executor the
+   * loader was constructed with.
+   */
+  public interface Callback {
+
+    /**
+     * Invoked for each decoded chunk of text, in document order.
+     *
+     * @param text
+     *   The decoded chunk, it doesn't change afterward
+     */
+    void onTextLoaded(@NonNull CharSequence text);
+
+    /**
+     * Invoked once the charset of the document is known, before the first chunk is handed over.
+     * It's invoked again, with another charset, if the document turned out not to be valid in its
+     * detected charset. The chunks handed over so far must then be dropped, the document is handed
+     * over again from its start.
+     *
+     * @param charset
+     *   The charset the document is decoded with
+     * @param textOffset
+     *   The offset, in bytes, of the text in the file, right after its byte order mark
+     * @param isRestart
+     *   Whether chunks decoded with another charset were handed over before
+     */
+    void onDecodingStarted(@NonNull Charset charset, long textOffset, boolean isRestart);
+
+    /**
+     * Invoked once the whole document has been decoded.
+     *
+     * @param byteCount
+     *   The number of bytes read
+     * @param charCount
+     *   The number of chars decoded
+     */
+    void onLoadFinished(long byteCount, int charCount);
+
+    /**
+     * Invoked if the document couldn't be read or decoded.
+     *
+     * @param e
+     *   The cause of the failure
+     */
+    void onLoadFailed(@NonNull IOException e);
+
+    /**
+     * Invoked once a cancelled loader has stopped.
+     */
+    void onLoadCancelled();
+  }
+}
@@ -0,0 +1,297 @@
+/*
+ * DocumentSpool.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.document;
+
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.bleushan.laboratoire1.utils.MemoryUnit;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Copies a document that can only be read as a stream, like the content of a pipe, into a file.
+ * <p/>
+ * The loaders map the documents and read them at random positions, which a pipe doesn't allow.
+ * The spool copies the stream on a background thread and hands a descriptor to the copy over to a
+ * {@link Callback}. The copy is unlinked as soon as it's open, so it goes away with its
+ * descriptor.
+ * <p/>
+ * A stream may be costly to produce, a compressed document is inflated as a whole each time it's
+ * read. The copy of a document whose modification time is known can be kept instead, for the
+ * next time the document is opened if it didn't change since. The most recently used copies are
+ * kept, within {@link #MAX_KEPT_SIZE}.
+ */
+public class DocumentSpool {
+
+  /**
+   * The most bytes the kept copies may take together.
+   */
+  public static final long MAX_KEPT_SIZE = MemoryUnit.MEGABYTE.toByte(64);
+  private static final String KEPT_SUFFIX = ".spool";
+  private static final int BUFFER_SIZE = 8192;
+  private static final ExecutorService EXECUTOR =
+    Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(@NonNull Runnable r) {
+        Thread thread = new Thread(r, DocumentSpool.class.getSimpleName());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  private final ParcelFileDescriptor source;
+  private final File directory;
+  private final Executor callbackExecutor;
+  private volatile boolean cancelled = false;
+  private String keptName;
+
+  /**
+   * Creates a spool.
+   *
+   * @param source
+   *   The descriptor to read the document from. The spool closes it once it's read.
+   * @param directory
+   *   The directory the copy is made in, usually the cache directory
+   * @param callbackExecutor
+   *   The executor on which the callback methods are invoked. Usually, the main thread.
+   */
+  public DocumentSpool(@NonNull ParcelFileDescriptor source,
+                       @NonNull File directory,
+                       @NonNull Executor callbackExecutor) {
+    this.source = source;
+    this.directory = directory;
+    this.callbackExecutor = callbackExecutor;
+  }
+
+  /**
+   * Opens the kept copy of a document, if there's one.
+   *
+   * @param directory
+   *   The directory the copies are made in
+   * @param uri
+   *   The document URI
+   * @param lastModified
+   *   The current modification time of the document, or -1 if unknown
+   *
+   * @return a descriptor to the copy, which the caller owns, or null if there's none for the
+   * document as it is
+   */
+  @Nullable
+  public static ParcelFileDescriptor openKept(@NonNull File directory,
+                                              @NonNull Uri uri,
+                                              long lastModified) {
+    if (lastModified < 0) {
+      return null;
+    }
+    File kept = new File(directory, getKeptName(uri, lastModified));
+    try {
+      ParcelFileDescriptor descriptor =
+        ParcelFileDescriptor.open(kept, ParcelFileDescriptor.MODE_READ_ONLY);
+      // The copies are evicted in the order they were last used.
+      kept.setLastModified(System.currentTimeMillis());
+      return descriptor;
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Keeps the copy once it's made, so that the document can be opened from it the next time.
+   * It must be invoked before the copy starts.
+   *
+   * @param uri
+   *   The document URI
+   * @param lastModified
+   *   The modification time of the document, nothing is kept if it's unknown
+   */
+  public void keep(@NonNull Uri uri, long lastModified) {
+    this.keptName = (lastModified >= 0) ? getKeptName(uri, lastModified) : null;
+  }
+
+  /**
+   * Helper method to name the copy of a document after the digest of its URI, and its
+   * modification time.
+   */
+  @NonNull
+  private static String getKeptName(@NonNull Uri uri, long lastModified) {
+    byte[] digest = VersionStore.newDigest().digest(uri.toString().getBytes(CharsetDetector.UTF_8));
+    return VersionStore.toHex(digest, 0, digest.length) + '-' + lastModified + KEPT_SUFFIX;
+  }
+
+  /**
+   * Starts copying the document in the background.
+   *
+   * @param callback
+   *   The callback given the descriptor to the copy
+   */
+  public void spool(@NonNull final Callback callback) {
+    EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          final ParcelFileDescriptor copy = DocumentSpool.this.copy();
+          DocumentSpool.this.callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+              if (DocumentSpool.this.cancelled) {
+                closeQuietly(copy);
+              } else {
+                callback.onSpooled(copy);
+              }
+            }
+          });
+        } catch (final IOException e) {
+          DocumentSpool.this.callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+              if (!DocumentSpool.this.cancelled) {
+                callback.onSpoolFailed(e);
+              }
+            }
+          });
+        }
+      }
+    });
+  }
+
+  /**
+   * Stops the copy. The callback won't be invoked anymore.
+   */
+  public void cancel() {
+    this.cancelled = true;
+  }
+
+  /**
+   * Helper method to copy the document into an unlinked file.
+   *
+   * @return the descriptor to the copy
+   */
+  @NonNull
+  private ParcelFileDescriptor copy() throws IOException {
+    try (InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(this.source)) {
+      File file = File.createTempFile("spool", null, this.directory);
+      boolean isKept = false;
+      try (OutputStream out = new FileOutputStream(file)) {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int count;
+        while (!this.cancelled && ((count = in.read(buffer)) >= 0)) {
+          out.write(buffer, 0, count);
+        }
+        if (this.cancelled) {
+          throw new IOException("Spool cancelled");
+        }
+        ParcelFileDescriptor copy =
+          ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+        if ((this.keptName != null) && (file.length() <= MAX_KEPT_SIZE)) {
+          isKept = file.renameTo(new File(this.directory, this.keptName));
+          if (isKept) {
+            this.trimKept();
+          }
+        }
+        return copy;
+      } finally {
+        // The descriptor keeps the content around until it's closed.
+        if (!isKept && !file.delete()) {
+          file.deleteOnExit();
+        }
+      }
+    }
+  }
+
+  /**
+   * Helper method to delete the copies kept for previous versions of the document, then the least
+   * recently used copies until they fit in {@link #MAX_KEPT_SIZE}.
+   */
+  private void trimKept() {
+    String prefix = this.keptName.substring(0, this.keptName.indexOf('-') + 1);
+    File[] files = this.directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File lhs, File rhs) {
+        return Long.compare(rhs.lastModified(), lhs.lastModified());
+      }
+    });
+    long size = new File(this.directory, this.keptName).length();
+    for (File file : files) {
+      String name = file.getName();
+      if (!name.endsWith(KEPT_SUFFIX) || name.equals(this.keptName)) {
+        continue;
+      }
+      if (name.startsWith(prefix) || ((size + file.length()) > MAX_KEPT_SIZE)) {
+        file.delete();
+      } else {
+        size += file.length();
+      }
+    }
+  }
+
+  private static void closeQuietly(@NonNull ParcelFileDescriptor descriptor) {
+    try {
+      descriptor.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * The callback of a spool.
+   */
+  public interface Callback {
+
+    /**
+     * Invoked once the document is copied.
+     *
+     * @param descriptor
+     *   The descriptor to the copy, which the callback owns
+     */
+    void onSpooled(@NonNull ParcelFileDescriptor descriptor);
+
+    /**
+     * Invoked if the document couldn't be copied.
+     *
+     * @param e
+     *   The reason
+     */
+    void onSpoolFailed(@NonNull IOException e);
+  }
+}
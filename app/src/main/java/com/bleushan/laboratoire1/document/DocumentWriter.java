@@ -0,0 +1,432 @@
+/*
+ * DocumentWriter.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.document;
+
+import android.support.annotation.NonNull;
+
+import com.bleushan.laboratoire1.utils.MemoryUnit;
+import com.bleushan.laboratoire1.utils.Metric;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Saves a {@link PieceTable} document by rewriting only what changed in its file.
+ * <p/>
+ * When the document original text is a {@link MappedText} of the file being written, the
+ * {@link ChangeTracker} span tells which chars may have changed. The byte range they occupy in the
+ * file is found by re-encoding the unchanged chars of the block they start in, then:
+ * <ul>
+ * <li>if the changed chars encode to as many bytes as the ones they replace, only that range is
+ * written with positional writes;</li>
+ * <li>otherwise, the unchanged bytes that follow the change are first shifted in place, with
+ * positional reads and writes, by as many bytes as the change grew or shrank. They are shifted
+ * from the end of the file when it grows and from the start of the change when it shrinks, so
+ * that no byte is overwritten before it's moved, and they are never decoded nor encoded again. The
+ * changed range is then written and the file truncated.</li>
+ * </ul>
+ * So the I/O cost of a save is proportional to the size of the change, unless it shifts the length
+ * of the text, in which case it's proportional to the distance between the change and the end of
+ * the file. A document that doesn't come from the file being written is written in full. The byte
+ * order mark of the file, if any, is never rewritten.
+ * <p/>
+ * The changed chars of the piece table may be read from anywhere in the file, so they are staged
+ * in a temporary file before the file is touched. Only the changed range is staged, which also
+ * makes the write cancellable without leaving a half written file behind. The original text no
+ * longer matches the file once the write is done, and the document must not be changed while it's
+ * being written.
+ * <p/>
+ * Once the changed range is staged, the size of the file is known. With an {@link Allocator}, the
+ * space the file needs to grow by is checked against the usable space and reserved in one step
+ * before the file is touched, so the tail shift and the copy can't run out of it.
+ */
+public class DocumentWriter {
+
+  /**
+   * The number of chars encoded at once.
+   */
+  private static final int CHUNK_SIZE = 8192;
+  /**
+   * The number of bytes shifted at once.
+   */
+  private static final long TRANSFER_SIZE = MemoryUnit.MEGABYTE.toByte(1);
+  private final PieceTable document;
+  private final ChangeTracker changeTracker;
+  private final CharsetEncoder encoder;
+  private final File tempDirectory;
+  private final char[] chars = new char[CHUNK_SIZE];
+  private final ByteBuffer bytes;
+  private volatile boolean cancelled = false;
+  private volatile Listener listener;
+  private Allocator allocator;
+  private long bytesWritten;
+  private long bytesTotal;
+
+  /**
+   * @param document
+   *   The document to save
+   * @param changeTracker
+   *   The tracker of the changes made to the document since it was loaded
+   * @param charset
+   *   The charset the document is encoded with, it must be the one it was loaded with
+   * @param tempDirectory
+   *   The directory where the new content is staged
+   */
+  public DocumentWriter(@NonNull PieceTable document,
+                        @NonNull ChangeTracker changeTracker,
+                        @NonNull Charset charset,
+                        @NonNull File tempDirectory) {
+    this.document = document;
+    this.changeTracker = changeTracker;
+    // Mirror String.getBytes, chars that can't be encoded are replaced rather than reported.
+    this.encoder = charset.newEncoder()
+                          .onMalformedInput(CodingErrorAction.REPLACE)
+                          .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    this.bytes = ByteBuffer.allocate((int) Math.ceil(CHUNK_SIZE * this.encoder.maxBytesPerChar()));
+    this.tempDirectory = tempDirectory;
+  }
+
+  /**
+   * Sets the listener notified of the write progress.
+   *
+   * @param listener
+   *   The listener, or null to remove it
+   */
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Sets the allocator that reserves the space the file needs to grow by. Without one, the file
+   * simply grows as it's written.
+   *
+   * @param allocator
+   *   The allocator for the file being written, or null to remove it
+   */
+  public void setAllocator(Allocator allocator) {
+    this.allocator = allocator;
+  }
+
+  /**
+   * Cancels the write. It's only honoured while the changed range is being staged, the file is
+   * left untouched in that case and {@link #write(FileChannel)} throws an
+   * {@link InterruptedIOException}. Once the file is being changed, the write goes on.
+   */
+  public void cancel() {
+    this.cancelled = true;
+  }
+
+  public boolean isCancelled() {
+    return this.cancelled;
+  }
+
+  /**
+   * Writes the document.
+   *
+   * @param target
+   *   A channel to the file the document was loaded from, or to a new file. It must be writable.
+   *
+   * @return the number of bytes written
+   */
+  public long write(@NonNull FileChannel target) throws IOException {
+    CharSequence original = this.document.getOriginal();
+    MappedText text = null;
+    int first = 0;
+    int end = this.document.length();
+    long byteStart = 0;
+    long byteEnd = 0;
+    if ((original instanceof MappedText) && (original.length() > 0)) {
+      text = (MappedText) original;
+      first = this.changeTracker.getFirstChange();
+      if (first < 0) {
+        return 0;
+      }
+      int delta = this.document.length() - text.length();
+      int originalEnd = this.changeTracker.getLastChange() - delta;
+      // Never split a surrogate pair, the bytes of a char would be cut in two.
+      if ((first > 0) && Character.isHighSurrogate(text.charAt(first - 1))) {
+        first--;
+      }
+      if ((originalEnd < text.length()) && Character.isLowSurrogate(text.charAt(originalEnd))) {
+        originalEnd++;
+      }
+      end = originalEnd + delta;
+      byteStart = this.findByteOffset(text, first);
+      byteEnd = this.findByteOffset(text, originalEnd);
+    } else if (original instanceof MappedText) {
+      // An empty file may still start with a byte order mark, keep it.
+      byteStart = ((MappedText) original).getTextOffset();
+    }
+    long tail = (text != null) ? (text.getByteLength() - byteEnd) : 0;
+    // The changed range is encoded, then copied in place. Until it's encoded, its size is estimated
+    // and the tail is expected to be shifted.
+    long estimate = (long) Math.ceil((end - first) * this.encoder.averageBytesPerChar());
+    this.bytesWritten = 0;
+    this.bytesTotal = estimate + tail + estimate;
+    File temp = File.createTempFile("save", ".tmp", this.tempDirectory);
+    try (RandomAccessFile file = new RandomAccessFile(temp, "rw")) {
+      FileChannel staging = file.getChannel();
+      long start = System.nanoTime();
+      long count = this.encode(this.document, first, end, staging, 0);
+      start = Metric.SAVE_ENCODE.recordSince(start);
+      boolean isShifted = ((byteStart + count) != byteEnd);
+      this.bytesTotal = count + (isShifted ? tail : 0) + count;
+      long newSize = byteStart + count + tail;
+      long size = target.size();
+      if ((newSize > size) && (this.allocator != null)) {
+        this.reserve(target, size, newSize - size);
+      }
+      // From here on, the file is being changed. Going on is the only way to keep it consistent.
+      if (text != null) {
+        this.shiftTail(text, target, byteEnd, tail, (byteStart + count) - byteEnd);
+      }
+      staging.position(0);
+      long written = 0;
+      while (written < count) {
+        long transferred = target.transferFrom(staging, byteStart + written, count - written);
+        if (transferred <= 0) {
+          throw new EOFException("The staged content is shorter than expected");
+        }
+        written += transferred;
+        this.onBytesWritten(transferred);
+      }
+      if (newSize < size) {
+        target.truncate(newSize);
+      }
+      Metric.SAVE_WRITE.recordSince(start);
+      return count;
+    } finally {
+      if (!temp.delete()) {
+        temp.deleteOnExit();
+      }
+    }
+  }
+
+  /**
+   * Reserves the space a file needs to grow by, or fails without changing its content.
+   *
+   * @throws InsufficientSpaceException
+   *   If there isn't enough usable space for the file to grow
+   */
+  private void reserve(@NonNull FileChannel target, long size, long growth) throws IOException {
+    long usable = this.allocator.getUsableSpace();
+    if (usable < growth) {
+      throw new InsufficientSpaceException(growth, usable);
+    }
+    try {
+      this.allocator.allocate(size, growth);
+    } catch (IOException e) {
+      // A failed reservation may still have extended the file.
+      target.truncate(size);
+      throw e;
+    }
+  }
+
+  /**
+   * Shifts the bytes of a mapped text that follow a change, as is, within the file being written.
+   * They are read through the channel of the text, the target channel may not be readable.
+   *
+   * @param tailStart
+   *   The offset of the first byte that follows the change
+   * @param tail
+   *   The number of bytes that follow the change
+   * @param shift
+   *   The number of bytes the change grew by, negative if it shrank
+   */
+  private void shiftTail(@NonNull MappedText text, @NonNull FileChannel target, long tailStart,
+                         long tail, long shift) throws IOException {
+    if ((tail == 0) || (shift == 0)) {
+      return;
+    }
+    ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(TRANSFER_SIZE, tail));
+    long shifted = 0;
+    while (shifted < tail) {
+      int length = (int) Math.min(buffer.capacity(), tail - shifted);
+      // Growing, the bytes are moved toward the end of the file, the last ones go first.
+      long from = (shift > 0) ? ((tailStart + tail) - shifted - length) : (tailStart + shifted);
+      buffer.clear();
+      buffer.limit(length);
+      while (buffer.hasRemaining()) {
+        if (text.getChannel().read(buffer, from + buffer.position()) < 0) {
+          throw new EOFException("The file was truncated while it was being saved");
+        }
+      }
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        target.write(buffer, from + shift + buffer.position());
+      }
+      shifted += length;
+      this.onBytesWritten(length);
+    }
+  }
+
+  private void throwIfCancelled() throws InterruptedIOException {
+    if (this.cancelled) {
+      throw new InterruptedIOException("The write was cancelled");
+    }
+  }
+
+  private void onBytesWritten(long count) {
+    this.bytesWritten += count;
+    Listener listener = this.listener;
+    if (listener != null) {
+      listener.onProgress(this.bytesWritten, this.bytesTotal);
+    }
+  }
+
+  /**
+   * Finds the offset, in bytes, of a char of a mapped text. The chars of the block it belongs to
+   * are encoded up to it, no I/O happens except to decode the block.
+   */
+  private long findByteOffset(@NonNull MappedText text, int index) throws IOException {
+    if (index >= text.length()) {
+      return text.getByteLength();
+    }
+    int block = text.findBlock(index);
+    return text.getBlockByteOffset(block) +
+           this.encode(text, text.getBlockCharOffset(block), index, null, 0);
+  }
+
+  /**
+   * Encodes a range of chars.
+   *
+   * @param text
+   *   The text to encode, either a {@link PieceTable} or a {@link MappedText}
+   * @param start
+   *   The index of the first char to encode
+   * @param end
+   *   The index after the last char to encode
+   * @param out
+   *   The channel the bytes are written to, or null to only count them
+   * @param position
+   *   The position in the channel where the bytes are written
+   *
+   * @return the number of bytes the range encodes to
+   */
+  private long encode(@NonNull CharSequence text, int start, int end, FileChannel out,
+                      long position) throws IOException {
+    this.encoder.reset();
+    long count = 0;
+    int index = start;
+    int carried = 0;
+    boolean endOfInput = false;
+    while (!endOfInput) {
+      if (out != null) {
+        this.throwIfCancelled();
+      }
+      int length = Math.min(CHUNK_SIZE - carried, end - index);
+      if (text instanceof PieceTable) {
+        ((PieceTable) text).getChars(index, index + length, this.chars, carried);
+      } else {
+        ((MappedText) text).getChars(index, index + length, this.chars, carried);
+      }
+      index += length;
+      endOfInput = (index == end);
+      CharBuffer in = CharBuffer.wrap(this.chars, 0, carried + length);
+      CoderResult result;
+      do {
+        result = this.encoder.encode(in, this.bytes, endOfInput);
+        if (endOfInput && result.isUnderflow()) {
+          result = this.encoder.flush(this.bytes);
+        }
+        count += this.drain(out, position + count);
+      } while (result.isOverflow());
+      // An unpaired high surrogate at the end of the chunk is left in the buffer, carry it over.
+      carried = in.remaining();
+      in.get(this.chars, 0, carried);
+      if (out != null) {
+        this.onBytesWritten(0);
+      }
+    }
+    return count;
+  }
+
+  private int drain(FileChannel out, long position) throws IOException {
+    this.bytes.flip();
+    int count = this.bytes.remaining();
+    if (out != null) {
+      while (this.bytes.hasRemaining()) {
+        position += out.write(this.bytes, position);
+      }
+      this.bytesWritten += count;
+    }
+    this.bytes.clear();
+    return count;
+  }
+
+  /**
+   * Receives the progress of a {@link DocumentWriter}. It's invoked on the writing thread.
+   */
+  public interface Listener {
+
+    /**
+     * @param bytesWritten
+     *   The number of bytes written so far: the changed range staged, the bytes that follow it
+     *   shifted and the changed range copied in place
+     * @param bytesTotal
+     *   The number of bytes to write in all. It's estimated until the changed range is staged.
+     */
+    void onProgress(long bytesWritten, long bytesTotal);
+  }
+
+  /**
+   * Reserves space for the file a {@link DocumentWriter} writes to. It's invoked on the writing
+   * thread.
+   */
+  public interface Allocator {
+
+    /**
+     * @return the number of bytes the file can grow by, or {@link Long#MAX_VALUE} if it's unknown
+     */
+    long getUsableSpace() throws IOException;
+
+    /**
+     * Reserves a range of the file, extending it if needed. Once it's reserved, writing to the
+     * range can't fail for lack of space.
+     *
+     * @param offset
+     *   The offset, in bytes, of the range
+     * @param length
+     *   The length, in bytes, of the range
+     *
+     * @throws InsufficientSpaceException
+     *   If there isn't enough space left for the range
+     */
+    void allocate(long offset, long length) throws IOException;
+  }
+}
@@ -0,0 +1,536 @@
+/*
+ * EditJournal.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.document;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.bleushan.laboratoire1.utils.MemoryUnit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A crash-safe journal of the edits made to a document, so that unsaved work survives the process
+ * being killed.
+ * <p/>
+ * The journal is made of two files in its directory:
+ * <ul>
+ * <li>a checkpoint, which identifies the original document and holds the whole difference between
+ * it and the edited text as a single replacement of the original range that changed;</li>
+ * <li>an append-only log of the edits made since the checkpoint, one checksummed record per
+ * {@link android.text.TextWatcher#onTextChanged(CharSequence, int, int, int)} call.</li>
+ * </ul>
+ * The records are buffered and written, then forced to the disk, in batches at most every
+ * {@link #FLUSH_INTERVAL_MS} milliseconds. Once the log grows past {@link #CHECKPOINT_SIZE} bytes,
+ * or {@link #CHECKPOINT_INTERVAL_MS} milliseconds after the last checkpoint, the caller is told to
+ * compact it into a new checkpoint. Since the replacement only covers the changed range, recovering
+ * a session costs in proportion to the edits rather than to the document size.
+ * <p/>
+ * Each checkpoint has a generation number, which the log repeats in its header. A new checkpoint
+ * is atomically renamed into place before the log is reset, so a crash in between leaves a log of
+ * an older generation, which is ignored. A record torn by a crash fails its checksum, the replay
+ * stops there.
+ * <p/>
+ * The methods must be invoked from a single thread, usually the main thread. The I/O happens on a
+ * background thread.
+ */
+public class EditJournal {
+
+  /**
+   * The maximum delay, in milliseconds, before a record is on the disk.
+   */
+  public static final long FLUSH_INTERVAL_MS = 1000;
+  /**
+   * The size, in bytes, of the log past which a checkpoint is due.
+   */
+  public static final long CHECKPOINT_SIZE = MemoryUnit.KILOBYTE.toByte(64);
+  /**
+   * The delay, in milliseconds, past which a checkpoint is due if the log isn't empty.
+   */
+  public static final long CHECKPOINT_INTERVAL_MS = 30000;
+  private static final String CHECKPOINT_FILE = "checkpoint";
+  private static final String LOG_FILE = "journal";
+  private static final int CHECKPOINT_MAGIC = 0x4C314350;
+  private static final int LOG_MAGIC = 0x4C314A4C;
+  private static final int RECORD_HEADER_SIZE = 4 + 4;
+  private static final ScheduledExecutorService EXECUTOR =
+    new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      @Override
+      public Thread newThread(@NonNull Runnable r) {
+        Thread thread = new Thread(r, EditJournal.class.getSimpleName());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  private final File directory;
+  private final CRC32 crc = new CRC32();
+  /**
+   * The records waiting to be written, guarded by the journal.
+   */
+  private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+  private boolean flushScheduled = false;
+  /**
+   * The generation of the last checkpoint taken, and the one of the log on the disk. They differ
+   * while a checkpoint is being written. The generations start from the clock, so a log left by a
+   * previous process never matches a new checkpoint.
+   */
+  private long generation = System.currentTimeMillis() << 16;
+  private long logGeneration = -1;
+  private RandomAccessFile log;
+  private long loggedSize = 0;
+  private long checkpointTime = 0;
+  private boolean started = false;
+
+  /**
+   * Creates a journal.
+   *
+   * @param directory
+   *   The directory holding the journal files, it's created if needed
+   */
+  public EditJournal(@NonNull File directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Reads the session left in a journal directory.
+   *
+   * @param directory
+   *   The journal directory
+   *
+   * @return the recovered session, or null if there is none or it holds no edit
+   */
+  @Nullable
+  public static Session recover(@NonNull File directory) {
+    Session session;
+    long generation;
+    try (DataInputStream in = new DataInputStream(
+      new BufferedInputStream(new FileInputStream(new File(directory, CHECKPOINT_FILE))))) {
+      CRC32 crc = new CRC32();
+      byte[] header = new byte[in.readInt()];
+      in.readFully(header);
+      crc.update(header);
+      DataInputStream headerIn = new DataInputStream(new ByteArrayInputStream(header));
+      if (headerIn.readInt() != CHECKPOINT_MAGIC) {
+        return null;
+      }
+      generation = headerIn.readLong();
+      String uri = headerIn.readUTF();
+      String title = headerIn.readUTF();
+      long lastModified = headerIn.readLong();
+      long byteLength = headerIn.readLong();
+      int start = headerIn.readInt();
+      int before = headerIn.readInt();
+      int count = headerIn.readInt();
+      char[] text = new char[count];
+      byte[] chunk = new byte[8192];
+      int read = 0;
+      while (read < count) {
+        int length = Math.min(chunk.length / 2, count - read);
+        in.readFully(chunk, 0, length * 2);
+        crc.update(chunk, 0, length * 2);
+        ByteBuffer.wrap(chunk, 0, length * 2).asCharBuffer().get(text, read, length);
+        read += length;
+      }
+      if (in.readInt() != (int) crc.getValue()) {
+        return null;
+      }
+      session = new Session(uri.isEmpty() ? null : uri, title, lastModified, byteLength);
+      if ((before > 0) || (count > 0)) {
+        session.edits.add(new Edit(start, before, new String(text)));
+      }
+    } catch (IOException e) {
+      // No checkpoint, or a corrupted one.
+      return null;
+    }
+    readLog(new File(directory, LOG_FILE), generation, session.edits);
+    return session.edits.isEmpty() ? null : session;
+  }
+
+  private static void readLog(@NonNull File file, long generation, @NonNull List<Edit> edits) {
+    try (DataInputStream in = new DataInputStream(
+      new BufferedInputStream(new FileInputStream(file)))) {
+      if ((in.readInt() != LOG_MAGIC) || (in.readLong() != generation)) {
+        // The log predates the checkpoint.
+        return;
+      }
+      CRC32 crc = new CRC32();
+      while (true) {
+        int length = in.readInt();
+        int checksum = in.readInt();
+        if (length < 12) {
+          return;
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        crc.reset();
+        crc.update(payload);
+        if ((int) crc.getValue() != checksum) {
+          // Torn by a crash.
+          return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        int start = buffer.getInt();
+        int before = buffer.getInt();
+        int count = buffer.getInt();
+        if ((count * 2) != buffer.remaining()) {
+          return;
+        }
+        char[] text = new char[count];
+        buffer.asCharBuffer().get(text);
+        edits.add(new Edit(start, before, new String(text)));
+      }
+    } catch (EOFException e) {
+      // The end of the log.
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Starts a new session, discarding the previous one.
+   *
+   * @param uri
+   *   The URI of the original document, or null for a new document
+   * @param title
+   *   The document title
+   * @param lastModified
+   *   The modification time of the original document, or -1
+   * @param byteLength
+   *   The size, in bytes, of the original document
+   */
+  public void start(@Nullable String uri, @NonNull String title, long lastModified,
+                    long byteLength) {
+    this.started = true;
+    this.checkpoint(uri, title, lastModified, byteLength, 0, 0, "");
+  }
+
+  /**
+   * Appends an edit to the journal.
+   *
+   * @param start
+   *   The index of the first replaced char
+   * @param before
+   *   The number of chars replaced
+   * @param text
+   *   The text holding the inserted chars
+   * @param textStart
+   *   The index of the first inserted char in the text
+   * @param textEnd
+   *   The index after the last inserted char in the text
+   */
+  public void append(int start, int before, @NonNull CharSequence text, int textStart,
+                     int textEnd) {
+    if (!this.started) {
+      return;
+    }
+    int count = textEnd - textStart;
+    int length = 12 + (count * 2);
+    ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+    record.position(RECORD_HEADER_SIZE);
+    record.putInt(start).putInt(before).putInt(count);
+    for (int i = textStart; i < textEnd; i++) {
+      record.putChar(text.charAt(i));
+    }
+    this.crc.reset();
+    this.crc.update(record.array(), RECORD_HEADER_SIZE, length);
+    record.putInt(0, length).putInt(4, (int) this.crc.getValue());
+    synchronized (this) {
+      this.pending.write(record.array(), 0, record.capacity());
+      this.loggedSize += record.capacity();
+      this.scheduleFlush(FLUSH_INTERVAL_MS);
+    }
+  }
+
+  /**
+   * @return true if the log should be compacted into a new checkpoint
+   */
+  public synchronized boolean isCheckpointDue() {
+    return (this.loggedSize >= CHECKPOINT_SIZE) ||
+           ((this.loggedSize > 0) &&
+            ((System.currentTimeMillis() - this.checkpointTime) >= CHECKPOINT_INTERVAL_MS));
+  }
+
+  /**
+   * Compacts the journal into a new checkpoint.
+   *
+   * @param uri
+   *   The URI of the original document, or null for a new document
+   * @param title
+   *   The document title
+   * @param lastModified
+   *   The modification time of the original document, or -1
+   * @param byteLength
+   *   The size, in bytes, of the original document
+   * @param start
+   *   The index of the first original char that changed
+   * @param originalEnd
+   *   The index after the last original char that changed
+   * @param text
+   *   The text replacing the changed original chars
+   */
+  public void checkpoint(@Nullable String uri, @NonNull String title, long lastModified,
+                         long byteLength, int start, int originalEnd, @NonNull String text) {
+    if (!this.started) {
+      return;
+    }
+    final long generation;
+    synchronized (this) {
+      // The records so far are part of the checkpoint.
+      this.generation++;
+      generation = this.generation;
+      this.pending = new ByteArrayOutputStream();
+      this.loggedSize = 0;
+      this.checkpointTime = System.currentTimeMillis();
+    }
+    ByteArrayOutputStream header = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(header)) {
+      out.writeInt(CHECKPOINT_MAGIC);
+      out.writeLong(generation);
+      out.writeUTF((uri != null) ? uri : "");
+      out.writeUTF(title);
+      out.writeLong(lastModified);
+      out.writeLong(byteLength);
+      out.writeInt(start);
+      out.writeInt(originalEnd - start);
+      out.writeInt(text.length());
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    final byte[] headerBytes = header.toByteArray();
+    final String replacement = text;
+    EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          EditJournal.this.writeCheckpoint(generation, headerBytes, replacement);
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    });
+  }
+
+  /**
+   * Ends the session and deletes the journal files, once the document is safely saved.
+   */
+  public void discard() {
+    synchronized (this) {
+      this.started = false;
+      this.generation++;
+      this.pending = new ByteArrayOutputStream();
+      this.loggedSize = 0;
+    }
+    EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        EditJournal.this.closeLog();
+        for (String name : new String[]{CHECKPOINT_FILE, LOG_FILE}) {
+          File file = new File(EditJournal.this.directory, name);
+          if (file.exists() && !file.delete()) {
+            file.deleteOnExit();
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Writes the pending records and closes the journal. The session is kept for recovery.
+   */
+  public void close() {
+    synchronized (this) {
+      this.started = false;
+    }
+    EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        EditJournal.this.flush();
+        EditJournal.this.closeLog();
+      }
+    });
+  }
+
+  private void scheduleFlush(long delay) {
+    if (!this.flushScheduled) {
+      this.flushScheduled = true;
+      EXECUTOR.schedule(new Runnable() {
+        @Override
+        public void run() {
+          EditJournal.this.flush();
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Writes the pending records to the log and forces them to the disk. Runs on the executor.
+   */
+  private void flush() {
+    byte[] records;
+    synchronized (this) {
+      this.flushScheduled = false;
+      if ((this.log == null) || (this.logGeneration != this.generation) ||
+          (this.pending.size() == 0)) {
+        // A checkpoint is on its way, it flushes once the new log is ready.
+        return;
+      }
+      records = this.pending.toByteArray();
+      this.pending = new ByteArrayOutputStream();
+    }
+    try {
+      FileChannel channel = this.log.getChannel();
+      ByteBuffer buffer = ByteBuffer.wrap(records);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer, channel.size());
+      }
+      channel.force(false);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Writes a checkpoint, then resets the log. Runs on the executor.
+   */
+  private void writeCheckpoint(long generation, @NonNull byte[] header, @NonNull String text)
+    throws IOException {
+    if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+      throw new IOException("Unable to create " + this.directory);
+    }
+    File temp = new File(this.directory, CHECKPOINT_FILE + ".tmp");
+    CRC32 crc = new CRC32();
+    try (FileOutputStream file = new FileOutputStream(temp)) {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+      out.writeInt(header.length);
+      out.write(header);
+      crc.update(header);
+      byte[] chunk = new byte[8192];
+      for (int i = 0; i < text.length(); i += chunk.length / 2) {
+        int length = Math.min(chunk.length / 2, text.length() - i);
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        for (int j = 0; j < length; j++) {
+          buffer.putChar(text.charAt(i + j));
+        }
+        out.write(chunk, 0, length * 2);
+        crc.update(chunk, 0, length * 2);
+      }
+      out.writeInt((int) crc.getValue());
+      out.flush();
+      file.getFD().sync();
+    }
+    if (!temp.renameTo(new File(this.directory, CHECKPOINT_FILE))) {
+      throw new IOException("Unable to rename " + temp);
+    }
+    // The checkpoint is in place, the previous log is now ignored and can be reset.
+    this.closeLog();
+    RandomAccessFile log = new RandomAccessFile(new File(this.directory, LOG_FILE), "rw");
+    log.setLength(0);
+    log.writeInt(LOG_MAGIC);
+    log.writeLong(generation);
+    log.getChannel().force(false);
+    synchronized (this) {
+      this.log = log;
+      this.logGeneration = generation;
+      if (this.pending.size() > 0) {
+        this.scheduleFlush(0);
+      }
+    }
+  }
+
+  private void closeLog() {
+    RandomAccessFile log;
+    synchronized (this) {
+      log = this.log;
+      this.log = null;
+      this.logGeneration = -1;
+    }
+    if (log != null) {
+      try {
+        log.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * An edit of a recovered session, in the terms of
+   * {@link android.text.Editable#replace(int, int, CharSequence)}.
+   */
+  public static final class Edit {
+
+    public final int start;
+    public final int before;
+    public final String text;
+
+    Edit(int start, int before, @NonNull String text) {
+      this.start = start;
+      this.before = before;
+      this.text = text;
+    }
+  }
+
+  /**
+   * A recovered session, the edits are to be applied in order to the original document.
+   */
+  public static final class Session {
+
+    public final String uri;
+    public final String title;
+    public final long lastModified;
+    public final long byteLength;
+    public final List<Edit> edits = new ArrayList<>();
+
+    Session(@Nullable String uri, @NonNull String title, long lastModified, long byteLength) {
+      this.uri = uri;
+      this.title = title;
+      this.lastModified = lastModified;
+      this.byteLength = byteLength;
+    }
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * InsufficientSpaceException.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.document;
+
+import java.io.IOException;
+
+/**
+ * Thrown when there isn't enough space left on the storage device to write a document. The file
+ * being written is left untouched.
+ */
+public class InsufficientSpaceException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+  private final long requiredBytes;
+  private final long usableBytes;
+
+  /**
+   * @param requiredBytes
+   *   The number of bytes the file needed to grow by
+   * @param usableBytes
+   *   The number of bytes that were usable on the storage device
+   */
+  public InsufficientSpaceException(long requiredBytes, long usableBytes) {
+    super(requiredBytes + " bytes required, " + usableBytes + " bytes usable");
+    this.requiredBytes = requiredBytes;
+    this.usableBytes = usableBytes;
+  }
+
+  public long getRequiredBytes() {
+    return this.requiredBytes;
+  }
+
+  public long getUsableBytes() {
+    return this.usableBytes;
+  }
+}
@@ -0,0 +1,491 @@
+/*
+ * LineIndex.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.document;
+
+import android.support.annotation.NonNull;
+
+import com.bleushan.laboratoire1.utils.MemoryUnit;
+import com.bleushan.laboratoire1.utils.Metric;
+import com.bleushan.laboratoire1.utils.ParallelExecutor;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An index of where the lines of a text start, which finds the start of any line in constant time.
+ * <p/>
+ * The line starts are kept as char offsets in a single {@code int} array with a gap, like a gap
+ * buffer. The starts before the gap are stored as is, the ones after it as their distance to the
+ * end of the text, so an edit only touches the lines it removes or inserts: the lines after it
+ * don't need to be shifted. Successive edits at the same place don't move the gap at all.
+ * <p/>
+ * The index of a file is built in the background by
+ * {@link #build(FileChannel, Charset, long, Executor)}, the file being split in
+ * {@link #CHUNK_SIZE} chunks scanned in parallel for line feeds on the {@link ParallelExecutor}.
+ * Chars are counted from the bytes, so the charset must be one of the {@link CharsetDetector}
+ * charsets, and the very one the text was decoded with. The edits made before the index is built are replayed once it
+ * is. Only a line feed starts a line, like in a text box.
+ * <p/>
+ * The index isn't thread safe. Apart from the building, it must be used from the thread of the
+ * executor it was built with.
+ */
+public class LineIndex {
+
+  /**
+   * The size, in bytes, of a chunk of file scanned by a single thread.
+   */
+  public static final long CHUNK_SIZE = MemoryUnit.MEGABYTE.toByte(1);
+  /**
+   * The line starts. The first {@link #gapStart} entries are char offsets, the entries after the
+   * gap are distances to the end of the text.
+   */
+  private int[] starts = new int[16];
+  private int gapStart = 1;
+  private int gapLength = this.starts.length - 1;
+  private int length = 0;
+  private boolean isBuilt = true;
+  /**
+   * The edits made while the index is being built, or null once the build stopped without an
+   * index.
+   */
+  private List<Edit> pendingEdits;
+  private volatile boolean cancelled = false;
+
+  /**
+   * Creates the index of an empty text.
+   */
+  public LineIndex() {
+  }
+
+  /**
+   * Creates the index of a text, scanning it on the calling thread.
+   *
+   * @param text
+   *   The text to index
+   */
+  public LineIndex(@NonNull CharSequence text) {
+    this.replace(0, 0, text, 0, text.length());
+  }
+
+  /**
+   * Builds the index of a text file in the background. The index can be used, and edited, right
+   * away, but it doesn't know about the lines of the file until {@link #isBuilt()}.
+   *
+   * @param channel
+   *   The channel to read the file from, it must stay open until the index is built
+   * @param charset
+   *   The charset the text of the file was decoded with, as told by {@link DocumentLoader}
+   * @param textOffset
+   *   The offset, in bytes, of the text in the file, right after its byte order mark
+   * @param executor
+   *   The executor the index is used from, the built index is installed on it. Usually, the main
+   *   thread.
+   *
+   * @return the index being built
+   */
+  @NonNull
+  public static LineIndex build(@NonNull FileChannel channel,
+                                @NonNull Charset charset,
+                                long textOffset,
+                                @NonNull Executor executor) {
+    LineIndex index = new LineIndex();
+    index.isBuilt = false;
+    index.pendingEdits = new ArrayList<>();
+    try {
+      new Build(index, channel, charset, textOffset, executor).start();
+    } catch (IOException e) {
+      e.printStackTrace();
+      abandon(index, executor);
+    }
+    return index;
+  }
+
+  /**
+   * Stops building the index. It is left without any line, and the edits aren't recorded
+   * anymore.
+   */
+  public void cancel() {
+    this.cancelled = true;
+    this.pendingEdits = null;
+  }
+
+  /**
+   * Lets an index know, on its executor, that it won't be built. It stops recording the edits.
+   */
+  private static void abandon(@NonNull final LineIndex index, @NonNull Executor executor) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        index.pendingEdits = null;
+      }
+    });
+  }
+
+  /**
+   * @return whether the index knows about every line of its text. An index whose build failed
+   * never does.
+   */
+  public boolean isBuilt() {
+    return this.isBuilt;
+  }
+
+  /**
+   * @return the length, in chars, of the indexed text
+   */
+  public int length() {
+    return this.length;
+  }
+
+  /**
+   * @return the number of lines, a text always having at least one
+   */
+  public int getLineCount() {
+    return this.starts.length - this.gapLength;
+  }
+
+  /**
+   * Gets the offset of the first char of a line.
+   *
+   * @param line
+   *   The index of the line
+   *
+   * @return the offset, in chars, of the first char of the line
+   */
+  public int getLineStart(int line) {
+    if ((line < 0) || (line >= this.getLineCount())) {
+      throw new IndexOutOfBoundsException("line " + line + ", line count " + this.getLineCount());
+    }
+    return (line < this.gapStart) ? this.starts[line] :
+           (this.length - this.starts[line + this.gapLength]);
+  }
+
+  /**
+   * Gets the line a char belongs to.
+   *
+   * @param offset
+   *   The offset of the char, the length of the text belonging to the last line
+   *
+   * @return the index of the line
+   */
+  public int getLineOf(int offset) {
+    if ((offset < 0) || (offset > this.length)) {
+      throw new IndexOutOfBoundsException("offset " + offset + ", length " + this.length);
+    }
+    int low = 0;
+    int high = this.getLineCount() - 1;
+    while (low < high) {
+      int middle = (low + high + 1) >>> 1;
+      if (this.getLineStart(middle) <= offset) {
+        low = middle;
+      } else {
+        high = middle - 1;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Mirrors the replacement of a range of the text, the same way as
+   * {@link PieceTable#replace(int, int, CharSequence, int, int)}.
+   *
+   * @param start
+   *   The index of the first replaced char
+   * @param end
+   *   The index after the last replaced char
+   * @param s
+   *   The sequence holding the replacement chars
+   * @param sStart
+   *   The index of the first replacement char in the sequence
+   * @param sEnd
+   *   The index after the last replacement char in the sequence
+   */
+  public void replace(int start, int end, @NonNull CharSequence s, int sStart, int sEnd) {
+    if (!this.isBuilt) {
+      if (this.pendingEdits != null) {
+        this.pendingEdits.add(new Edit(start, end, s.subSequence(sStart, sEnd).toString()));
+      }
+      return;
+    }
+    if ((start < 0) || (end > this.length) || (start > end)) {
+      throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " +
+                                          this.length);
+    }
+    // The lines starting in the replaced range are removed, the ones after it are left as is.
+    this.moveGap(this.getLineOf(start) + 1);
+    int next = this.gapStart + this.gapLength;
+    while ((next < this.starts.length) && ((this.length - this.starts[next]) <= end)) {
+      next++;
+    }
+    this.gapLength = next - this.gapStart;
+    this.length += (sEnd - sStart) - (end - start);
+    for (int i = sStart; i < sEnd; i++) {
+      if (s.charAt(i) == '\n') {
+        if (this.gapLength == 0) {
+          this.growGap();
+        }
+        this.starts[this.gapStart++] = start + (i - sStart) + 1;
+        this.gapLength--;
+      }
+    }
+  }
+
+  /**
+   * Moves the gap so that it starts before a given line.
+   */
+  private void moveGap(int line) {
+    if (line < this.gapStart) {
+      for (int i = this.gapStart - 1; i >= line; i--) {
+        this.starts[i + this.gapLength] = this.length - this.starts[i];
+      }
+    } else {
+      for (int i = this.gapStart; i < line; i++) {
+        this.starts[i] = this.length - this.starts[i + this.gapLength];
+      }
+    }
+    this.gapStart = line;
+  }
+
+  private void growGap() {
+    int[] grown = new int[Math.max(16, this.starts.length + (this.starts.length >> 1))];
+    int after = this.starts.length - this.gapStart;
+    System.arraycopy(this.starts, 0, grown, 0, this.gapStart);
+    System.arraycopy(this.starts, this.gapStart, grown, grown.length - after, after);
+    this.gapLength = grown.length - this.starts.length;
+    this.starts = grown;
+  }
+
+  /**
+   * Installs the line starts found by a build, then replays the edits made in the meantime.
+   */
+  private void install(@NonNull int[] starts, int lineCount, int length) {
+    this.starts = starts;
+    this.gapStart = lineCount;
+    this.gapLength = starts.length - lineCount;
+    this.length = length;
+    this.isBuilt = true;
+    for (Edit edit : this.pendingEdits) {
+      this.replace(edit.start, edit.end, edit.text, 0, edit.text.length());
+    }
+    this.pendingEdits = null;
+  }
+
+  /**
+   * An edit made while the index is being built.
+   */
+  private static final class Edit {
+
+    final int start;
+    final int end;
+    final String text;
+
+    Edit(int start, int end, @NonNull String text) {
+      this.start = start;
+      this.end = end;
+      this.text = text;
+    }
+  }
+
+  /**
+   * The lines found in a chunk of a file.
+   */
+  private static final class Chunk {
+
+    /**
+     * The line starts, as char offsets from the start of the chunk.
+     */
+    int[] starts = new int[16];
+    int lineCount = 0;
+    int charCount = 0;
+
+    void add(int start) {
+      if (this.lineCount == this.starts.length) {
+        this.starts = Arrays.copyOf(this.starts, this.lineCount * 2);
+      }
+      this.starts[this.lineCount++] = start;
+    }
+  }
+
+  /**
+   * A build of the index of a file. Each chunk is scanned by a task of its own, the last task to
+   * finish merges the chunks, so no thread ever waits for another.
+   */
+  private static final class Build {
+
+    private final LineIndex index;
+    private final FileChannel channel;
+    private final long textOffset;
+    private final Executor executor;
+    private final int unitWidth;
+    private final boolean isBigEndian;
+    private final boolean isUtf8;
+    private final Chunk[] chunks;
+    private final AtomicInteger remaining;
+    private final long startTime = System.nanoTime();
+    private volatile boolean failed = false;
+
+    Build(@NonNull LineIndex index,
+          @NonNull FileChannel channel,
+          @NonNull Charset charset,
+          long textOffset,
+          @NonNull Executor executor) throws IOException {
+      this.index = index;
+      this.channel = channel;
+      this.textOffset = textOffset;
+      this.executor = executor;
+      this.unitWidth = charset.equals(CharsetDetector.UTF_16BE) ||
+                       charset.equals(CharsetDetector.UTF_16LE) ? 2 : 1;
+      this.isBigEndian = charset.equals(CharsetDetector.UTF_16BE);
+      this.isUtf8 = charset.equals(CharsetDetector.UTF_8);
+      long textSize = Math.max(0, channel.size() - textOffset);
+      this.chunks = new Chunk[(int) Math.max(1, ((textSize + CHUNK_SIZE) - 1) / CHUNK_SIZE)];
+      this.remaining = new AtomicInteger(this.chunks.length);
+    }
+
+    void start() {
+      for (int i = 0; i < this.chunks.length; i++) {
+        final int chunk = i;
+        ParallelExecutor.getInstance().execute(new Runnable() {
+          @Override
+          public void run() {
+            Build.this.scan(chunk);
+          }
+        });
+      }
+    }
+
+    private void scan(int chunk) {
+      if (!this.index.cancelled && !this.failed) {
+        try {
+          this.chunks[chunk] = this.scanChunk(chunk);
+        } catch (IOException e) {
+          if (!this.index.cancelled) {
+            e.printStackTrace();
+          }
+          this.failed = true;
+        }
+      }
+      if ((this.remaining.decrementAndGet() == 0) && !this.index.cancelled) {
+        if (this.failed) {
+          abandon(this.index, this.executor);
+        } else {
+          this.merge();
+        }
+      }
+    }
+
+    /**
+     * Scans a chunk for line feeds, counting its chars on the way. Chunks start on a code unit
+     * boundary, and a UTF-8 char is counted on its first byte, so any chunk can be counted on its
+     * own.
+     */
+    @NonNull
+    private Chunk scanChunk(int chunk) throws IOException {
+      Chunk lines = new Chunk();
+      long start = this.textOffset + (chunk * CHUNK_SIZE);
+      long length = Math.max(0, Math.min(CHUNK_SIZE, this.channel.size() - start));
+      if (length == 0) {
+        return lines;
+      }
+      MappedByteBuffer bytes = this.channel.map(MapMode.READ_ONLY, start, length);
+      int limit = bytes.limit();
+      int chars = 0;
+      if (this.unitWidth == 2) {
+        int high = this.isBigEndian ? 0 : 1;
+        for (int i = 0; (i + 1) < limit; i += 2) {
+          chars++;
+          if ((bytes.get(i + 1 - high) == '\n') && (bytes.get(i + high) == 0)) {
+            lines.add(chars);
+          }
+        }
+      } else if (this.isUtf8) {
+        for (int i = 0; i < limit; i++) {
+          int b = bytes.get(i) & 0xFF;
+          if (b == '\n') {
+            lines.add(++chars);
+          } else if (b >= 0xF0) {
+            // A supplementary code point, decoded as a surrogate pair.
+            chars += 2;
+          } else if ((b & 0xC0) != 0x80) {
+            chars++;
+          }
+        }
+      } else {
+        for (int i = 0; i < limit; i++) {
+          chars++;
+          if (bytes.get(i) == '\n') {
+            lines.add(chars);
+          }
+        }
+      }
+      lines.charCount = chars;
+      return lines;
+    }
+
+    private void merge() {
+      int lineCount = 1;
+      long length = 0;
+      for (Chunk chunk : this.chunks) {
+        lineCount += chunk.lineCount;
+        length += chunk.charCount;
+      }
+      if (length > Integer.MAX_VALUE) {
+        // A text box couldn't hold it either.
+        abandon(this.index, this.executor);
+        return;
+      }
+      final int[] starts = new int[lineCount + (lineCount >> 4) + 16];
+      int line = 1;
+      int base = 0;
+      for (Chunk chunk : this.chunks) {
+        for (int i = 0; i < chunk.lineCount; i++) {
+          starts[line++] = base + chunk.starts[i];
+        }
+        base += chunk.charCount;
+      }
+      final int count = lineCount;
+      final int total = (int) length;
+      Metric.DOCUMENT_INDEX.recordSince(this.startTime);
+      this.executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          if (!Build.this.index.cancelled) {
+            Build.this.index.install(starts, count, total);
+          }
+        }
+      });
+    }
+  }
+}
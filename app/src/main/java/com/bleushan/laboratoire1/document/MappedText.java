@@ -0,0 +1,244 @@
+/*
+ * MappedText.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.document;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A read-only {@link CharSequence} view of a text file that never holds more than one decoded block
+ * of the file on the heap.
+ * <p/>
+ * The file is split in blocks whose byte and char offsets are recorded while the file is first
+ * decoded by a {@link DocumentLoader}. Accessing a char maps and decodes the block that contains
+ * it, so sequential access costs a single decode per block and random access a binary search plus,
+ * at worst, a block decode. The underlying channel must stay open for as long as the text is used.
+ * <p/>
+ * The charset must be stateless, so that any block can be decoded on its own. A byte order mark, if
+ * any, is not part of the text, which starts at {@link #getTextOffset()}.
+ */
+public class MappedText implements CharSequence {
+
+  private final FileChannel channel;
+  private final Charset charset;
+  private final long textOffset;
+  private long[] byteOffsets = new long[16];
+  private int[] charOffsets = new int[16];
+  private int blockCount = 0;
+  private long byteLength = 0;
+  private int length = 0;
+  private int cachedBlock = -1;
+  private CharBuffer cachedChars;
+
+  MappedText(@NonNull FileChannel channel, @NonNull Charset charset, long textOffset) {
+    this.channel = channel;
+    this.charset = charset;
+    this.textOffset = textOffset;
+    this.byteLength = textOffset;
+  }
+
+  /**
+   * Creates a text with the same block layout as another one, for another channel to the same
+   * file content. Nothing is decoded.
+   */
+  MappedText(@NonNull FileChannel channel, @NonNull MappedText layout) {
+    this.channel = channel;
+    this.charset = layout.charset;
+    this.textOffset = layout.textOffset;
+    this.byteOffsets = Arrays.copyOf(layout.byteOffsets, layout.blockCount);
+    this.charOffsets = Arrays.copyOf(layout.charOffsets, layout.blockCount);
+    this.blockCount = layout.blockCount;
+    this.byteLength = layout.byteLength;
+    this.length = layout.length;
+  }
+
+  /**
+   * Records the start of a new block.
+   *
+   * @param byteOffset
+   *   The offset, in bytes, of the first byte of the block
+   * @param charOffset
+   *   The offset, in chars, of the first char of the block
+   */
+  void addBlock(long byteOffset, int charOffset) {
+    if (this.blockCount == this.byteOffsets.length) {
+      this.byteOffsets = Arrays.copyOf(this.byteOffsets, this.blockCount * 2);
+      this.charOffsets = Arrays.copyOf(this.charOffsets, this.blockCount * 2);
+    }
+    this.byteOffsets[this.blockCount] = byteOffset;
+    this.charOffsets[this.blockCount] = charOffset;
+    this.blockCount++;
+  }
+
+  /**
+   * Records the end of the text, once every block has been added.
+   */
+  void setLength(long byteLength, int length) {
+    this.byteLength = byteLength;
+    this.length = length;
+  }
+
+  public Charset getCharset() {
+    return this.charset;
+  }
+
+  /**
+   * @return the offset, in bytes, of the first byte of the text, past the byte order mark
+   */
+  public long getTextOffset() {
+    return this.textOffset;
+  }
+
+  /**
+   * @return the length, in bytes, of the file up to the end of the encoded text
+   */
+  public long getByteLength() {
+    return this.byteLength;
+  }
+
+  @Override
+  public int length() {
+    return this.length;
+  }
+
+  @Override
+  public synchronized char charAt(int index) {
+    if ((index < 0) || (index >= this.length)) {
+      throw new IndexOutOfBoundsException("index " + index + ", length " + this.length);
+    }
+    int block = this.findBlock(index);
+    return this.decodeBlock(block).get(index - this.charOffsets[block]);
+  }
+
+  /**
+   * Copies a range of chars into an array, decoding each block it spans at most once.
+   *
+   * @param start
+   *   The index of the first char to copy
+   * @param end
+   *   The index after the last char to copy
+   * @param dest
+   *   The destination array
+   * @param destOffset
+   *   The index in the destination array where the first char is copied
+   */
+  public synchronized void getChars(int start, int end, char[] dest, int destOffset) {
+    if ((start < 0) || (end > this.length) || (start > end)) {
+      throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " +
+                                          this.length);
+    }
+    int index = start;
+    while (index < end) {
+      int block = this.findBlock(index);
+      CharBuffer chars = this.decodeBlock(block);
+      int offset = index - this.charOffsets[block];
+      int count = Math.min(chars.limit() - offset, end - index);
+      System.arraycopy(chars.array(), chars.arrayOffset() + offset,
+                       dest, destOffset + (index - start), count);
+      index += count;
+    }
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    char[] chars = new char[end - start];
+    this.getChars(start, end, chars, 0);
+    return new String(chars);
+  }
+
+  @NonNull
+  @Override
+  public String toString() {
+    return this.subSequence(0, this.length).toString();
+  }
+
+  /**
+   * @return the size, in bytes, of the block layout on the heap
+   */
+  long getLayoutSize() {
+    return this.blockCount * (8L + 4L);
+  }
+
+  /**
+   * @return the channel the text is read from
+   */
+  FileChannel getChannel() {
+    return this.channel;
+  }
+
+  /**
+   * @return the offset, in bytes, of the first byte of a block
+   */
+  long getBlockByteOffset(int block) {
+    return this.byteOffsets[block];
+  }
+
+  /**
+   * @return the offset, in chars, of the first char of a block
+   */
+  int getBlockCharOffset(int block) {
+    return this.charOffsets[block];
+  }
+
+  /**
+   * @return the index of the block that contains a given char
+   */
+  int findBlock(int index) {
+    int block = Arrays.binarySearch(this.charOffsets, 0, this.blockCount, index);
+    if (block < 0) {
+      block = -block - 2;
+    }
+    // Skip the blocks that didn't decode to any char.
+    while ((block + 1 < this.blockCount) && (this.charOffsets[block + 1] == index)) {
+      block++;
+    }
+    return block;
+  }
+
+  private CharBuffer decodeBlock(int block) {
+    if (block != this.cachedBlock) {
+      long start = this.byteOffsets[block];
+      long end = (block + 1 < this.blockCount) ? this.byteOffsets[block + 1] : this.byteLength;
+      try {
+        this.cachedChars =
+          this.charset.newDecoder().decode(this.channel.map(MapMode.READ_ONLY, start, end - start));
+      } catch (IOException e) {
+        // The file was decoded fine when it was loaded, it was changed or closed behind our back.
+        throw new IllegalStateException("Unable to decode block " + block, e);
+      }
+      this.cachedBlock = block;
+    }
+    return this.cachedChars;
+  }
+}
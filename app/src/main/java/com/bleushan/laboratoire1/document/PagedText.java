@@ -0,0 +1,284 @@
+/*
+ * PagedText.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.document;
+
+import android.support.annotation.NonNull;
+
+import com.bleushan.laboratoire1.utils.MemoryUnit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A read-only view of a text file as a sequence of pages, for files too big to be loaded whole.
+ * <p/>
+ * A page is roughly {@link #PAGE_SIZE} bytes of the file, and starts right after the first line
+ * break that follows its nominal offset so that lines aren't split between pages, unless the line
+ * is longer than a page. Nothing is read up front: the bounds of a page are found, and the page
+ * mapped and decoded, the first time it's asked for. Only the {@link #CACHED_PAGES} most recently
+ * used pages are kept, so the memory used doesn't depend on the size of the file.
+ * <p/>
+ * The charset must be stateless and encode a line feed as a single byte, or as a single UTF-16
+ * code unit. Malformed input is replaced rather than reported, since there's nothing to edit.
+ */
+public class PagedText {
+
+  /**
+   * The nominal size of a page, in bytes.
+   */
+  public static final long PAGE_SIZE = MemoryUnit.KILOBYTE.toByte(16);
+  /**
+   * The number of decoded pages kept in memory.
+   */
+  public static final int CACHED_PAGES = 16;
+  private static final ExecutorService EXECUTOR =
+    Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(@NonNull Runnable r) {
+        Thread thread = new Thread(r, PagedText.class.getSimpleName());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  private final FileChannel channel;
+  private final Charset charset;
+  private final long textOffset;
+  private final long size;
+  private final int pageCount;
+  /**
+   * The width, in bytes, of a code unit of the charset.
+   */
+  private final int unitWidth;
+  private final boolean isBigEndian;
+  private final boolean isUtf8;
+  private final Map<Integer, String> pages =
+    new LinkedHashMap<Integer, String>(CACHED_PAGES, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+        return this.size() > CACHED_PAGES;
+      }
+    };
+  private final AtomicBoolean isPrefetchPending = new AtomicBoolean();
+  private volatile int prefetchFirst;
+  private volatile int prefetchLast;
+  private volatile boolean closed = false;
+
+  /**
+   * @param channel
+   *   The channel to read the text from, it must stay open for as long as the text is used
+   * @param charset
+   *   The charset the text is encoded with
+   * @param textOffset
+   *   The offset, in bytes, of the first byte of the text, past the byte order mark
+   */
+  public PagedText(@NonNull FileChannel channel, @NonNull Charset charset, long textOffset)
+    throws IOException {
+    this.channel = channel;
+    this.charset = charset;
+    this.textOffset = textOffset;
+    this.size = channel.size();
+    long textSize = Math.max(0, this.size - textOffset);
+    this.pageCount = (int) Math.max(1, ((textSize + PAGE_SIZE) - 1) / PAGE_SIZE);
+    String name = charset.name();
+    this.unitWidth = name.startsWith("UTF-16") ? 2 : 1;
+    this.isBigEndian = name.equals("UTF-16BE");
+    this.isUtf8 = name.equals("UTF-8");
+  }
+
+  public int getPageCount() {
+    return this.pageCount;
+  }
+
+  public Charset getCharset() {
+    return this.charset;
+  }
+
+  /**
+   * Gets the text of a page, decoding it if it isn't cached. The line break that ends a page, if
+   * any, isn't part of it.
+   *
+   * @param index
+   *   The index of the page
+   *
+   * @return the text of the page
+   */
+  @NonNull
+  public CharSequence getPage(int index) {
+    if ((index < 0) || (index >= this.pageCount)) {
+      throw new IndexOutOfBoundsException("index " + index + ", page count " + this.pageCount);
+    }
+    String page;
+    synchronized (this.pages) {
+      page = this.pages.get(index);
+    }
+    if (page == null) {
+      try {
+        page = this.decodePage(index);
+      } catch (IOException e) {
+        // The file was checked when it was opened, it was changed or closed behind our back.
+        throw new IllegalStateException("Unable to decode page " + index, e);
+      }
+      synchronized (this.pages) {
+        this.pages.put(index, page);
+      }
+    }
+    return page;
+  }
+
+  /**
+   * Decodes a range of pages in the background, unless they're cached already. Only the last range
+   * asked for is decoded, the previous ones are dropped if they weren't decoded yet.
+   *
+   * @param first
+   *   The index of the first page of the range, it's clamped to the first page
+   * @param last
+   *   The index of the last page of the range, it's clamped to the last page
+   */
+  public void prefetch(int first, int last) {
+    this.prefetchFirst = Math.max(0, first);
+    this.prefetchLast = Math.min(this.pageCount - 1, last);
+    if (!this.closed && !this.isPrefetchPending.getAndSet(true)) {
+      EXECUTOR.execute(new Runnable() {
+        @Override
+        public void run() {
+          PagedText.this.isPrefetchPending.set(false);
+          PagedText.this.runPrefetch();
+        }
+      });
+    }
+  }
+
+  /**
+   * Stops the prefetching and drops the cached pages. The channel isn't closed.
+   */
+  public void close() {
+    this.closed = true;
+    synchronized (this.pages) {
+      this.pages.clear();
+    }
+  }
+
+  private void runPrefetch() {
+    int first = this.prefetchFirst;
+    int last = this.prefetchLast;
+    for (int i = first; (i <= last) && !this.closed; i++) {
+      try {
+        this.getPage(i);
+      } catch (IllegalStateException e) {
+        e.printStackTrace();
+        return;
+      }
+    }
+  }
+
+  private String decodePage(int index) throws IOException {
+    long start = this.findPageStart(index);
+    long end = (index + 1 < this.pageCount) ? this.findPageStart(index + 1) : this.size;
+    if (end <= start) {
+      return "";
+    }
+    MappedByteBuffer bytes = this.channel.map(MapMode.READ_ONLY, start, end - start);
+    String page = this.charset.newDecoder()
+                              .onMalformedInput(CodingErrorAction.REPLACE)
+                              .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                              .decode(bytes)
+                              .toString();
+    // The line break is what separates the page from the next one.
+    if ((index + 1 < this.pageCount) && page.endsWith("\n")) {
+      int length = page.length() - 1;
+      if ((length > 0) && (page.charAt(length - 1) == '\r')) {
+        length--;
+      }
+      page = page.substring(0, length);
+    }
+    return page;
+  }
+
+  /**
+   * Finds the offset, in bytes, of the first byte of a page: right after the first line feed at or
+   * after its nominal offset, or at the first char boundary if there's no line feed in the
+   * following page size.
+   */
+  private long findPageStart(int index) throws IOException {
+    long nominal = this.textOffset + (index * PAGE_SIZE);
+    if (index == 0) {
+      return this.textOffset;
+    }
+    // Align to a code unit of the charset.
+    nominal += (nominal - this.textOffset) % this.unitWidth;
+    long length = Math.min(PAGE_SIZE, this.size - nominal);
+    if (length <= 0) {
+      return this.size;
+    }
+    ByteBuffer bytes = this.channel.map(MapMode.READ_ONLY, nominal, length);
+    int limit = bytes.limit() - (this.unitWidth - 1);
+    for (int i = 0; i < limit; i += this.unitWidth) {
+      if (this.isLineFeed(bytes, i)) {
+        return nominal + i + this.unitWidth;
+      }
+    }
+    // No line break, start at the next char instead.
+    int skipped = 0;
+    if (this.isUtf8) {
+      // Skip the continuation bytes of a UTF-8 sequence.
+      while ((skipped < 3) && (skipped < bytes.limit()) && ((bytes.get(skipped) & 0xC0) == 0x80)) {
+        skipped++;
+      }
+    } else if ((this.unitWidth == 2) && (bytes.limit() >= 2) &&
+               Character.isLowSurrogate(this.getUnit(bytes, 0))) {
+      skipped = 2;
+    }
+    return nominal + skipped;
+  }
+
+  private boolean isLineFeed(@NonNull ByteBuffer bytes, int index) {
+    if (this.unitWidth == 1) {
+      return bytes.get(index) == '\n';
+    }
+    return this.getUnit(bytes, index) == '\n';
+  }
+
+  private char getUnit(@NonNull ByteBuffer bytes, int index) {
+    int first = bytes.get(index) & 0xFF;
+    int second = bytes.get(index + 1) & 0xFF;
+    return (char) (this.isBigEndian ? ((first << 8) | second) : ((second << 8) | first));
+  }
+}
@@ -0,0 +1,358 @@
+/*
+ * PieceTable.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.document;
+
+import android.support.annotation.NonNull;
+
+import java.nio.CharBuffer;
+import java.util.Random;
+
+/**
+ * A piece table text document model.
+ * <p/>
+ * The document is described as a sequence of pieces, each one being a range of either the original
+ * text or of an append-only buffer that holds every inserted char. The original text is never
+ * copied, typically it's a {@link MappedText} that stays in the mapped file, so the model itself
+ * only adds the edits to the heap. The editor edits the model itself rather than a copy of the
+ * text, and a save tells what changed since the document was loaded from its pieces. The pieces
+ * are kept in a treap ordered by their position in the document and augmented with subtree
+ * lengths, so locating, inserting and deleting text costs O(log n) in the number of pieces
+ * regardless of the document length.
+ * <p/>
+ * This class is not thread safe.
+ */
+public class PieceTable implements CharSequence {
+
+  private final CharSequence original;
+  private final StringBuilder added = new StringBuilder();
+  private final Random random = new Random();
+  private Piece root;
+  /**
+   * Scratch results of {@link #split(Piece, int)}, this avoids allocating a pair on each call.
+   */
+  private Piece splitLeft;
+  private Piece splitRight;
+
+  /**
+   * Creates a piece table for an original text.
+   *
+   * @param original
+   *   The original text of the document. It must not change afterward.
+   */
+  public PieceTable(@NonNull CharSequence original) {
+    this.original = original;
+    if (original.length() > 0) {
+      this.root = new Piece(true, 0, original.length(), this.random.nextInt());
+    }
+  }
+
+  private static int size(Piece piece) {
+    return (piece != null) ? piece.size : 0;
+  }
+
+  private static void update(@NonNull Piece piece) {
+    piece.size = size(piece.left) + piece.length + size(piece.right);
+  }
+
+  /**
+   * @return the original text of the document
+   */
+  @NonNull
+  public CharSequence getOriginal() {
+    return this.original;
+  }
+
+  /**
+   * @return the number of chars inserted since the piece table was created
+   */
+  public int getAddedLength() {
+    return this.added.length();
+  }
+
+  /**
+   * @return the number of chars the buffer of the inserted chars has room for
+   */
+  public int getAddedCapacity() {
+    return this.added.capacity();
+  }
+
+  /**
+   * @return the number of pieces the document is made of
+   */
+  public int getPieceCount() {
+    return count(this.root);
+  }
+
+  private static int count(Piece piece) {
+    return (piece != null) ? (count(piece.left) + 1 + count(piece.right)) : 0;
+  }
+
+  /**
+   * Replaces a range of the document with a range of another text. The signature mirrors
+   * {@link android.text.Editable#replace(int, int, CharSequence, int, int)} so editor changes can
+   * be forwarded as is.
+   *
+   * @param start
+   *   The index of the first char to replace
+   * @param end
+   *   The index after the last char to replace
+   * @param text
+   *   The text to insert
+   * @param textStart
+   *   The index of the first char of the text to insert
+   * @param textEnd
+   *   The index after the last char of the text to insert
+   */
+  public void replace(int start, int end, @NonNull CharSequence text, int textStart, int textEnd) {
+    if ((start < 0) || (end > this.length()) || (start > end)) {
+      throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " +
+                                          this.length());
+    }
+    this.split(this.root, start);
+    Piece head = this.splitLeft;
+    this.split(this.splitRight, end - start);
+    Piece tail = this.splitRight;
+    int count = textEnd - textStart;
+    if (count > 0) {
+      int addedStart = this.added.length();
+      if ((text instanceof CharBuffer) && ((CharBuffer) text).hasArray()) {
+        // The decoded chunks of a document, copy them at once rather than char by char.
+        CharBuffer buffer = (CharBuffer) text;
+        this.added.append(buffer.array(), buffer.arrayOffset() + buffer.position() + textStart,
+                          count);
+      } else {
+        this.added.append(text, textStart, textEnd);
+      }
+      if (!this.extendLastPiece(head, addedStart, count)) {
+        head = this.merge(head, new Piece(false, addedStart, count, this.random.nextInt()));
+      }
+    }
+    this.root = this.merge(head, tail);
+  }
+
+  public void insert(int where, @NonNull CharSequence text) {
+    this.replace(where, where, text, 0, text.length());
+  }
+
+  public void delete(int start, int end) {
+    this.replace(start, end, "", 0, 0);
+  }
+
+  @Override
+  public int length() {
+    return size(this.root);
+  }
+
+  @Override
+  public char charAt(int index) {
+    if ((index < 0) || (index >= this.length())) {
+      throw new IndexOutOfBoundsException("index " + index + ", length " + this.length());
+    }
+    Piece piece = this.root;
+    while (true) {
+      int leftSize = size(piece.left);
+      if (index < leftSize) {
+        piece = piece.left;
+      } else if (index < (leftSize + piece.length)) {
+        int offset = piece.start + (index - leftSize);
+        return piece.original ? this.original.charAt(offset) : this.added.charAt(offset);
+      } else {
+        index -= leftSize + piece.length;
+        piece = piece.right;
+      }
+    }
+  }
+
+  /**
+   * Copies a range of chars into an array.
+   *
+   * @param start
+   *   The index of the first char to copy
+   * @param end
+   *   The index after the last char to copy
+   * @param dest
+   *   The destination array
+   * @param destOffset
+   *   The index in the destination array where the first char is copied
+   */
+  public void getChars(int start, int end, @NonNull char[] dest, int destOffset) {
+    if ((start < 0) || (end > this.length()) || (start > end)) {
+      throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " +
+                                          this.length());
+    }
+    this.getChars(this.root, start, end, dest, destOffset);
+  }
+
+  private void getChars(Piece piece, int start, int end, char[] dest, int destOffset) {
+    if ((piece == null) || (start >= end)) {
+      return;
+    }
+    int leftSize = size(piece.left);
+    if (start < leftSize) {
+      this.getChars(piece.left, start, Math.min(end, leftSize), dest, destOffset);
+    }
+    int pieceEnd = leftSize + piece.length;
+    if ((start < pieceEnd) && (end > leftSize)) {
+      int from = Math.max(start, leftSize);
+      int to = Math.min(end, pieceEnd);
+      int offset = piece.start + (from - leftSize);
+      int count = to - from;
+      int at = destOffset + (from - start);
+      if (!piece.original) {
+        this.added.getChars(offset, offset + count, dest, at);
+      } else if (this.original instanceof MappedText) {
+        ((MappedText) this.original).getChars(offset, offset + count, dest, at);
+      } else if (this.original instanceof String) {
+        ((String) this.original).getChars(offset, offset + count, dest, at);
+      } else {
+        for (int i = 0; i < count; i++) {
+          dest[at + i] = this.original.charAt(offset + i);
+        }
+      }
+    }
+    if (end > pieceEnd) {
+      int from = Math.max(start, pieceEnd);
+      this.getChars(piece.right, from - pieceEnd, end - pieceEnd, dest,
+                    destOffset + (from - start));
+    }
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    char[] chars = new char[end - start];
+    this.getChars(start, end, chars, 0);
+    return new String(chars);
+  }
+
+  @NonNull
+  @Override
+  public String toString() {
+    return this.subSequence(0, this.length()).toString();
+  }
+
+  /**
+   * Grows the last piece of a tree in place when it ends exactly where newly added text starts.
+   * Typing appends a char at a time right after the previous one, this keeps it from creating a
+   * piece per keystroke.
+   *
+   * @return true if the piece was extended
+   */
+  private boolean extendLastPiece(Piece tree, int addedStart, int count) {
+    Piece last = tree;
+    while ((last != null) && (last.right != null)) {
+      last = last.right;
+    }
+    if ((last == null) || last.original || ((last.start + last.length) != addedStart)) {
+      return false;
+    }
+    last.length += count;
+    for (Piece piece = tree; piece != null; piece = piece.right) {
+      piece.size += count;
+    }
+    return true;
+  }
+
+  /**
+   * Splits a tree in two, the first holding the chars before a position and the second holding the
+   * rest. The piece straddling the position, if any, is cut in two. The results are stored in
+   * {@link #splitLeft} and {@link #splitRight}.
+   */
+  private void split(Piece piece, int position) {
+    if (piece == null) {
+      this.splitLeft = null;
+      this.splitRight = null;
+      return;
+    }
+    int leftSize = size(piece.left);
+    if (position <= leftSize) {
+      this.split(piece.left, position);
+      piece.left = this.splitRight;
+      update(piece);
+      this.splitRight = piece;
+    } else if (position >= (leftSize + piece.length)) {
+      this.split(piece.right, position - leftSize - piece.length);
+      piece.right = this.splitLeft;
+      update(piece);
+      this.splitLeft = piece;
+    } else {
+      int offset = position - leftSize;
+      Piece head = new Piece(piece.original, piece.start, offset, piece.priority);
+      Piece tail = new Piece(piece.original, piece.start + offset, piece.length - offset,
+                             piece.priority);
+      head.left = piece.left;
+      update(head);
+      tail.right = piece.right;
+      update(tail);
+      this.splitLeft = head;
+      this.splitRight = tail;
+    }
+  }
+
+  /**
+   * Concatenates two trees.
+   */
+  private Piece merge(Piece left, Piece right) {
+    if (left == null) {
+      return right;
+    }
+    if (right == null) {
+      return left;
+    }
+    if (left.priority > right.priority) {
+      left.right = this.merge(left.right, right);
+      update(left);
+      return left;
+    } else {
+      right.left = this.merge(left, right.left);
+      update(right);
+      return right;
+    }
+  }
+
+  /**
+   * A treap node describing a range of either the original text or the added buffer.
+   */
+  private static final class Piece {
+
+    final boolean original;
+    final int start;
+    final int priority;
+    int length;
+    int size;
+    Piece left;
+    Piece right;
+
+    Piece(boolean original, int start, int length, int priority) {
+      this.original = original;
+      this.start = start;
+      this.length = length;
+      this.priority = priority;
+      this.size = length;
+    }
+  }
+}
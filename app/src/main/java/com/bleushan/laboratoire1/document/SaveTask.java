@@ -0,0 +1,213 @@
+/*
+ * SaveTask.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.document;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a {@link DocumentWriter} on a background thread and reports its progress.
+ * <p/>
+ * Progress is reported to a {@link Callback}, on the executor given at construction, at most once
+ * every {@link #PROGRESS_INTERVAL_MS}, as the share of the bytes to stage, shift and copy that are
+ * written. Cancelling a save leaves the file untouched unless it was already being changed, in
+ * which case the save completes.
+ * <p/>
+ * The task does not own the channel it writes to. It's up to the caller to close it once the save
+ * is over, whichever way it ended.
+ */
+public class SaveTask implements DocumentWriter.Listener {
+
+  /**
+   * The minimum delay between two progress reports.
+   */
+  public static final long PROGRESS_INTERVAL_MS = 100;
+  private static final ExecutorService EXECUTOR =
+    Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(@NonNull Runnable r) {
+        Thread thread = new Thread(r, SaveTask.class.getSimpleName());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  private final DocumentWriter writer;
+  private final FileChannel target;
+  private final Executor callbackExecutor;
+  private Callback callback;
+  private long startTime;
+  private long lastProgressTime;
+
+  /**
+   * Creates a save task.
+   *
+   * @param writer
+   *   The writer of the document to save
+   * @param target
+   *   The channel to write the document to
+   * @param callbackExecutor
+   *   The executor on which the callback methods are invoked. Usually, the main thread.
+   */
+  public SaveTask(@NonNull DocumentWriter writer,
+                  @NonNull FileChannel target,
+                  @NonNull Executor callbackExecutor) {
+    this.writer = writer;
+    this.target = target;
+    this.callbackExecutor = callbackExecutor;
+  }
+
+  /**
+   * @return the throughput, in bytes per second, for a number of bytes written since a given time
+   */
+  private static long getThroughput(long bytes, long startTime) {
+    long elapsed = Math.max(1, System.nanoTime() - startTime);
+    return (bytes * TimeUnit.SECONDS.toNanos(1)) / elapsed;
+  }
+
+  /**
+   * Starts saving the document in the background.
+   *
+   * @param callback
+   *   The callback notified of the save progress
+   */
+  public void save(@NonNull final Callback callback) {
+    this.callback = callback;
+    EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        SaveTask.this.run(callback);
+      }
+    });
+  }
+
+  /**
+   * Cancels the save.
+   *
+   * @see DocumentWriter#cancel()
+   */
+  public void cancel() {
+    this.writer.cancel();
+  }
+
+  private void run(@NonNull final Callback callback) {
+    this.startTime = System.nanoTime();
+    this.lastProgressTime = this.startTime;
+    this.writer.setListener(this);
+    try {
+      final long byteCount = this.writer.write(this.target);
+      this.target.force(false);
+      final long throughput = getThroughput(byteCount, this.startTime);
+      this.callbackExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          callback.onSaveFinished(byteCount, throughput);
+        }
+      });
+    } catch (final IOException e) {
+      this.callbackExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          if ((e instanceof InterruptedIOException) && SaveTask.this.writer.isCancelled()) {
+            callback.onSaveCancelled();
+          } else {
+            callback.onSaveFailed(e);
+          }
+        }
+      });
+    } finally {
+      this.writer.setListener(null);
+    }
+  }
+
+  @Override
+  public void onProgress(long bytesWritten, long bytesTotal) {
+    long now = System.nanoTime();
+    if ((now - this.lastProgressTime) < TimeUnit.MILLISECONDS.toNanos(PROGRESS_INTERVAL_MS)) {
+      return;
+    }
+    this.lastProgressTime = now;
+    final float progress =
+      (bytesTotal > 0) ? Math.min(1f, (float) bytesWritten / bytesTotal) : 1f;
+    final long throughput = getThroughput(bytesWritten, this.startTime);
+    final Callback callback = this.callback;
+    this.callbackExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        callback.onSaveProgress(progress, throughput);
+      }
+    });
+  }
+
+  /**
+   * Receives the progress of a {@link SaveTask}. All methods are invoked on the executor the task
+   * was constructed with.
+   */
+  public interface Callback {
+
+    /**
+     * Invoked periodically while the document is being saved.
+     *
+     * @param progress
+     *   The fraction of the bytes of the save written so far, between 0 and 1
+     * @param bytesPerSecond
+     *   The throughput of the save so far
+     */
+    void onSaveProgress(float progress, long bytesPerSecond);
+
+    /**
+     * Invoked once the document has been written and flushed to the storage device.
+     *
+     * @param byteCount
+     *   The number of bytes written to the file
+     * @param bytesPerSecond
+     *   The throughput of the save
+     */
+    void onSaveFinished(long byteCount, long bytesPerSecond);
+
+    /**
+     * Invoked if the document couldn't be written.
+     *
+     * @param e
+     *   The cause of the failure
+     */
+    void onSaveFailed(@NonNull IOException e);
+
+    /**
+     * Invoked once a cancelled save has stopped. The file was left untouched.
+     */
+    void onSaveCancelled();
+  }
+}
@@ -0,0 +1,615 @@
+/*
+ * VersionStore.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.document;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+
+import com.bleushan.laboratoire1.utils.MemoryUnit;
+import com.bleushan.laboratoire1.utils.Metric;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The saved revisions of the documents.
+ * <p/>
+ * A revision is split into content-defined chunks: a chunk ends where a rolling hash of the last
+ * bytes matches a pattern, so an edit only changes the chunks around it and the chunks after it
+ * are cut at the same places as before. Each chunk is stored once, in a file named after its
+ * SHA-1 digest, and a revision is the list of the digests of its chunks. The store grows with
+ * what changed between the revisions rather than with their size, and restoring a revision is a
+ * matter of concatenating its chunks.
+ * <p/>
+ * At most {@link #MAX_REVISIONS} revisions are kept per document. The chunks no revision refers
+ * to anymore are deleted along with the oldest revisions. All the work is done one task at a time
+ * on a background thread, the results are handed over on the executor given by the caller.
+ */
+public class VersionStore {
+
+  /**
+   * The number of revisions kept per document.
+   */
+  public static final int MAX_REVISIONS = 32;
+  /**
+   * The smallest size, in bytes, of a chunk, other than the last one of a revision.
+   */
+  static final int MIN_CHUNK_SIZE = (int) MemoryUnit.KILOBYTE.toByte(2);
+  /**
+   * The largest size, in bytes, of a chunk.
+   */
+  static final int MAX_CHUNK_SIZE = (int) MemoryUnit.KILOBYTE.toByte(64);
+  /**
+   * The bits of the rolling hash that must be clear at the end of a chunk. With 13 bits, chunks
+   * are about 8 KiB past their minimum size. The high bits are used because they depend on the
+   * most bytes.
+   */
+  private static final int CHUNK_MASK = 0xFFF80000;
+  private static final int DIGEST_LENGTH = 20;
+  private static final int MAGIC = 0x52455631;
+  private static final String REVISION_SUFFIX = ".rev";
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+  /**
+   * The random values the rolling hash adds for each byte. They're seeded so that the chunks are
+   * cut at the same places from one run to the other.
+   */
+  private static final int[] GEAR = new int[256];
+  private static final ExecutorService EXECUTOR =
+    Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(@NonNull Runnable r) {
+        Thread thread = new Thread(r, VersionStore.class.getSimpleName());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  private static VersionStore instance;
+
+  static {
+    Random random = new Random(0x4C414231);
+    for (int i = 0; i < GEAR.length; i++) {
+      GEAR[i] = random.nextInt();
+    }
+  }
+
+  private final Context context;
+  private final File chunksDir;
+  private final File revisionsDir;
+
+  /**
+   * @param context
+   *   The context to read the documents with
+   * @param directory
+   *   The directory of the store
+   */
+  VersionStore(@NonNull Context context, @NonNull File directory) {
+    this.context = context;
+    this.chunksDir = new File(directory, "chunks");
+    this.revisionsDir = new File(directory, "revisions");
+  }
+
+  /**
+   * @param context
+   *   Any context of the application
+   *
+   * @return the version store of the application
+   */
+  @NonNull
+  public static synchronized VersionStore getInstance(@NonNull Context context) {
+    if (instance == null) {
+      Context applicationContext = context.getApplicationContext();
+      instance = new VersionStore(applicationContext,
+                                  new File(applicationContext.getFilesDir(), "versions"));
+    }
+    return instance;
+  }
+
+  /**
+   * Records the current content of a document as a revision, in the background. Nothing is
+   * recorded if it's the same as the latest revision.
+   *
+   * @param uri
+   *   The document URI
+   */
+  public void record(@NonNull final Uri uri) {
+    EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        long start = System.nanoTime();
+        try (InputStream in = VersionStore.this.context.getContentResolver().openInputStream(uri)) {
+          if (in != null) {
+            VersionStore.this.record(uri, in);
+            Metric.VERSION_RECORD.recordSince(start);
+          }
+        } catch (IOException | RuntimeException e) {
+          // Not having a revision doesn't prevent anything, the document itself is fine.
+          e.printStackTrace();
+        }
+      }
+    });
+  }
+
+  /**
+   * Lists the revisions of a document in the background.
+   *
+   * @param uri
+   *   The document URI
+   * @param callbackExecutor
+   *   The executor on which the callback is invoked. Usually, the main thread.
+   * @param callback
+   *   The callback given the revisions
+   */
+  public void list(@NonNull final Uri uri,
+                   @NonNull final Executor callbackExecutor,
+                   @NonNull final ListCallback callback) {
+    EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        final List<Revision> revisions = VersionStore.this.getRevisions(uri);
+        callbackExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            callback.onRevisionsListed(uri, revisions);
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Reads and decodes a revision in the background.
+   *
+   * @param revision
+   *   The revision
+   * @param callbackExecutor
+   *   The executor on which the callback methods are invoked. Usually, the main thread.
+   * @param callback
+   *   The callback given the text of the revision
+   */
+  public void restore(@NonNull final Revision revision,
+                      @NonNull final Executor callbackExecutor,
+                      @NonNull final RestoreCallback callback) {
+    EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          ByteArrayOutputStream out = new ByteArrayOutputStream((int) revision.size);
+          VersionStore.this.copyTo(revision, out);
+          ByteBuffer content = ByteBuffer.wrap(out.toByteArray());
+          // The charset is detected the way the loader does it.
+          int sampleLength = Math.min(content.remaining(), CharsetDetector.SAMPLE_SIZE);
+          CharsetDetector.Result detected =
+            CharsetDetector.detect(ByteBuffer.wrap(content.array(), 0, sampleLength),
+                                   sampleLength < content.remaining());
+          content.position(detected.getByteOrderMarkLength());
+          final Charset charset = detected.getCharset();
+          final String text = charset.decode(content).toString();
+          callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+              callback.onRevisionRestored(revision, text, charset);
+            }
+          });
+        } catch (final IOException e) {
+          callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+              callback.onRestoreFailed(e);
+            }
+          });
+        }
+      }
+    });
+  }
+
+  /**
+   * Records a revision of a document.
+   *
+   * @param uri
+   *   The document URI
+   * @param in
+   *   The content of the document
+   */
+  void record(@NonNull Uri uri, @NonNull InputStream in) throws IOException {
+    File documentDir = this.getDocumentDir(uri);
+    if (!this.chunksDir.mkdirs() && !this.chunksDir.isDirectory()) {
+      throw new IOException("Unable to create " + this.chunksDir);
+    }
+    if (!documentDir.mkdirs() && !documentDir.isDirectory()) {
+      throw new IOException("Unable to create " + documentDir);
+    }
+    MessageDigest digest = newDigest();
+    ByteArrayOutputStream digests = new ByteArrayOutputStream();
+    byte[] buffer = new byte[MAX_CHUNK_SIZE];
+    int length = 0;
+    long size = 0;
+    boolean isEndOfStream = false;
+    while (!isEndOfStream || (length > 0)) {
+      // Keep a whole chunk in the buffer, so that a cut can always be found.
+      while (!isEndOfStream && (length < buffer.length)) {
+        int count = in.read(buffer, length, buffer.length - length);
+        if (count < 0) {
+          isEndOfStream = true;
+        } else {
+          length += count;
+        }
+      }
+      if (length == 0) {
+        break;
+      }
+      int cut = findCut(buffer, length);
+      digest.update(buffer, 0, cut);
+      byte[] chunkDigest = digest.digest();
+      this.storeChunk(chunkDigest, buffer, cut);
+      digests.write(chunkDigest);
+      size += cut;
+      length -= cut;
+      System.arraycopy(buffer, cut, buffer, 0, length);
+    }
+    byte[] chunks = digests.toByteArray();
+    List<Revision> revisions = this.getRevisions(uri);
+    if (!revisions.isEmpty() && (revisions.get(0).size == size) &&
+        Arrays.equals(readChunks(revisions.get(0).file), chunks)) {
+      return;
+    }
+    // Two revisions recorded within the same millisecond would have the same name.
+    long time = System.currentTimeMillis();
+    if (!revisions.isEmpty()) {
+      time = Math.max(time, revisions.get(0).time + 1);
+    }
+    File file = new File(documentDir, time + REVISION_SUFFIX);
+    File temp = new File(documentDir, "." + file.getName() + ".tmp");
+    try (DataOutputStream out =
+           new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+      out.writeInt(MAGIC);
+      out.writeLong(size);
+      out.writeInt(chunks.length / DIGEST_LENGTH);
+      out.write(chunks);
+    }
+    if (!temp.renameTo(file)) {
+      temp.delete();
+      throw new IOException("Unable to write " + file);
+    }
+    revisions.add(0, new Revision(file, time, size));
+    if (revisions.size() > MAX_REVISIONS) {
+      for (Revision revision : revisions.subList(MAX_REVISIONS, revisions.size())) {
+        if (!revision.file.delete()) {
+          revision.file.deleteOnExit();
+        }
+      }
+      this.deleteUnusedChunks();
+    }
+  }
+
+  /**
+   * Lists the revisions of a document.
+   *
+   * @param uri
+   *   The document URI
+   *
+   * @return the revisions, latest first
+   */
+  @NonNull
+  List<Revision> getRevisions(@NonNull Uri uri) {
+    List<Revision> revisions = new ArrayList<>();
+    File[] files = this.getDocumentDir(uri).listFiles();
+    if (files == null) {
+      return revisions;
+    }
+    for (File file : files) {
+      String name = file.getName();
+      if (name.startsWith(".") || !name.endsWith(REVISION_SUFFIX)) {
+        continue;
+      }
+      try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+        if (in.readInt() != MAGIC) {
+          continue;
+        }
+        long time = Long.parseLong(name.substring(0, name.length() - REVISION_SUFFIX.length()));
+        revisions.add(new Revision(file, time, in.readLong()));
+      } catch (IOException | NumberFormatException e) {
+        e.printStackTrace();
+      }
+    }
+    Collections.sort(revisions, new Comparator<Revision>() {
+      @Override
+      public int compare(Revision lhs, Revision rhs) {
+        return (lhs.time < rhs.time) ? 1 : ((lhs.time == rhs.time) ? 0 : -1);
+      }
+    });
+    return revisions;
+  }
+
+  /**
+   * Writes the content of a revision.
+   *
+   * @param revision
+   *   The revision
+   * @param out
+   *   The stream the content is written to, it's not closed
+   */
+  void copyTo(@NonNull Revision revision, @NonNull OutputStream out) throws IOException {
+    byte[] chunks = readChunks(revision.file);
+    byte[] buffer = new byte[MAX_CHUNK_SIZE];
+    for (int offset = 0; offset < chunks.length; offset += DIGEST_LENGTH) {
+      File chunk = this.getChunkFile(chunks, offset);
+      try (InputStream in = new FileInputStream(chunk)) {
+        int count;
+        while ((count = in.read(buffer)) >= 0) {
+          out.write(buffer, 0, count);
+        }
+      }
+    }
+  }
+
+  /**
+   * Finds where the chunk at the start of a buffer ends.
+   *
+   * @param buffer
+   *   The buffer
+   * @param length
+   *   The number of bytes in the buffer
+   *
+   * @return the length of the chunk
+   */
+  static int findCut(@NonNull byte[] buffer, int length) {
+    if (length <= MIN_CHUNK_SIZE) {
+      return length;
+    }
+    int end = Math.min(length, MAX_CHUNK_SIZE);
+    int hash = 0;
+    // The bytes before the minimum size only warm the hash up, a byte stops weighing on it once
+    // it's shifted out.
+    for (int i = MIN_CHUNK_SIZE - 32; i < end; i++) {
+      hash = (hash << 1) + GEAR[buffer[i] & 0xFF];
+      if ((i >= MIN_CHUNK_SIZE) && ((hash & CHUNK_MASK) == 0)) {
+        return i + 1;
+      }
+    }
+    return end;
+  }
+
+  /**
+   * Helper method to store a chunk unless it's already stored.
+   */
+  private void storeChunk(@NonNull byte[] digest, @NonNull byte[] buffer, int length)
+    throws IOException {
+    File file = this.getChunkFile(digest, 0);
+    if (file.exists()) {
+      return;
+    }
+    File dir = file.getParentFile();
+    if (!dir.mkdirs() && !dir.isDirectory()) {
+      throw new IOException("Unable to create " + dir);
+    }
+    // A chunk is complete once it has its name.
+    File temp = new File(dir, "." + file.getName() + ".tmp");
+    try (OutputStream out = new FileOutputStream(temp)) {
+      out.write(buffer, 0, length);
+    }
+    if (!temp.renameTo(file)) {
+      temp.delete();
+      throw new IOException("Unable to write " + file);
+    }
+  }
+
+  /**
+   * Helper method to delete the chunks no revision refers to.
+   */
+  private void deleteUnusedChunks() throws IOException {
+    Set<String> used = new HashSet<>();
+    File[] documentDirs = this.revisionsDir.listFiles();
+    if (documentDirs != null) {
+      for (File documentDir : documentDirs) {
+        File[] files = documentDir.listFiles();
+        if (files == null) {
+          continue;
+        }
+        for (File file : files) {
+          if (file.getName().startsWith(".")) {
+            continue;
+          }
+          byte[] chunks = readChunks(file);
+          for (int offset = 0; offset < chunks.length; offset += DIGEST_LENGTH) {
+            used.add(toHex(chunks, offset, DIGEST_LENGTH));
+          }
+        }
+      }
+    }
+    File[] dirs = this.chunksDir.listFiles();
+    if (dirs == null) {
+      return;
+    }
+    for (File dir : dirs) {
+      File[] files = dir.listFiles();
+      if (files == null) {
+        continue;
+      }
+      for (File file : files) {
+        if (!used.contains(dir.getName() + file.getName())) {
+          file.delete();
+        }
+      }
+    }
+  }
+
+  /**
+   * Helper method to read the chunk digests of a revision.
+   */
+  @NonNull
+  private static byte[] readChunks(@NonNull File file) throws IOException {
+    try (DataInputStream in =
+           new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a revision: " + file);
+      }
+      in.readLong();
+      byte[] chunks = new byte[in.readInt() * DIGEST_LENGTH];
+      in.readFully(chunks);
+      return chunks;
+    }
+  }
+
+  /**
+   * Helper method to get the file of a chunk. The chunks are spread in directories named after
+   * the first byte of their digest.
+   */
+  @NonNull
+  private File getChunkFile(@NonNull byte[] digests, int offset) {
+    String name = toHex(digests, offset, DIGEST_LENGTH);
+    return new File(new File(this.chunksDir, name.substring(0, 2)), name.substring(2));
+  }
+
+  /**
+   * Helper method to get the directory of the revisions of a document, named after the digest of
+   * its URI.
+   */
+  @NonNull
+  private File getDocumentDir(@NonNull Uri uri) {
+    byte[] digest = newDigest().digest(uri.toString().getBytes(CharsetDetector.UTF_8));
+    return new File(this.revisionsDir, toHex(digest, 0, digest.length));
+  }
+
+  @NonNull
+  static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      // Every platform has SHA-1.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @NonNull
+  static String toHex(@NonNull byte[] bytes, int offset, int length) {
+    char[] chars = new char[length * 2];
+    for (int i = 0; i < length; i++) {
+      int b = bytes[offset + i] & 0xFF;
+      chars[i * 2] = HEX_DIGITS[b >>> 4];
+      chars[(i * 2) + 1] = HEX_DIGITS[b & 0x0F];
+    }
+    return new String(chars);
+  }
+
+  /**
+   * A recorded revision of a document.
+   */
+  public static final class Revision {
+
+    private final File file;
+    private final long time;
+    private final long size;
+
+    Revision(@NonNull File file, long time, long size) {
+      this.file = file;
+      this.time = time;
+      this.size = size;
+    }
+
+    /**
+     * @return when the revision was recorded, in milliseconds since the epoch
+     */
+    public long getTime() {
+      return this.time;
+    }
+
+    /**
+     * @return the size, in bytes, of the revision
+     */
+    public long getSize() {
+      return this.size;
+    }
+  }
+
+  /**
+   * The callback of a listing.
+   */
+  public interface ListCallback {
+
+    /**
+     * @param uri
+     *   The document URI
+     * @param revisions
+     *   The revisions of the document, latest first
+     */
+    void onRevisionsListed(@NonNull Uri uri, @NonNull List<Revision> revisions);
+  }
+
+  /**
+   * The callback of a restore.
+   */
+  public interface RestoreCallback {
+
+    /**
+     * Invoked once the revision is read and decoded.
+     *
+     * @param revision
+     *   The revision
+     * @param text
+     *   The text of the revision
+     * @param charset
+     *   The charset the text was decoded with
+     */
+    void onRevisionRestored(@NonNull Revision revision, @NonNull String text,
+                            @NonNull Charset charset);
+
+    /**
+     * Invoked if the revision couldn't be read.
+     *
+     * @param e
+     *   The reason
+     */
+    void onRestoreFailed(@NonNull IOException e);
+  }
+}
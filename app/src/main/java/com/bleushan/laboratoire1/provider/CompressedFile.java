@@ -0,0 +1,392 @@
+/*
+ * CompressedFile.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.provider;
+
+import android.support.annotation.NonNull;
+
+import com.bleushan.laboratoire1.utils.MemoryUnit;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A document stored deflated on disk, in independently compressed blocks.
+ * <p/>
+ * The file starts with a header, followed by the blocks, each one the raw deflate of
+ * {@link #BLOCK_SIZE} bytes of content, the last one excepted. The index of the blocks, their
+ * compressed lengths, and a trailer telling the content size and where the index starts, end the
+ * file. Reading any byte only takes inflating the block that holds it, so random access stays
+ * cheap, and the size of the content is known from the trailer alone.
+ * <p/>
+ * A compressed document has the {@link #SUFFIX} appended to its name, which is otherwise the name
+ * of the document.
+ */
+final class CompressedFile implements Closeable {
+
+  /**
+   * The suffix of the name of a compressed document.
+   */
+  static final String SUFFIX = ".dfz";
+  /**
+   * The size, in bytes, of the content of a block.
+   */
+  static final int BLOCK_SIZE = (int) MemoryUnit.KILOBYTE.toByte(64);
+  /**
+   * "DFZ1", in ASCII.
+   */
+  private static final int MAGIC = 0x44465A31;
+  /**
+   * The magic number and the block size.
+   */
+  private static final int HEADER_SIZE = 4 + 4;
+  /**
+   * The content size, the index offset, the block count and the magic number.
+   */
+  private static final int TRAILER_SIZE = 8 + 8 + 4 + 4;
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final long size;
+  /**
+   * The offset of each block in the file, followed by the offset of the index.
+   */
+  private final long[] blockOffsets;
+  private final Inflater inflater = new Inflater(true);
+  private final byte[] block = new byte[BLOCK_SIZE];
+  private byte[] compressed = new byte[0];
+  private int cachedBlock = -1;
+  private int cachedLength = 0;
+
+  private CompressedFile(@NonNull RandomAccessFile file) throws IOException {
+    this.file = file;
+    this.channel = file.getChannel();
+    ByteBuffer header = this.readFully(0, HEADER_SIZE);
+    if (header.getInt() != MAGIC) {
+      throw new IOException("Not a compressed document");
+    }
+    int blockSize = header.getInt();
+    if (blockSize != BLOCK_SIZE) {
+      throw new IOException("Unsupported block size " + blockSize);
+    }
+    ByteBuffer trailer = this.readFully(this.channel.size() - TRAILER_SIZE, TRAILER_SIZE);
+    this.size = trailer.getLong();
+    long indexOffset = trailer.getLong();
+    int blockCount = trailer.getInt();
+    if ((trailer.getInt() != MAGIC) || (blockCount < 0) ||
+        (((long) blockCount * BLOCK_SIZE) < this.size) ||
+        (indexOffset + (4L * blockCount) + TRAILER_SIZE != this.channel.size())) {
+      throw new IOException("Corrupted compressed document");
+    }
+    ByteBuffer index = this.readFully(indexOffset, 4 * blockCount);
+    this.blockOffsets = new long[blockCount + 1];
+    this.blockOffsets[0] = HEADER_SIZE;
+    for (int i = 0; i < blockCount; i++) {
+      this.blockOffsets[i + 1] = this.blockOffsets[i] + index.getInt();
+    }
+    if (this.blockOffsets[blockCount] != indexOffset) {
+      throw new IOException("Corrupted compressed document");
+    }
+  }
+
+  /**
+   * Opens a compressed document for reading.
+   *
+   * @param file
+   *   The compressed document
+   *
+   * @return the opened document, it must be closed
+   */
+  @NonNull
+  static CompressedFile open(@NonNull File file) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      return new CompressedFile(randomAccessFile);
+    } catch (IOException e) {
+      randomAccessFile.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @return whether a file is a compressed document, from its name
+   */
+  static boolean isCompressed(@NonNull File file) {
+    return file.getName().endsWith(SUFFIX) && (file.getName().length() > SUFFIX.length());
+  }
+
+  /**
+   * @return the name of the document a file holds, without the suffix of a compressed document
+   */
+  @NonNull
+  static String getDocumentName(@NonNull File file) {
+    String name = file.getName();
+    return isCompressed(file) ? name.substring(0, name.length() - SUFFIX.length()) : name;
+  }
+
+  /**
+   * Reads the size of the content of a compressed document from its trailer.
+   *
+   * @param file
+   *   The compressed document
+   *
+   * @return the size, in bytes, of the content
+   */
+  static long getContentSize(@NonNull File file) throws IOException {
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+      long length = randomAccessFile.length();
+      if (length < (HEADER_SIZE + TRAILER_SIZE)) {
+        throw new IOException("Not a compressed document");
+      }
+      randomAccessFile.seek(length - TRAILER_SIZE);
+      return randomAccessFile.readLong();
+    }
+  }
+
+  /**
+   * Compresses content into a file, replacing it.
+   *
+   * @param in
+   *   The content, it's read to its end but not closed
+   * @param target
+   *   The file to write the compressed document to
+   */
+  static void compress(@NonNull InputStream in, @NonNull File target) throws IOException {
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    try (DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream(new FileOutputStream(target)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(BLOCK_SIZE);
+      byte[] block = new byte[BLOCK_SIZE];
+      byte[] buffer = new byte[BLOCK_SIZE];
+      int[] lengths = new int[16];
+      int blockCount = 0;
+      long size = 0;
+      long offset = HEADER_SIZE;
+      int count;
+      while ((count = readBlock(in, block)) > 0) {
+        deflater.reset();
+        deflater.setInput(block, 0, count);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+          int deflated = deflater.deflate(buffer);
+          out.write(buffer, 0, deflated);
+          length += deflated;
+        }
+        if (blockCount == lengths.length) {
+          lengths = Arrays.copyOf(lengths, blockCount * 2);
+        }
+        lengths[blockCount++] = length;
+        size += count;
+        offset += length;
+      }
+      for (int i = 0; i < blockCount; i++) {
+        out.writeInt(lengths[i]);
+      }
+      out.writeLong(size);
+      out.writeLong(offset);
+      out.writeInt(blockCount);
+      out.writeInt(MAGIC);
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Fills a block with content, unless the content ends first.
+   *
+   * @return the number of bytes read, 0 at the end of the content
+   */
+  private static int readBlock(@NonNull InputStream in, @NonNull byte[] block) throws IOException {
+    int count = 0;
+    int read;
+    while ((count < block.length) && ((read = in.read(block, count, block.length - count)) >= 0)) {
+      count += read;
+    }
+    return count;
+  }
+
+  /**
+   * @return the size, in bytes, of the content
+   */
+  long size() {
+    return this.size;
+  }
+
+  /**
+   * Reads content at a given position, inflating only the blocks the range spans.
+   *
+   * @param position
+   *   The position of the first byte to read in the content
+   * @param buffer
+   *   The buffer the content is read into
+   * @param offset
+   *   The offset in the buffer of the first byte read
+   * @param length
+   *   The maximum number of bytes to read
+   *
+   * @return the number of bytes read, or -1 if the position is at the end of the content
+   */
+  synchronized int read(long position, @NonNull byte[] buffer, int offset, int length)
+    throws IOException {
+    if (position >= this.size) {
+      return -1;
+    }
+    int count = 0;
+    while ((count < length) && ((position + count) < this.size)) {
+      long current = position + count;
+      int blockIndex = (int) (current / BLOCK_SIZE);
+      this.inflateBlock(blockIndex);
+      int start = (int) (current - ((long) blockIndex * BLOCK_SIZE));
+      int copied = Math.min(this.cachedLength - start, length - count);
+      System.arraycopy(this.block, start, buffer, offset + count, copied);
+      count += copied;
+    }
+    return count;
+  }
+
+  /**
+   * Writes the content to a stream, from a given position to its end.
+   *
+   * @param position
+   *   The position of the first byte to write
+   * @param out
+   *   The stream, it's not closed
+   */
+  void copyTo(long position, @NonNull OutputStream out) throws IOException {
+    byte[] buffer = new byte[BLOCK_SIZE];
+    int count;
+    while ((count = this.read(position, buffer, 0, buffer.length)) > 0) {
+      out.write(buffer, 0, count);
+      position += count;
+    }
+  }
+
+  /**
+   * Gets a stream over the content, from a given position to its end. Closing it doesn't close the
+   * document.
+   *
+   * @param position
+   *   The position of the first byte of the stream
+   *
+   * @return the stream
+   */
+  @NonNull
+  InputStream newInputStream(final long position) {
+    return new InputStream() {
+      private long next = position;
+
+      @Override
+      public int read() throws IOException {
+        byte[] single = new byte[1];
+        return (this.read(single, 0, 1) < 0) ? -1 : (single[0] & 0xFF);
+      }
+
+      @Override
+      public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+          return 0;
+        }
+        int count = CompressedFile.this.read(this.next, buffer, offset, length);
+        if (count > 0) {
+          this.next += count;
+        }
+        return count;
+      }
+    };
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    this.inflater.end();
+    this.file.close();
+  }
+
+  private void inflateBlock(int blockIndex) throws IOException {
+    if (blockIndex == this.cachedBlock) {
+      return;
+    }
+    long start = this.blockOffsets[blockIndex];
+    int length = (int) (this.blockOffsets[blockIndex + 1] - start);
+    if (this.compressed.length < length) {
+      this.compressed = new byte[length];
+    }
+    ByteBuffer compressedBuffer = ByteBuffer.wrap(this.compressed, 0, length);
+    while (compressedBuffer.hasRemaining()) {
+      if (this.channel.read(compressedBuffer, start + compressedBuffer.position()) < 0) {
+        throw new EOFException("Truncated compressed document");
+      }
+    }
+    this.cachedBlock = -1;
+    this.inflater.reset();
+    this.inflater.setInput(this.compressed, 0, length);
+    int inflated = 0;
+    try {
+      while (!this.inflater.finished() && (inflated < this.block.length)) {
+        int count = this.inflater.inflate(this.block, inflated, this.block.length - inflated);
+        if ((count == 0) && (this.inflater.needsInput() || this.inflater.needsDictionary())) {
+          break;
+        }
+        inflated += count;
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupted block " + blockIndex, e);
+    }
+    long expected = Math.min(BLOCK_SIZE, this.size - ((long) blockIndex * BLOCK_SIZE));
+    if (inflated != expected) {
+      throw new IOException("Corrupted block " + blockIndex);
+    }
+    this.cachedBlock = blockIndex;
+    this.cachedLength = inflated;
+  }
+
+  @NonNull
+  private ByteBuffer readFully(long position, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if ((position < 0) || (this.channel.read(buffer, position + buffer.position()) < 0)) {
+        throw new EOFException("Truncated compressed document");
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+}
@@ -0,0 +1,322 @@
+/*
+ * DirectoryCache.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.provider;
+
+import android.os.FileObserver;
+import android.provider.DocumentsContract.Document;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.webkit.MimeTypeMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An in-memory cache of directory listings.
+ * <p/>
+ * A directory is listed, and each of its children stat-ed, the first time it's queried. The
+ * listing is then served from memory until a {@link FileObserver} watching the directory reports a
+ * change in it, so browsing a directory again costs no I/O at all. Sorted copies of a listing are
+ * kept per sort order, for the same reason.
+ * <p/>
+ * This class is thread safe.
+ */
+final class DirectoryCache {
+
+  /**
+   * The events that change a directory listing. {@link FileObserver#MODIFY} is left out since it
+   * fires on every write, the change is picked up once the file is closed instead.
+   */
+  private static final int EVENTS = FileObserver.CREATE | FileObserver.DELETE |
+                                    FileObserver.MOVED_FROM | FileObserver.MOVED_TO |
+                                    FileObserver.CLOSE_WRITE | FileObserver.ATTRIB |
+                                    FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+  private final Map<String, Listing> listings = new HashMap<>();
+  private final Listener listener;
+
+  /**
+   * @param listener
+   *   Notified when a cached listing is invalidated, or null
+   */
+  DirectoryCache(@Nullable Listener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Lists the children of a directory.
+   *
+   * @param directory
+   *   The directory to list
+   * @param sortOrder
+   *   The order of the entries, as a SQL ORDER BY clause over the
+   *   {@link android.provider.DocumentsContract.Document} columns, or null for the directory order
+   *
+   * @return the entries of the directory children, it must not be modified
+   */
+  @NonNull
+  synchronized Entry[] list(@NonNull File directory, @Nullable String sortOrder) {
+    String path = directory.getAbsolutePath();
+    Listing listing = this.listings.get(path);
+    if (listing == null) {
+      listing = new Listing(path);
+      this.listings.put(path, listing);
+    }
+    if (sortOrder == null) {
+      return listing.entries;
+    }
+    Entry[] sorted = listing.sorted.get(sortOrder);
+    if (sorted == null) {
+      sorted = listing.entries.clone();
+      Arrays.sort(sorted, new EntryComparator(sortOrder));
+      listing.sorted.put(sortOrder, sorted);
+    }
+    return sorted;
+  }
+
+  /**
+   * Drops the cached listing of a directory.
+   *
+   * @return true if the directory had a cached listing, the listener was then notified
+   */
+  boolean invalidate(@NonNull File directory) {
+    return this.invalidate(directory.getAbsolutePath());
+  }
+
+  /**
+   * Drops every cached listing and stops watching their directories.
+   */
+  synchronized void clear() {
+    for (Listing listing : this.listings.values()) {
+      listing.observer.stopWatching();
+    }
+    this.listings.clear();
+  }
+
+  private boolean invalidate(@NonNull String path) {
+    synchronized (this) {
+      Listing listing = this.listings.remove(path);
+      if (listing == null) {
+        return false;
+      }
+      // Before API 29, the observers of a path share a single watch. Once the lock is released, a
+      // new listing may start watching the path, which stopping this observer would then undo.
+      listing.observer.stopWatching();
+    }
+    if (this.listener != null) {
+      this.listener.onDirectoryChanged(new File(path));
+    }
+    return true;
+  }
+
+  /**
+   * Receives the invalidation of the cached listings.
+   */
+  interface Listener {
+
+    /**
+     * Invoked, on the observer thread, when a cached directory changed.
+     *
+     * @param directory
+     *   The directory that changed
+     */
+    void onDirectoryChanged(@NonNull File directory);
+  }
+
+  /**
+   * The metadata of a file, as it was when it was last read from the file system.
+   */
+  static final class Entry {
+
+    final File file;
+    /**
+     * The name of the document, without the suffix of a compressed document.
+     */
+    final String name;
+    final String mimeType;
+    final long size;
+    final long lastModified;
+    final int flags;
+
+    Entry(@NonNull File file,
+          @NonNull String mimeType,
+          long size,
+          long lastModified,
+          int flags) {
+      this.file = file;
+      this.name = CompressedFile.getDocumentName(file);
+      this.mimeType = mimeType;
+      this.size = size;
+      this.lastModified = lastModified;
+      this.flags = flags;
+    }
+
+    /**
+     * Reads the metadata of a file.
+     */
+    @NonNull
+    static Entry of(@NonNull File file) {
+      boolean directory = file.isDirectory();
+      return new Entry(file,
+                       directory ? Document.MIME_TYPE_DIR :
+                       getMimeType(CompressedFile.getDocumentName(file)),
+                       directory ? 0 : getSize(file),
+                       file.lastModified(),
+                       TextDocumentsProvider.getFlagsForFile(file));
+    }
+
+    /**
+     * Gets the size of the content of a file, which is not the size of a compressed document.
+     */
+    private static long getSize(@NonNull File file) {
+      if (CompressedFile.isCompressed(file)) {
+        try {
+          return CompressedFile.getContentSize(file);
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+      return file.length();
+    }
+
+    private static String getMimeType(@NonNull String name) {
+      int dot = name.lastIndexOf('.');
+      if (dot >= 0) {
+        String mimeType = MimeTypeMap.getSingleton()
+                                     .getMimeTypeFromExtension(
+                                       name.substring(dot + 1).toLowerCase(Locale.US));
+        if (mimeType != null) {
+          return mimeType;
+        }
+      }
+      return "application/octet-stream";
+    }
+  }
+
+  /**
+   * The cached listing of a directory, along with the observer that invalidates it.
+   */
+  private final class Listing {
+
+    final Entry[] entries;
+    final Map<String, Entry[]> sorted = new HashMap<>();
+    final FileObserver observer;
+
+    Listing(@NonNull final String path) {
+      // The observer must be watching before the directory is listed, or a change happening in
+      // between would be missed.
+      this.observer = new FileObserver(path, EVENTS) {
+        @Override
+        public void onEvent(int event, String child) {
+          DirectoryCache.this.invalidate(path);
+        }
+      };
+      this.observer.startWatching();
+      File[] files = new File(path).listFiles();
+      if (files == null) {
+        files = new File[0];
+      }
+      Set<String> names = new HashSet<>();
+      for (File file : files) {
+        names.add(file.getName());
+      }
+      List<Entry> entries = new ArrayList<>(files.length);
+      for (File file : files) {
+        // A document being compressed briefly has both its plain and its compressed files, only
+        // the latter is listed since it's the one that stays.
+        if (!CompressedFile.isCompressed(file) &&
+            names.contains(file.getName() + CompressedFile.SUFFIX)) {
+          continue;
+        }
+        entries.add(Entry.of(file));
+      }
+      this.entries = entries.toArray(new Entry[entries.size()]);
+    }
+  }
+
+  /**
+   * Compares entries according to a SQL ORDER BY clause, such as "_display_name ASC" or
+   * "last_modified DESC, _size". Unknown columns are ignored.
+   */
+  private static final class EntryComparator implements Comparator<Entry> {
+
+    private final String[] columns;
+    private final boolean[] descending;
+
+    EntryComparator(@NonNull String sortOrder) {
+      String[] terms = sortOrder.split(",");
+      this.columns = new String[terms.length];
+      this.descending = new boolean[terms.length];
+      for (int i = 0; i < terms.length; i++) {
+        String[] words = terms[i].trim().split("\\s+");
+        this.columns[i] = words[0];
+        this.descending[i] = (words.length > 1) && words[1].equalsIgnoreCase("DESC");
+      }
+    }
+
+    @Override
+    public int compare(Entry lhs, Entry rhs) {
+      for (int i = 0; i < this.columns.length; i++) {
+        int result = compare(this.columns[i], lhs, rhs);
+        if (result != 0) {
+          return this.descending[i] ? -result : result;
+        }
+      }
+      return 0;
+    }
+
+    private static int compare(@NonNull String column, @NonNull Entry lhs, @NonNull Entry rhs) {
+      switch (column) {
+        case Document.COLUMN_DISPLAY_NAME:
+          return lhs.name.compareToIgnoreCase(rhs.name);
+        case Document.COLUMN_SIZE:
+          return compare(lhs.size, rhs.size);
+        case Document.COLUMN_LAST_MODIFIED:
+          return compare(lhs.lastModified, rhs.lastModified);
+        case Document.COLUMN_MIME_TYPE:
+          return lhs.mimeType.compareTo(rhs.mimeType);
+        case Document.COLUMN_FLAGS:
+          return compare(lhs.flags, rhs.flags);
+        default:
+          return 0;
+      }
+    }
+
+    private static int compare(long lhs, long rhs) {
+      return (lhs < rhs) ? -1 : ((lhs == rhs) ? 0 : 1);
+    }
+  }
+}
@@ -0,0 +1,463 @@
+/*
+ * DocumentIndex.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.provider;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.provider.DocumentsContract.Document;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A persistent index of the documents of the provider, stored in an application private SQLite
+ * database.
+ * <p/>
+ * Each file is given a numeric ID the first time it's seen, which then stays the same for as long
+ * as the file exists, renames included. The index also holds the metadata of each file, so
+ * resolving an ID or querying a document is a primary key lookup rather than a walk of the file
+ * system.
+ * <p/>
+ * The index is reconciled with the file system by scans running in the background, one directory
+ * at a time. A scan only writes the rows of the files that changed since the last one. A file that
+ * disappeared while a file of the same type, size and modification time appeared in the same
+ * directory is considered renamed and keeps its ID. The scans read the directories through a
+ * {@link DirectoryCache}, whose observers then trigger the scans of the directories that change.
+ * <p/>
+ * The text documents that changed since the last scan are also indexed in a {@link SearchIndex},
+ * in the same database.
+ * <p/>
+ * This class is thread safe.
+ */
+final class DocumentIndex extends SQLiteOpenHelper {
+
+  private static final String TAG = DocumentIndex.class.getSimpleName();
+  private static final String DATABASE_NAME = "documents.db";
+  private static final int DATABASE_VERSION = 2;
+  private static final String TABLE_DOCUMENTS = "documents";
+  private static final String COLUMN_ID = "_id";
+  private static final String COLUMN_PATH = "path";
+  private static final String COLUMN_PARENT_ID = "parent_id";
+  private static final String COLUMN_NAME = "name";
+  private static final String COLUMN_MIME_TYPE = "mime_type";
+  private static final String COLUMN_SIZE = "size";
+  private static final String COLUMN_LAST_MODIFIED = "last_modified";
+  private static final String COLUMN_FLAGS = "flags";
+  /**
+   * The modification time of the file when its content was last indexed, or -1.
+   */
+  private static final String COLUMN_CONTENT_MODIFIED = "content_modified";
+  static final String TEXT_MIME_TYPE = "text/plain";
+  /**
+   * The maximum number of documents a search returns.
+   */
+  private static final int MAX_SEARCH_RESULTS = 50;
+  private static final String[] ENTRY_PROJECTION = new String[]{
+    COLUMN_ID,
+    COLUMN_PATH,
+    COLUMN_MIME_TYPE,
+    COLUMN_SIZE,
+    COLUMN_LAST_MODIFIED,
+    COLUMN_FLAGS
+  };
+  private static final ExecutorService EXECUTOR =
+    Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(@NonNull Runnable r) {
+        Thread thread = new Thread(r, TAG);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+  private final DirectoryCache directoryCache;
+
+  DocumentIndex(@NonNull Context context, @NonNull DirectoryCache directoryCache) {
+    super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    this.directoryCache = directoryCache;
+  }
+
+  @Override
+  public void onConfigure(SQLiteDatabase db) {
+    // Let the provider queries read while a scan is writing.
+    db.enableWriteAheadLogging();
+  }
+
+  @Override
+  public void onCreate(SQLiteDatabase db) {
+    db.execSQL("CREATE TABLE " + TABLE_DOCUMENTS + " (" +
+               COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+               COLUMN_PATH + " TEXT NOT NULL UNIQUE, " +
+               COLUMN_PARENT_ID + " INTEGER, " +
+               COLUMN_NAME + " TEXT NOT NULL, " +
+               COLUMN_MIME_TYPE + " TEXT NOT NULL, " +
+               COLUMN_SIZE + " INTEGER NOT NULL, " +
+               COLUMN_LAST_MODIFIED + " INTEGER NOT NULL, " +
+               COLUMN_FLAGS + " INTEGER NOT NULL, " +
+               COLUMN_CONTENT_MODIFIED + " INTEGER NOT NULL DEFAULT -1)");
+    db.execSQL("CREATE INDEX " + TABLE_DOCUMENTS + "_" + COLUMN_PARENT_ID + " ON " +
+               TABLE_DOCUMENTS + " (" + COLUMN_PARENT_ID + ")");
+    SearchIndex.onCreate(db, TABLE_DOCUMENTS, COLUMN_ID);
+  }
+
+  @Override
+  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    // The index only caches the file system, it's simply rebuilt.
+    SearchIndex.onDrop(db);
+    db.execSQL("DROP TABLE IF EXISTS " + TABLE_DOCUMENTS);
+    this.onCreate(db);
+  }
+
+  /**
+   * Gets the ID of a file, indexing it if needed.
+   *
+   * @param file
+   *   An existing file
+   *
+   * @return the ID of the file
+   */
+  long getId(@NonNull File file) {
+    String path = file.getAbsolutePath();
+    long id = this.findId(path);
+    if (id < 0) {
+      SQLiteDatabase db = this.getWritableDatabase();
+      id = db.insertWithOnConflict(TABLE_DOCUMENTS, null,
+                                   this.toValues(DirectoryCache.Entry.of(file)),
+                                   SQLiteDatabase.CONFLICT_IGNORE);
+      if (id < 0) {
+        // Indexed by a scan in the meantime.
+        id = this.findId(path);
+      }
+    }
+    return id;
+  }
+
+  /**
+   * Gets the metadata of an indexed file.
+   *
+   * @param id
+   *   The ID of the file
+   *
+   * @return the metadata of the file, or null if no file has this ID
+   */
+  @Nullable
+  DirectoryCache.Entry getEntry(long id) {
+    try (Cursor cursor = this.getReadableDatabase()
+                             .query(TABLE_DOCUMENTS, ENTRY_PROJECTION, COLUMN_ID + " = ?",
+                                    new String[]{Long.toString(id)}, null, null, null)) {
+      if (cursor.moveToFirst()) {
+        return toEntry(cursor);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Gets the IDs of the indexed children of a directory.
+   *
+   * @param directory
+   *   The directory
+   *
+   * @return the IDs of the children, by name
+   */
+  @NonNull
+  Map<String, Long> getChildIds(@NonNull File directory) {
+    Map<String, Long> ids = new HashMap<>();
+    long parentId = this.findId(directory.getAbsolutePath());
+    if (parentId >= 0) {
+      try (Cursor cursor = this.getReadableDatabase()
+                               .query(TABLE_DOCUMENTS, new String[]{COLUMN_ID, COLUMN_NAME},
+                                      COLUMN_PARENT_ID + " = ?",
+                                      new String[]{Long.toString(parentId)}, null, null, null)) {
+        while (cursor.moveToNext()) {
+          ids.put(cursor.getString(1), cursor.getLong(0));
+        }
+      }
+    }
+    return ids;
+  }
+
+  /**
+   * Searches the indexed text documents.
+   *
+   * @param query
+   *   The query, each of its words must prefix a word of a document, or of its name
+   *
+   * @return the metadata of the matching documents by ID, most recently modified first
+   */
+  @NonNull
+  Map<Long, DirectoryCache.Entry> search(@NonNull String query) {
+    Map<Long, DirectoryCache.Entry> results = new LinkedHashMap<>();
+    List<String> selectionArgs = new ArrayList<>();
+    String selection = SearchIndex.buildSelection(query, COLUMN_ID, selectionArgs);
+    if (selection != null) {
+      try (Cursor cursor = this.getReadableDatabase()
+                               .query(TABLE_DOCUMENTS, ENTRY_PROJECTION, selection,
+                                      selectionArgs.toArray(new String[selectionArgs.size()]),
+                                      null, null, COLUMN_LAST_MODIFIED + " DESC",
+                                      Integer.toString(MAX_SEARCH_RESULTS))) {
+        while (cursor.moveToNext()) {
+          results.put(cursor.getLong(0), toEntry(cursor));
+        }
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Records that a file was renamed or moved, so it keeps its ID.
+   *
+   * @param id
+   *   The ID of the file
+   * @param target
+   *   The new location of the file
+   */
+  void move(long id, @NonNull File target) {
+    SQLiteDatabase db = this.getWritableDatabase();
+    db.beginTransaction();
+    try {
+      DirectoryCache.Entry entry = this.getEntry(id);
+      if (entry != null) {
+        this.move(db, id, entry.file.getAbsolutePath(), DirectoryCache.Entry.of(target));
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Reconciles the index with a directory in the background.
+   *
+   * @param directory
+   *   The directory to scan
+   * @param recursive
+   *   Whether its subdirectories are scanned as well
+   */
+  void scanInBackground(@NonNull final File directory, final boolean recursive) {
+    EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          DocumentIndex.this.scan(directory, recursive);
+        } catch (RuntimeException e) {
+          // The index is rebuilt by the next scan, it's not worth crashing the provider.
+          e.printStackTrace();
+        }
+      }
+    });
+  }
+
+  /**
+   * Reconciles the index with a directory.
+   *
+   * @param recursive
+   *   Whether every subdirectory is scanned as well. The new ones always are.
+   */
+  private void scan(@NonNull File directory, boolean recursive) {
+    if (!directory.isDirectory()) {
+      return;
+    }
+    DirectoryCache.Entry[] entries = this.directoryCache.list(directory, null);
+    long parentId = this.getId(directory);
+    Map<String, DirectoryCache.Entry> indexed = new HashMap<>();
+    Map<String, Long> ids = new HashMap<>();
+    try (Cursor cursor = this.getReadableDatabase()
+                             .query(TABLE_DOCUMENTS, ENTRY_PROJECTION, COLUMN_PARENT_ID + " = ?",
+                                    new String[]{Long.toString(parentId)}, null, null, null)) {
+      while (cursor.moveToNext()) {
+        DirectoryCache.Entry entry = toEntry(cursor);
+        indexed.put(entry.name, entry);
+        ids.put(entry.name, cursor.getLong(0));
+      }
+    }
+    List<File> subdirectories = new ArrayList<>();
+    List<DirectoryCache.Entry> added = new ArrayList<>();
+    SQLiteDatabase db = this.getWritableDatabase();
+    db.beginTransaction();
+    try {
+      for (DirectoryCache.Entry entry : entries) {
+        DirectoryCache.Entry previous = indexed.remove(entry.name);
+        if (previous == null) {
+          added.add(entry);
+        } else {
+          if (!isSame(previous, entry)) {
+            db.update(TABLE_DOCUMENTS, this.toValues(entry), COLUMN_ID + " = ?",
+                      new String[]{Long.toString(ids.get(entry.name))});
+          }
+          if (recursive && isDirectory(entry)) {
+            subdirectories.add(entry.file);
+          }
+        }
+      }
+      for (DirectoryCache.Entry entry : added) {
+        DirectoryCache.Entry renamed = null;
+        for (Iterator<DirectoryCache.Entry> it = indexed.values().iterator(); it.hasNext(); ) {
+          DirectoryCache.Entry candidate = it.next();
+          if (isSame(candidate, entry)) {
+            renamed = candidate;
+            it.remove();
+            break;
+          }
+        }
+        if (renamed != null) {
+          this.move(db, ids.get(renamed.name), renamed.file.getAbsolutePath(), entry);
+        } else {
+          db.insertWithOnConflict(TABLE_DOCUMENTS, null, this.toValues(entry),
+                                  SQLiteDatabase.CONFLICT_IGNORE);
+        }
+        if (isDirectory(entry)) {
+          subdirectories.add(entry.file);
+        }
+      }
+      for (DirectoryCache.Entry removed : indexed.values()) {
+        String path = removed.file.getAbsolutePath();
+        db.delete(TABLE_DOCUMENTS, COLUMN_PATH + " = ? OR substr(" + COLUMN_PATH + ", 1, ?) = ?",
+                  new String[]{path, Integer.toString(path.length() + 1), path + '/'});
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+    this.indexContents(parentId);
+    for (File subdirectory : subdirectories) {
+      this.scan(subdirectory, recursive);
+    }
+  }
+
+  /**
+   * Indexes the contents of the text documents of a directory that changed since they were last
+   * indexed. Each document is indexed in its own transaction, so the queries aren't held back.
+   */
+  private void indexContents(long parentId) {
+    List<Long> ids = new ArrayList<>();
+    List<String> paths = new ArrayList<>();
+    List<Long> lastModifieds = new ArrayList<>();
+    try (Cursor cursor = this.getReadableDatabase()
+                             .query(TABLE_DOCUMENTS,
+                                    new String[]{COLUMN_ID, COLUMN_PATH, COLUMN_LAST_MODIFIED},
+                                    COLUMN_PARENT_ID + " = ? AND " + COLUMN_MIME_TYPE +
+                                    " = ? AND " + COLUMN_CONTENT_MODIFIED + " != " +
+                                    COLUMN_LAST_MODIFIED,
+                                    new String[]{Long.toString(parentId), TEXT_MIME_TYPE},
+                                    null, null, null)) {
+      while (cursor.moveToNext()) {
+        ids.add(cursor.getLong(0));
+        paths.add(cursor.getString(1));
+        lastModifieds.add(cursor.getLong(2));
+      }
+    }
+    SQLiteDatabase db = this.getWritableDatabase();
+    for (int i = 0; i < ids.size(); i++) {
+      db.beginTransaction();
+      try {
+        SearchIndex.index(db, ids.get(i), new File(paths.get(i)));
+        ContentValues values = new ContentValues(1);
+        values.put(COLUMN_CONTENT_MODIFIED, lastModifieds.get(i));
+        db.update(TABLE_DOCUMENTS, values, COLUMN_ID + " = ?",
+                  new String[]{Long.toString(ids.get(i))});
+        db.setTransactionSuccessful();
+      } catch (IOException e) {
+        // The file vanished or can't be read, the next scan takes care of it.
+        e.printStackTrace();
+      } finally {
+        db.endTransaction();
+      }
+    }
+  }
+
+  /**
+   * Moves the row of a file, and those of its descendants if it's a directory.
+   */
+  private void move(@NonNull SQLiteDatabase db, long id, @NonNull String from,
+                    @NonNull DirectoryCache.Entry target) {
+    ContentValues values = this.toValues(target);
+    // The name is part of the indexed terms.
+    values.put(COLUMN_CONTENT_MODIFIED, -1L);
+    db.update(TABLE_DOCUMENTS, values, COLUMN_ID + " = ?", new String[]{Long.toString(id)});
+    String to = target.file.getAbsolutePath();
+    db.execSQL("UPDATE " + TABLE_DOCUMENTS + " SET " + COLUMN_PATH + " = ? || substr(" +
+               COLUMN_PATH + ", ?) WHERE substr(" + COLUMN_PATH + ", 1, ?) = ?",
+               new Object[]{to, from.length() + 1, from.length() + 1, from + '/'});
+  }
+
+  private long findId(@NonNull String path) {
+    try (Cursor cursor = this.getReadableDatabase()
+                             .query(TABLE_DOCUMENTS, new String[]{COLUMN_ID}, COLUMN_PATH + " = ?",
+                                    new String[]{path}, null, null, null)) {
+      return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+    }
+  }
+
+  @NonNull
+  private ContentValues toValues(@NonNull DirectoryCache.Entry entry) {
+    ContentValues values = new ContentValues(7);
+    File parent = entry.file.getParentFile();
+    values.put(COLUMN_PATH, entry.file.getAbsolutePath());
+    values.put(COLUMN_PARENT_ID, (parent != null) ? this.findId(parent.getAbsolutePath()) : -1);
+    values.put(COLUMN_NAME, entry.name);
+    values.put(COLUMN_MIME_TYPE, entry.mimeType);
+    values.put(COLUMN_SIZE, entry.size);
+    values.put(COLUMN_LAST_MODIFIED, entry.lastModified);
+    values.put(COLUMN_FLAGS, entry.flags);
+    return values;
+  }
+
+  @NonNull
+  private static DirectoryCache.Entry toEntry(@NonNull Cursor cursor) {
+    return new DirectoryCache.Entry(new File(cursor.getString(1)),
+                                    cursor.getString(2),
+                                    cursor.getLong(3),
+                                    cursor.getLong(4),
+                                    cursor.getInt(5));
+  }
+
+  private static boolean isDirectory(@NonNull DirectoryCache.Entry entry) {
+    return Document.MIME_TYPE_DIR.equals(entry.mimeType);
+  }
+
+  private static boolean isSame(@NonNull DirectoryCache.Entry lhs,
+                                @NonNull DirectoryCache.Entry rhs) {
+    return lhs.mimeType.equals(rhs.mimeType) && (lhs.size == rhs.size) &&
+           (lhs.lastModified == rhs.lastModified) && (lhs.flags == rhs.flags);
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * DocumentPipe.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.provider;
+
+import android.os.ParcelFileDescriptor;
+import android.support.annotation.NonNull;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Streams generated content to a client through a pipe.
+ * <p/>
+ * The content is written on a background thread into the write end of a reliable pipe while the
+ * client reads the other end. A pipe only buffers a few kilobytes, so the writer blocks whenever
+ * the client falls behind and the provider never holds more than a buffer of the content. The pipe
+ * being reliable, a failure of the writer reaches the client as an error when it reads the end of
+ * the stream, rather than as a silently truncated content.
+ */
+final class DocumentPipe {
+
+  private static final String TAG = DocumentPipe.class.getSimpleName();
+  /**
+   * The writers run on their own threads, a client that stops reading must not hold back the
+   * others.
+   */
+  private static final ExecutorService EXECUTOR =
+    Executors.newCachedThreadPool(new ThreadFactory() {
+      @Override
+      public Thread newThread(@NonNull Runnable r) {
+        Thread thread = new Thread(r, TAG);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+  private DocumentPipe() {
+  }
+
+  /**
+   * Opens a pipe and starts writing content into it.
+   *
+   * @param writer
+   *   Writes the content
+   *
+   * @return the read end of the pipe, to be handed over to the client
+   */
+  @NonNull
+  static ParcelFileDescriptor open(@NonNull final Writer writer) throws IOException {
+    ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createReliablePipe();
+    final ParcelFileDescriptor output = pipe[1];
+    EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          // The stream doesn't own the descriptor, it must stay open until the outcome is known.
+          writer.writeTo(new FileOutputStream(output.getFileDescriptor()));
+          output.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+          try {
+            output.closeWithError(e.getMessage());
+          } catch (IOException closeException) {
+            // The client went away.
+            closeException.printStackTrace();
+          }
+        }
+      }
+    });
+    return pipe[0];
+  }
+
+  /**
+   * Writes the content of a pipe.
+   */
+  interface Writer {
+
+    /**
+     * Invoked on a background thread to write the content.
+     *
+     * @param out
+     *   The write end of the pipe. It's closed once this method returns, it must not be closed
+     *   by the writer.
+     */
+    void writeTo(@NonNull OutputStream out) throws IOException;
+  }
+}
@@ -0,0 +1,247 @@
+/*
+ * SearchIndex.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.provider;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.NonNull;
+
+import com.bleushan.laboratoire1.document.CharsetDetector;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A full-text inverted index of the document contents, stored alongside the {@link DocumentIndex}
+ * tables.
+ * <p/>
+ * Each distinct term of a document is stored once, with the ID of the document, in a table whose
+ * primary key is the term. Finding the documents that contain a term, or a term prefix, is then a
+ * range scan of that key, and no document is read at query time. Terms are runs of letters and
+ * digits, lower-cased and stripped of their accents, so searching "ete" finds
+ * "&Eacute;t&eacute;".
+ * <p/>
+ * This class is not meant to be instantiated, its methods run in the {@link DocumentIndex}
+ * transactions.
+ */
+final class SearchIndex {
+
+  /**
+   * The maximum length of a term, longer runs are cut.
+   */
+  static final int MAX_TERM_LENGTH = 64;
+  /**
+   * The maximum number of distinct terms indexed for a single document.
+   */
+  static final int MAX_TERMS = 65536;
+  private static final String TABLE_POSTINGS = "postings";
+  private static final String COLUMN_TERM = "term";
+  private static final String COLUMN_DOCUMENT_ID = "document_id";
+  private static final int BUFFER_SIZE = 8192;
+
+  private SearchIndex() {
+  }
+
+  /**
+   * Creates the index tables. The postings of a document are deleted along with its row.
+   *
+   * @param documentsTable
+   *   The name of the documents table
+   * @param idColumn
+   *   The name of the ID column of the documents table
+   */
+  static void onCreate(@NonNull SQLiteDatabase db,
+                       @NonNull String documentsTable,
+                       @NonNull String idColumn) {
+    db.execSQL("CREATE TABLE " + TABLE_POSTINGS + " (" +
+               COLUMN_TERM + " TEXT NOT NULL, " +
+               COLUMN_DOCUMENT_ID + " INTEGER NOT NULL, " +
+               "PRIMARY KEY (" + COLUMN_TERM + ", " + COLUMN_DOCUMENT_ID + "))");
+    db.execSQL("CREATE INDEX " + TABLE_POSTINGS + "_" + COLUMN_DOCUMENT_ID + " ON " +
+               TABLE_POSTINGS + " (" + COLUMN_DOCUMENT_ID + ")");
+    db.execSQL("CREATE TRIGGER " + TABLE_POSTINGS + "_cleanup AFTER DELETE ON " + documentsTable +
+               " BEGIN DELETE FROM " + TABLE_POSTINGS + " WHERE " + COLUMN_DOCUMENT_ID + " = old." +
+               idColumn + "; END");
+  }
+
+  /**
+   * Drops the index tables.
+   */
+  static void onDrop(@NonNull SQLiteDatabase db) {
+    db.execSQL("DROP TABLE IF EXISTS " + TABLE_POSTINGS);
+  }
+
+  /**
+   * Replaces the postings of a document with the terms of a file. The file is decoded with the
+   * charset a {@link CharsetDetector} finds in it, and is never held on the heap as a whole.
+   *
+   * @param id
+   *   The ID of the document
+   * @param file
+   *   The document file
+   */
+  static void index(@NonNull SQLiteDatabase db, long id, @NonNull File file) throws IOException {
+    Set<String> terms = new HashSet<>();
+    addTerms(CompressedFile.getDocumentName(file), terms);
+    if (CompressedFile.isCompressed(file)) {
+      try (CompressedFile compressed = CompressedFile.open(file)) {
+        byte[] sample = new byte[CharsetDetector.SAMPLE_SIZE];
+        int length = Math.max(0, compressed.read(0, sample, 0, sample.length));
+        Charset charset = CharsetDetector.detect(ByteBuffer.wrap(sample, 0, length),
+                                                 length < compressed.size())
+                                         .getCharset();
+        addTerms(new InputStreamReader(compressed.newInputStream(0), charset), terms);
+      }
+    } else {
+      try (FileInputStream in = new FileInputStream(file)) {
+        Charset charset = CharsetDetector.detect(in.getChannel()).getCharset();
+        addTerms(new InputStreamReader(in, charset), terms);
+      }
+    }
+    String[] whereArgs = new String[]{Long.toString(id)};
+    db.delete(TABLE_POSTINGS, COLUMN_DOCUMENT_ID + " = ?", whereArgs);
+    ContentValues values = new ContentValues(2);
+    for (String term : terms) {
+      values.put(COLUMN_TERM, term);
+      values.put(COLUMN_DOCUMENT_ID, id);
+      db.insertWithOnConflict(TABLE_POSTINGS, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+    }
+  }
+
+  /**
+   * Adds the terms of a text, until there are {@link #MAX_TERMS} of them. The decoder replaces
+   * malformed input, and a byte order mark isn't a letter.
+   */
+  private static void addTerms(@NonNull Reader reader, @NonNull Set<String> terms)
+    throws IOException {
+    char[] buffer = new char[BUFFER_SIZE];
+    StringBuilder term = new StringBuilder(MAX_TERM_LENGTH);
+    int count;
+    while (((count = reader.read(buffer)) >= 0) && (terms.size() < MAX_TERMS)) {
+      addTerms(buffer, count, term, terms);
+    }
+    endTerm(term, terms);
+  }
+
+  /**
+   * Builds the selection of the documents matching a query. Each word of the query must prefix a
+   * term of the document.
+   *
+   * @param query
+   *   The query, as typed by the user
+   * @param idColumn
+   *   The name of the ID column of the documents table
+   * @param selectionArgs
+   *   Receives the arguments of the selection
+   *
+   * @return the selection over the documents table, or null if the query has no word
+   */
+  static String buildSelection(@NonNull String query,
+                               @NonNull String idColumn,
+                               @NonNull List<String> selectionArgs) {
+    Set<String> words = new HashSet<>();
+    addTerms(query, words);
+    if (words.isEmpty()) {
+      return null;
+    }
+    StringBuilder selection = new StringBuilder(idColumn).append(" IN (");
+    List<String> args = new ArrayList<>(words.size() * 2);
+    for (String word : words) {
+      if (!args.isEmpty()) {
+        selection.append(" INTERSECT ");
+      }
+      selection.append("SELECT ").append(COLUMN_DOCUMENT_ID).append(" FROM ")
+               .append(TABLE_POSTINGS).append(" WHERE ").append(COLUMN_TERM).append(" >= ? AND ")
+               .append(COLUMN_TERM).append(" < ?");
+      char last = word.charAt(word.length() - 1);
+      args.add(word);
+      args.add(word.substring(0, word.length() - 1) + (char) (last + 1));
+    }
+    selectionArgs.addAll(args);
+    return selection.append(')').toString();
+  }
+
+  private static void addTerms(@NonNull String text, @NonNull Set<String> terms) {
+    StringBuilder term = new StringBuilder(MAX_TERM_LENGTH);
+    addTerms(text.toCharArray(), text.length(), term, terms);
+    endTerm(term, terms);
+  }
+
+  /**
+   * Splits chars into terms. A term may span several calls, it's kept in a builder until a char
+   * that isn't a letter or a digit ends it.
+   */
+  private static void addTerms(@NonNull char[] chars,
+                               int count,
+                               @NonNull StringBuilder term,
+                               @NonNull Set<String> terms) {
+    for (int i = 0; i < count; i++) {
+      char c = chars[i];
+      if (Character.isLetterOrDigit(c)) {
+        if (term.length() < MAX_TERM_LENGTH) {
+          term.append(c);
+        }
+      } else {
+        endTerm(term, terms);
+      }
+    }
+  }
+
+  private static void endTerm(@NonNull StringBuilder term, @NonNull Set<String> terms) {
+    if (term.length() > 0) {
+      terms.add(normalize(term));
+      term.setLength(0);
+    }
+  }
+
+  /**
+   * Lower-cases a term and strips its accents.
+   */
+  @NonNull
+  private static String normalize(@NonNull CharSequence term) {
+    String decomposed = Normalizer.normalize(term, Normalizer.Form.NFD);
+    StringBuilder normalized = new StringBuilder(decomposed.length());
+    for (int i = 0; i < decomposed.length(); i++) {
+      char c = decomposed.charAt(i);
+      if (Character.getType(c) != Character.NON_SPACING_MARK) {
+        normalized.append(Character.toLowerCase(c));
+      }
+    }
+    return normalized.toString();
+  }
+}
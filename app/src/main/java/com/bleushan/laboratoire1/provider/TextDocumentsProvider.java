@@ -27,25 +27,51 @@
 
 package com.bleushan.laboratoire1.provider;
 
+import android.content.ClipDescription;
+import android.content.ContentResolver;
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Bundle;
 import android.os.CancellationSignal;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
 import android.provider.DocumentsContract.Document;
 import android.provider.DocumentsContract.Root;
 import android.provider.DocumentsProvider;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.webkit.MimeTypeMap;
 
 import com.bleushan.laboratoire1.R;
+import com.bleushan.laboratoire1.document.CharsetDetector;
+import com.bleushan.laboratoire1.document.DocumentCache;
+import com.bleushan.laboratoire1.utils.Metric;
+import com.bleushan.laboratoire1.utils.OperationLog;
 
-import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * A subclass of {@link DocumentsProvider} that provides access to text document represented as
@@ -54,11 +80,14 @@ import java.io.IOException;
  * <p/>
  * This implementation is heavily inspired, at times copied, from the
  * <a href="http://bit.ly/1KTocwr">StorageProvider</a> sample code. It, therefore, inherits some of
- * its quirks. For example: we don't, yet, index our documents or store document metadata in a
- * database. The reason being that our documents are file based the querying the filesystem
- * directly fits most of our needs. The main improvement a database could provide is an easier
- * file indexing mechanism and a "cleaner" way to query the documents metadata at the cost of a
- * more complicated codebase.
+ * its quirks, though the document IDs and metadata now live in a {@link DocumentIndex} database
+ * rather than being derived from the file paths. This keeps the IDs stable across renames and
+ * turns most queries into indexed lookups. The index is kept up to date by background scans.
+ * <p/>
+ * Documents can be stored as {@link CompressedFile}s, which the clients never see: they read the
+ * inflated content through a pipe, write to an inflated copy that's compressed back once they're
+ * done, and the size reported is the one of the content. The documents written through the
+ * provider are compressed when the {@code provider.compress} resource is set.
  *
  * @see Environment#getExternalStoragePublicDirectory(String)
  * @see Environment#DIRECTORY_DOCUMENTS
@@ -102,18 +131,64 @@ public class TextDocumentsProvider extends DocumentsProvider {
    * @see android.provider.DocumentsContract.Root#COLUMN_ROOT_ID
    */
   private static final String ROOT_ID = "textdocument";
+  /**
+   * The authority of the provider, as declared in the manifest.
+   */
+  private static final String AUTHORITY = "com.bleushan.laboratoire1.documents";
+  /**
+   * Compresses the documents written by the clients, one at a time.
+   */
+  private static final ExecutorService COMPRESSION_EXECUTOR =
+    Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(@NonNull Runnable r) {
+        Thread thread = new Thread(r, TAG);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
 
   /**
-   * The operation log buffered file writer. The file is located in the cache directory of the
-   * application.
+   * The process-wide operation log. Its file is located in the cache directory of the application.
    *
    * @see Context#getCacheDir()
    */
-  private BufferedWriter logFileWriter;
+  private OperationLog operationLog;
   /**
    * The document provider root directory.
    */
   private File rootDir;
+  /**
+   * The cached listings of the directories browsed so far.
+   */
+  private DirectoryCache directoryCache;
+  /**
+   * The index of the document IDs and metadata.
+   */
+  private DocumentIndex documentIndex;
+  /**
+   * The handler on which the close listeners of the write descriptors are invoked.
+   */
+  private Handler closeHandler;
+  /**
+   * Whether the documents written by the clients are compressed.
+   */
+  private boolean compressDocuments;
+  /**
+   * The directory holding the inflated copies of the compressed documents open for writing.
+   */
+  private File stagingDir;
+  /**
+   * The directory the documents are compressed in before they replace the stored ones, or null if
+   * there's no external cache. It's outside the root, so the clients never list a document half
+   * compressed.
+   */
+  private File compressionDir;
+  /**
+   * The clients writing to the plain documents. A plain document is only replaced by its
+   * compressed version if no client opened it for writing while it was being compressed.
+   */
+  private final Map<File, WriteState> writeStates = new HashMap<>();
 
   /**
    * Helper method to resolve the root projection.
@@ -155,7 +230,7 @@ public class TextDocumentsProvider extends DocumentsProvider {
    *
    * @return the flags for the file
    */
-  private static int getFlagsForFile(File file) {
+  static int getFlagsForFile(File file) {
     int flags = 0;
     if ((file != null) && file.canWrite()) {
       if (file.isDirectory()) {
@@ -163,6 +238,7 @@ public class TextDocumentsProvider extends DocumentsProvider {
       } else {
         flags |= Document.FLAG_SUPPORTS_WRITE;
         flags |= Document.FLAG_SUPPORTS_DELETE;
+        flags |= Document.FLAG_SUPPORTS_RENAME;
       }
     }
     return flags;
@@ -171,53 +247,201 @@ public class TextDocumentsProvider extends DocumentsProvider {
   @Override
   public boolean onCreate() {
     this.rootDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOCUMENTS);
-    File logFile = new File(this.getContext().getCacheDir().getPath() + "/log.txt");
-    try {
-      this.logFileWriter = new BufferedWriter(new FileWriter(logFile, true));
-    } catch (IOException e) {
-      e.printStackTrace();
-      return false;
-    }
+    this.operationLog = OperationLog.getInstance(this.getContext());
+    this.closeHandler = new Handler(Looper.getMainLooper());
+    this.compressDocuments = this.getContext().getResources().getBoolean(R.bool.provider_compress);
+    this.stagingDir = new File(this.getContext().getCacheDir(), "staging");
+    // The external cache is usually on the same volume as the root, the documents can be moved
+    // from there.
+    File externalCacheDir = this.getContext().getExternalCacheDir();
+    this.compressionDir = (externalCacheDir != null) ? new File(externalCacheDir, "compression") :
+                          null;
+    // Tell the clients browsing a directory to query it again once its cached listing is dropped,
+    // and bring the index up to date with the change.
+    this.directoryCache = new DirectoryCache(new DirectoryCache.Listener() {
+      @Override
+      public void onDirectoryChanged(@NonNull File directory) {
+        TextDocumentsProvider.this.documentIndex.scanInBackground(directory, false);
+        TextDocumentsProvider.this.notifyChildDocumentsChanged(directory);
+      }
+    });
+    this.documentIndex = new DocumentIndex(this.getContext(), this.directoryCache);
     // We ensure that the root directory exist with this return statement.
-    return (this.rootDir.mkdirs() || this.rootDir.isDirectory());
+    if (this.rootDir.mkdirs() || this.rootDir.isDirectory()) {
+      // Catch up with the changes made while the provider wasn't running.
+      this.documentIndex.scanInBackground(this.rootDir, true);
+      return true;
+    }
+    return false;
   }
 
   @Override
   public Cursor queryRoots(String[] projection) throws FileNotFoundException {
-    // Create a cursor and define its columns.
-    MatrixCursor result = new MatrixCursor(resolveRootProjection(projection));
-    // Build the single root cursor row supported by the app and add all the values for the  column
-    // given by the document contract. Also, we don't need to use conditionals since columns not
-    // defined by the cursor are ignored.
-    result.newRow()
-          .add(Root.COLUMN_ROOT_ID, ROOT_ID)
-          .add(Root.COLUMN_MIME_TYPES, MimeTypeMap.getSingleton().getMimeTypeFromExtension("txt"))
-          .add(Root.COLUMN_FLAGS, Root.FLAG_SUPPORTS_CREATE)
-          .add(Root.COLUMN_ICON, R.mipmap.ic_launcher)
-          .add(Root.COLUMN_TITLE, this.getContext().getString(R.string.app_name))
-          .add(Root.COLUMN_SUMMARY,
-               this.getContext().getString(R.string.app_provider_textdocument_rootsummary))
-          .add(Root.COLUMN_DOCUMENT_ID, this.getDocID(this.rootDir))
-          .add(Root.COLUMN_AVAILABLE_BYTES, this.rootDir.getUsableSpace());
-    return result;
+    long start = System.nanoTime();
+    try {
+      // Create a cursor and define its columns.
+      MatrixCursor result = new MatrixCursor(resolveRootProjection(projection));
+      // Build the single root cursor row supported by the app and add all the values for the
+      // column given by the document contract. Also, we don't need to use conditionals since
+      // columns not defined by the cursor are ignored.
+      result.newRow()
+            .add(Root.COLUMN_ROOT_ID, ROOT_ID)
+            .add(Root.COLUMN_MIME_TYPES, MimeTypeMap.getSingleton().getMimeTypeFromExtension("txt"))
+            .add(Root.COLUMN_FLAGS, Root.FLAG_SUPPORTS_CREATE | Root.FLAG_SUPPORTS_SEARCH |
+                                    Root.FLAG_SUPPORTS_RECENTS)
+            .add(Root.COLUMN_ICON, R.mipmap.ic_launcher)
+            .add(Root.COLUMN_TITLE, this.getContext().getString(R.string.app_name))
+            .add(Root.COLUMN_SUMMARY,
+                 this.getContext().getString(R.string.app_provider_textdocument_rootsummary))
+            .add(Root.COLUMN_DOCUMENT_ID, this.getDocID(this.rootDir))
+            .add(Root.COLUMN_AVAILABLE_BYTES, this.rootDir.getUsableSpace());
+      return result;
+    } finally {
+      Metric.PROVIDER_QUERY_ROOTS.recordSince(start);
+    }
   }
 
   @Override
   public Cursor queryDocument(String documentId, String[] projection) throws FileNotFoundException {
-    return this.getCursorForQuery(documentId, projection);
+    long start = System.nanoTime();
+    try {
+      return this.getCursorForQuery(documentId, projection);
+    } finally {
+      Metric.PROVIDER_QUERY_DOCUMENT.recordSince(start);
+    }
   }
 
   @Override
   public Cursor queryChildDocuments(String parentDocumentId, String[] projection, String sortOrder)
     throws FileNotFoundException {
-    return this.getCursorForQuery(parentDocumentId, projection);
+    long start = System.nanoTime();
+    try {
+      File parent = this.getFile(parentDocumentId);
+      MatrixCursor result = new MatrixCursor(resolveDocumentProjection(projection));
+      Map<String, Long> ids = this.documentIndex.getChildIds(parent);
+      for (DirectoryCache.Entry entry : this.directoryCache.list(parent, sortOrder)) {
+        Long id = ids.get(entry.name);
+        if (id == null) {
+          id = this.documentIndex.getId(entry.file);
+        }
+        this.includeEntry(result, ROOT_ID + ':' + id, entry);
+      }
+      result.setNotificationUri(this.getContext().getContentResolver(),
+                                DocumentsContract.buildChildDocumentsUri(AUTHORITY,
+                                                                         parentDocumentId));
+      return result;
+    } finally {
+      Metric.PROVIDER_QUERY_CHILD_DOCUMENTS.recordSince(start);
+    }
+  }
+
+  @Override
+  public Cursor querySearchDocuments(String rootId, String query, String[] projection)
+    throws FileNotFoundException {
+    long start = System.nanoTime();
+    try {
+      MatrixCursor result = new MatrixCursor(resolveDocumentProjection(projection));
+      // The search only reads the index, documents that weren't scanned yet aren't found.
+      Map<Long, DirectoryCache.Entry> matches = this.documentIndex.search(query);
+      for (Map.Entry<Long, DirectoryCache.Entry> match : matches.entrySet()) {
+        this.includeEntry(result, ROOT_ID + ':' + match.getKey(), match.getValue());
+      }
+      return result;
+    } finally {
+      Metric.PROVIDER_QUERY_SEARCH_DOCUMENTS.recordSince(start);
+    }
+  }
+
+  @Override
+  public Cursor queryRecentDocuments(String rootId, String[] projection)
+    throws FileNotFoundException {
+    long start = System.nanoTime();
+    try {
+      MatrixCursor result = new MatrixCursor(resolveDocumentProjection(projection));
+      // The documents recently opened by the app, as tracked by its document cache. Only the ones
+      // stored under the root directory belong to this provider.
+      String rootPath = this.rootDir.getAbsolutePath() + '/';
+      for (Uri uri : DocumentCache.getInstance().getRecentUris()) {
+        File file = this.getRecentFile(uri);
+        if ((file != null) && file.getAbsolutePath().startsWith(rootPath)) {
+          long id = this.documentIndex.getId(file);
+          DirectoryCache.Entry entry = this.documentIndex.getEntry(id);
+          if (entry != null) {
+            this.includeEntry(result, ROOT_ID + ':' + id, entry);
+          }
+        }
+      }
+      return result;
+    } finally {
+      Metric.PROVIDER_QUERY_RECENT_DOCUMENTS.recordSince(start);
+    }
   }
 
   @Override
   public ParcelFileDescriptor openDocument(String documentId,
                                            String mode,
                                            CancellationSignal signal) throws FileNotFoundException {
-    return null;
+    final File file = this.getFile(documentId);
+    if (file.isDirectory()) {
+      throw new FileNotFoundException(documentId + " is a directory");
+    }
+    final long id = getIndexId(documentId);
+    int accessMode = ParcelFileDescriptor.parseMode(mode);
+    boolean isReadOnly = ((accessMode & ParcelFileDescriptor.MODE_WRITE_ONLY) == 0);
+    try {
+      if (CompressedFile.isCompressed(file)) {
+        // The content is inflated on the fly for the readers, the writers get an inflated copy.
+        return isReadOnly ? DocumentPipe.open(new InflatingWriter(file, false)) :
+               this.openStaged(id, file, accessMode);
+      }
+      // The client gets a descriptor to the file itself, nothing goes through the provider.
+      if (isReadOnly) {
+        return ParcelFileDescriptor.open(file, accessMode);
+      }
+      return this.openPlainForWriting(documentId, id, accessMode);
+    } catch (IOException e) {
+      e.printStackTrace();
+      throw new FileNotFoundException("Unable to open " + documentId + " in mode " + mode);
+    }
+  }
+
+  /**
+   * Opens a text document as UTF-8 encoded "text/plain" content. A document that already is UTF-8
+   * is handed out as is, the others are transcoded on the fly through a pipe.
+   */
+  @Override
+  public AssetFileDescriptor openTypedDocument(String documentId,
+                                               String mimeTypeFilter,
+                                               Bundle opts,
+                                               CancellationSignal signal)
+    throws FileNotFoundException {
+    File file = this.getFile(documentId);
+    DirectoryCache.Entry entry = this.documentIndex.getEntry(getIndexId(documentId));
+    if ((entry == null) || !DocumentIndex.TEXT_MIME_TYPE.equals(entry.mimeType) ||
+        !ClipDescription.compareMimeTypes(DocumentIndex.TEXT_MIME_TYPE, mimeTypeFilter)) {
+      return super.openTypedDocument(documentId, mimeTypeFilter, opts, signal);
+    }
+    try {
+      if (CompressedFile.isCompressed(file)) {
+        return new AssetFileDescriptor(DocumentPipe.open(new InflatingWriter(file, true)),
+                                       0, AssetFileDescriptor.UNKNOWN_LENGTH);
+      }
+      CharsetDetector.Result detected;
+      try (FileInputStream in = new FileInputStream(file)) {
+        detected = CharsetDetector.detect(in.getChannel());
+      }
+      if (detected.getCharset().equals(CharsetDetector.UTF_8) &&
+          (detected.getByteOrderMarkLength() == 0)) {
+        ParcelFileDescriptor pfd = ParcelFileDescriptor.open(file,
+                                                             ParcelFileDescriptor.MODE_READ_ONLY);
+        return new AssetFileDescriptor(pfd, 0, AssetFileDescriptor.UNKNOWN_LENGTH);
+      }
+      return new AssetFileDescriptor(DocumentPipe.open(new Utf8Transcoder(file, detected)),
+                                     0, AssetFileDescriptor.UNKNOWN_LENGTH);
+    } catch (IOException e) {
+      e.printStackTrace();
+      throw new FileNotFoundException("Unable to open " + documentId + " as " + mimeTypeFilter);
+    }
   }
 
   @Override
@@ -231,14 +455,29 @@ public class TextDocumentsProvider extends DocumentsProvider {
     super.deleteDocument(documentId);
   }
 
+  @Override
+  public String renameDocument(String documentId, String displayName)
+    throws FileNotFoundException {
+    File file = this.getFile(documentId);
+    // A compressed document stays compressed.
+    File target = new File(file.getParentFile(),
+                           CompressedFile.isCompressed(file) ? displayName + CompressedFile.SUFFIX :
+                           displayName);
+    if (target.exists() || !file.renameTo(target)) {
+      throw new FileNotFoundException("Unable to rename " + documentId + " to " + displayName);
+    }
+    this.documentIndex.move(getIndexId(documentId), target);
+    this.directoryCache.invalidate(file.getParentFile());
+    this.operationLog.log(displayName, "File renamed from " + file.getName());
+    // The document keeps its ID.
+    return null;
+  }
+
   /**
    * Gets the document ID for a given File object.
    * <p/>
-   * This implementation is copied/inspired from the
-   * <a href="http://bit.ly/1KTocwr">StorageProvider</a> sample code. Therefore it has the same
-   * flaws. Ideally, you would store the filepath and the document ID in key-value pair fashion a
-   * database. This would help ensure that the document ID is unique and consistent and probably be
-   * easier to query.
+   * The ID is the one the file was given in the {@link DocumentIndex}, the file is indexed on the
+   * spot if the background scan didn't reach it yet.
    *
    * @param file
    *   The File whose document ID you want
@@ -248,49 +487,54 @@ public class TextDocumentsProvider extends DocumentsProvider {
    * @see TextDocumentsProvider#queryDocument(String, String[])
    */
   private String getDocID(@NonNull File file) {
-    String path = file.getAbsolutePath();
-    String rootPath = this.rootDir.getPath();
-    if (this.rootDir.getPath().equals(path)) {
-      path = "";
-    } else if (rootPath.endsWith("/")) {
-      path = path.substring(rootPath.length());
-    } else {
-      path = path.substring(rootPath.length() + 1);
-    }
-    return ROOT_ID + ':' + path;
+    return ROOT_ID + ':' + this.documentIndex.getId(file);
   }
 
   /**
    * Gets the File object for a given document ID.
    * <p/>
-   * This implementation is copied/inspired from the
-   * <a href="http://bit.ly/1KTocwr">StorageProvider</a> sample code. Therefore it has the same
-   * flaws. Ideally, you would store the filepath and the document ID in key-value pair fashion a
-   * database. This would help ensure that the document ID is unique and consistent and probably be
-   * easier to query.
+   * This is an indexed lookup in the {@link DocumentIndex}, the file system isn't accessed.
    *
    * @param documentId
-   *   the File whose document ID you want
+   *   The document ID of the File you want
    *
-   * @return the corresponding document ID
+   * @return the corresponding File
    *
+   * @throws FileNotFoundException
+   *   if no document has this ID
    * @see TextDocumentsProvider#queryDocument(String, String[])
    */
   private File getFile(@NonNull String documentId) throws FileNotFoundException {
-    File target = this.rootDir;
     if (documentId.equals(ROOT_ID)) {
-      return target;
+      return this.rootDir;
     }
+    DirectoryCache.Entry entry = this.documentIndex.getEntry(getIndexId(documentId));
+    if (entry == null) {
+      throw new FileNotFoundException("Missing file for " + documentId);
+    }
+    return entry.file;
+  }
+
+  /**
+   * Extracts the {@link DocumentIndex} ID of a document from its document ID.
+   *
+   * @param documentId
+   *   The document ID
+   *
+   * @return the index ID
+   *
+   * @throws FileNotFoundException
+   *   if the document ID is malformed
+   */
+  private static long getIndexId(@NonNull String documentId) throws FileNotFoundException {
     int splitIndex = documentId.indexOf(':', 1);
     if (splitIndex < 0) {
       throw new FileNotFoundException("Missing root for " + documentId);
-    } else {
-      String path = documentId.substring(splitIndex + 1);
-      target = new File(target, path);
-      if (!target.exists()) {
-        throw new FileNotFoundException("Missing file for " + documentId + " at " + target);
-      }
-      return target;
+    }
+    try {
+      return Long.parseLong(documentId.substring(splitIndex + 1));
+    } catch (NumberFormatException e) {
+      throw new FileNotFoundException("Malformed document ID " + documentId);
     }
   }
 
@@ -313,17 +557,434 @@ public class TextDocumentsProvider extends DocumentsProvider {
   private Cursor getCursorForQuery(String documentId, String[] projection)
     throws FileNotFoundException {
     MatrixCursor result = new MatrixCursor(resolveDocumentProjection(projection));
-    int flags = 0;
-    File document = this.getFile(documentId);
-    if ((document != null) && document.canWrite()) {
-      if (document.isDirectory()) {
-        flags |= Document.FLAG_DIR_SUPPORTS_CREATE;
-      } else {
-        flags |= Document.FLAG_SUPPORTS_WRITE;
-        flags |= Document.FLAG_SUPPORTS_DELETE;
-      }
+    DirectoryCache.Entry entry = documentId.equals(ROOT_ID)
+                                 ? DirectoryCache.Entry.of(this.rootDir)
+                                 : this.documentIndex.getEntry(getIndexId(documentId));
+    if (entry == null) {
+      throw new FileNotFoundException("Missing file for " + documentId);
     }
+    this.includeEntry(result, documentId, entry);
     return result;
+  }
+
+  /**
+   * Adds a row holding the metadata of a file to a document cursor.
+   *
+   * @param result
+   *   The cursor to add the row to
+   * @param documentId
+   *   The document ID of the file
+   * @param entry
+   *   The metadata of the file
+   */
+  private void includeEntry(@NonNull MatrixCursor result,
+                            @NonNull String documentId,
+                            @NonNull DirectoryCache.Entry entry) {
+    result.newRow()
+          .add(Document.COLUMN_DOCUMENT_ID, documentId)
+          .add(Document.COLUMN_MIME_TYPE, entry.mimeType)
+          .add(Document.COLUMN_DISPLAY_NAME, entry.name)
+          .add(Document.COLUMN_LAST_MODIFIED, entry.lastModified)
+          .add(Document.COLUMN_FLAGS, entry.flags)
+          .add(Document.COLUMN_SIZE, entry.size);
+  }
+
+  /**
+   * Notifies the clients that the children of a directory changed.
+   *
+   * @param directory
+   *   The directory whose children changed
+   */
+  private void notifyChildDocumentsChanged(@NonNull File directory) {
+    Context context = this.getContext();
+    if (context != null) {
+      context.getContentResolver()
+             .notifyChange(DocumentsContract.buildChildDocumentsUri(AUTHORITY,
+                                                                    this.getDocID(directory)),
+                           null);
+    }
+  }
+
+  /**
+   * Invoked once a client closed a document it opened for writing. Its cached listing and indexed
+   * metadata are refreshed, which also notifies the clients browsing its directory.
+   *
+   * @param file
+   *   The document file
+   * @param e
+   *   The error the client closed the descriptor with, or null
+   */
+  private void onDocumentWritten(@NonNull File file, IOException e) {
+    this.operationLog.log(file.getName(), (e == null) ? "File written" : "File write failed");
+    // The app would otherwise be served the text it cached before the write, the size and the
+    // modification time may not tell them apart.
+    for (Uri uri : DocumentCache.getInstance().getRecentUris()) {
+      if (file.equals(this.getRecentFile(uri))) {
+        DocumentCache.getInstance().invalidate(uri);
+      }
+    }
+    File parent = file.getParentFile();
+    // Dropping a cached listing rescans its directory, the others are rescanned here.
+    if ((parent != null) && !this.directoryCache.invalidate(parent)) {
+      this.documentIndex.scanInBackground(parent, false);
+      this.notifyChildDocumentsChanged(parent);
+    }
+  }
+
+  /**
+   * Resolves a document recently opened by the app to its file.
+   *
+   * @param uri
+   *   The document URI, as recorded by the {@link DocumentCache}
+   *
+   * @return the file of the document, or null if it isn't a file or doesn't exist anymore
+   */
+  @Nullable
+  private File getRecentFile(@NonNull Uri uri) {
+    if (ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+      File file = new File(uri.getPath());
+      return file.exists() ? file : null;
+    }
+    if (AUTHORITY.equals(uri.getAuthority())) {
+      try {
+        return this.getFile(DocumentsContract.getDocumentId(uri));
+      } catch (FileNotFoundException e) {
+        // The document was deleted since.
+        return null;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Opens an inflated copy of a compressed document for a client to write to. The copy is
+   * compressed back into the document once the client closes it.
+   *
+   * @param id
+   *   The index ID of the document
+   * @param file
+   *   The compressed document
+   * @param accessMode
+   *   The access mode the client asked for
+   *
+   * @return the descriptor of the copy
+   */
+  @NonNull
+  private ParcelFileDescriptor openStaged(final long id, @NonNull final File file, int accessMode)
+    throws IOException {
+    if (!this.stagingDir.mkdirs() && !this.stagingDir.isDirectory()) {
+      throw new IOException("Unable to create " + this.stagingDir);
+    }
+    final File staged = File.createTempFile("document", null, this.stagingDir);
+    // A truncated document doesn't need its content.
+    if ((accessMode & ParcelFileDescriptor.MODE_TRUNCATE) == 0) {
+      try (CompressedFile compressed = CompressedFile.open(file);
+           OutputStream out = new FileOutputStream(staged)) {
+        compressed.copyTo(0, out);
+      } catch (IOException e) {
+        deleteFile(staged);
+        throw e;
+      }
+    }
+    return ParcelFileDescriptor.open(staged, accessMode, this.closeHandler,
+                                     new ParcelFileDescriptor.OnCloseListener() {
+                                       @Override
+                                       public void onClose(IOException e) {
+                                         if (e == null) {
+                                           TextDocumentsProvider.this.compressInBackground(
+                                             id, staged, file);
+                                         } else {
+                                           deleteFile(staged);
+                                           TextDocumentsProvider.this.onDocumentWritten(file, e);
+                                         }
+                                       }
+                                     });
+  }
+
+  /**
+   * Opens a plain document for a client to write to. The document can't be replaced by its
+   * compressed version until the client closes it.
+   *
+   * @param documentId
+   *   The ID of the document
+   * @param id
+   *   The index ID of the document
+   * @param accessMode
+   *   The access mode the client asked for
+   *
+   * @return the descriptor of the document
+   */
+  @NonNull
+  private ParcelFileDescriptor openPlainForWriting(@NonNull String documentId,
+                                                   final long id,
+                                                   int accessMode) throws IOException {
+    synchronized (this.writeStates) {
+      // The document is resolved again under the lock, it may have been compressed since.
+      final File file = this.getFile(documentId);
+      if (CompressedFile.isCompressed(file)) {
+        return this.openStaged(id, file, accessMode);
+      }
+      ParcelFileDescriptor pfd =
+        ParcelFileDescriptor.open(file, accessMode, this.closeHandler,
+                                  new ParcelFileDescriptor.OnCloseListener() {
+                                    @Override
+                                    public void onClose(IOException e) {
+                                      TextDocumentsProvider.this.onPlainDocumentClosed(id, file, e);
+                                    }
+                                  });
+      WriteState state = this.writeStates.get(file);
+      if (state == null) {
+        state = new WriteState();
+        this.writeStates.put(file, state);
+      }
+      state.openCount++;
+      state.generation++;
+      return pfd;
+    }
+  }
+
+  /**
+   * Invoked once a client closed a plain document it opened for writing. The document is
+   * compressed if the provider compresses documents.
+   */
+  private void onPlainDocumentClosed(long id, @NonNull File file, IOException e) {
+    synchronized (this.writeStates) {
+      WriteState state = this.writeStates.get(file);
+      if ((state != null) && (--state.openCount == 0) && !this.compressDocuments) {
+        this.writeStates.remove(file);
+      }
+    }
+    File compressed = new File(file.getParentFile(), file.getName() + CompressedFile.SUFFIX);
+    // A document can't be compressed over another one that would have the same name.
+    if (this.compressDocuments && (e == null) && !compressed.exists()) {
+      this.compressInBackground(id, file, file);
+    } else {
+      this.onDocumentWritten(file, e);
+    }
+  }
 
+  /**
+   * Compresses content into a document in the background. A plain document is replaced by its
+   * compressed version, which keeps its ID, unless a client opened it for writing in the meantime.
+   * The client closing it then compresses it again.
+   *
+   * @param id
+   *   The index ID of the document
+   * @param source
+   *   The file holding the content, it's deleted once compressed
+   * @param document
+   *   The document file, compressed or not
+   */
+  private void compressInBackground(final long id,
+                                    @NonNull final File source,
+                                    @NonNull final File document) {
+    final boolean isPlain = source.equals(document);
+    final long generation;
+    synchronized (this.writeStates) {
+      WriteState state = this.writeStates.get(source);
+      generation = (state != null) ? state.generation : 0;
+    }
+    COMPRESSION_EXECUTOR.execute(new Runnable() {
+      @Override
+      public void run() {
+        File target = isPlain ? new File(document.getParentFile(),
+                                         document.getName() + CompressedFile.SUFFIX) : document;
+        File written = document;
+        File temp = null;
+        IOException error = null;
+        try {
+          temp = File.createTempFile("document", CompressedFile.SUFFIX,
+                                     TextDocumentsProvider.this.getCompressionDir());
+          try (InputStream in = new FileInputStream(source)) {
+            CompressedFile.compress(in, temp);
+          }
+          synchronized (TextDocumentsProvider.this.writeStates) {
+            if (!isPlain || TextDocumentsProvider.this.isUnchanged(source, generation)) {
+              moveFile(temp, target);
+              deleteFile(source);
+              if (isPlain) {
+                TextDocumentsProvider.this.writeStates.remove(source);
+                TextDocumentsProvider.this.documentIndex.move(id, target);
+              }
+              written = target;
+            }
+          }
+        } catch (IOException e) {
+          e.printStackTrace();
+          error = e;
+          // The content of a plain document is still there, the one of a copy is lost.
+          if (!isPlain) {
+            deleteFile(source);
+          }
+        } finally {
+          if (temp != null) {
+            deleteFile(temp);
+          }
+        }
+        final File writtenFile = written;
+        final IOException writeError = error;
+        TextDocumentsProvider.this.closeHandler.post(new Runnable() {
+          @Override
+          public void run() {
+            TextDocumentsProvider.this.onDocumentWritten(writtenFile, writeError);
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Tells whether a plain document is neither open for writing nor was opened for writing since a
+   * given generation. It must be called with the write states locked.
+   */
+  private boolean isUnchanged(@NonNull File file, long generation) {
+    WriteState state = this.writeStates.get(file);
+    return (state == null) || ((state.openCount == 0) && (state.generation == generation));
+  }
+
+  /**
+   * @return the directory to compress the documents in
+   */
+  @NonNull
+  private File getCompressionDir() throws IOException {
+    File dir = this.stagingDir;
+    if ((this.compressionDir != null) &&
+        (this.compressionDir.mkdirs() || this.compressionDir.isDirectory())) {
+      dir = this.compressionDir;
+    }
+    if (!dir.mkdirs() && !dir.isDirectory()) {
+      throw new IOException("Unable to create " + dir);
+    }
+    return dir;
+  }
+
+  /**
+   * Moves a file over another one at once. A file on another volume is first copied next to its
+   * target.
+   */
+  private static void moveFile(@NonNull File file, @NonNull File target) throws IOException {
+    if (file.renameTo(target)) {
+      return;
+    }
+    File copy = new File(target.getParentFile(), "." + target.getName() + ".tmp");
+    try {
+      try (InputStream in = new FileInputStream(file);
+           OutputStream out = new FileOutputStream(copy)) {
+        byte[] buffer = new byte[Utf8Transcoder.BUFFER_SIZE];
+        int count;
+        while ((count = in.read(buffer)) >= 0) {
+          out.write(buffer, 0, count);
+        }
+      }
+      if (!copy.renameTo(target)) {
+        throw new IOException("Unable to replace " + target);
+      }
+    } finally {
+      deleteFile(copy);
+    }
+  }
+
+  /**
+   * Deletes a file, or schedules its deletion if it can't be deleted right away.
+   */
+  private static void deleteFile(@NonNull File file) {
+    if (file.exists() && !file.delete()) {
+      file.deleteOnExit();
+    }
+  }
+
+  /**
+   * Copies a text as UTF-8, without its byte order mark.
+   *
+   * @param in
+   *   The text, past its byte order mark
+   * @param charset
+   *   The charset of the text
+   * @param out
+   *   The stream the UTF-8 text is written to, it's not closed
+   */
+  private static void transcode(@NonNull InputStream in,
+                                @NonNull Charset charset,
+                                @NonNull OutputStream out) throws IOException {
+    Reader reader = new InputStreamReader(in, charset);
+    Writer writer = new OutputStreamWriter(out, CharsetDetector.UTF_8);
+    char[] buffer = new char[Utf8Transcoder.BUFFER_SIZE];
+    int count;
+    while ((count = reader.read(buffer)) >= 0) {
+      writer.write(buffer, 0, count);
+    }
+    writer.flush();
+  }
+
+  /**
+   * The clients writing to a plain document.
+   */
+  private static final class WriteState {
+
+    /**
+     * The number of clients writing to the document.
+     */
+    int openCount;
+    /**
+     * The number of times the document was opened for writing.
+     */
+    long generation;
+  }
+
+  /**
+   * Writes the inflated content of a compressed document, optionally transcoded to UTF-8.
+   */
+  private static final class InflatingWriter implements DocumentPipe.Writer {
+
+    private final File file;
+    private final boolean isTranscoded;
+
+    InflatingWriter(@NonNull File file, boolean isTranscoded) {
+      this.file = file;
+      this.isTranscoded = isTranscoded;
+    }
+
+    @Override
+    public void writeTo(@NonNull OutputStream out) throws IOException {
+      try (CompressedFile compressed = CompressedFile.open(this.file)) {
+        if (this.isTranscoded) {
+          // Only the first block is inflated to detect the charset.
+          byte[] sample = new byte[CharsetDetector.SAMPLE_SIZE];
+          int length = Math.max(0, compressed.read(0, sample, 0, sample.length));
+          CharsetDetector.Result detected =
+            CharsetDetector.detect(ByteBuffer.wrap(sample, 0, length), length < compressed.size());
+          if (!detected.getCharset().equals(CharsetDetector.UTF_8) ||
+              (detected.getByteOrderMarkLength() > 0)) {
+            transcode(compressed.newInputStream(detected.getByteOrderMarkLength()),
+                      detected.getCharset(), out);
+            return;
+          }
+        }
+        compressed.copyTo(0, out);
+      }
+    }
+  }
+
+  /**
+   * Writes a text file as UTF-8, without its byte order mark.
+   */
+  private static final class Utf8Transcoder implements DocumentPipe.Writer {
+
+    private static final int BUFFER_SIZE = 8192;
+    private final File file;
+    private final CharsetDetector.Result detected;
+
+    Utf8Transcoder(@NonNull File file, @NonNull CharsetDetector.Result detected) {
+      this.file = file;
+      this.detected = detected;
+    }
+
+    @Override
+    public void writeTo(@NonNull OutputStream out) throws IOException {
+      try (FileInputStream in = new FileInputStream(this.file)) {
+        in.getChannel().position(this.detected.getByteOrderMarkLength());
+        transcode(in, this.detected.getCharset(), out);
+      }
+    }
   }
 }
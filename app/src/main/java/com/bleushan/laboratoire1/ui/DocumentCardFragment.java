@@ -28,6 +28,7 @@
 package com.bleushan.laboratoire1.ui;
 
 import android.app.Activity;
+import android.app.ActivityManager;
 import android.app.Fragment;
 import android.content.ContentResolver;
 import android.content.Context;
@@ -49,21 +50,39 @@ import android.view.ViewGroup;
 import android.webkit.MimeTypeMap;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.ListView;
+import android.widget.ProgressBar;
 
 import com.bleushan.laboratoire1.BuildConfig;
 import com.bleushan.laboratoire1.R;
+import com.bleushan.laboratoire1.document.ChangeTracker;
+import com.bleushan.laboratoire1.document.CharsetDetector;
+import com.bleushan.laboratoire1.document.DocumentCache;
+import com.bleushan.laboratoire1.document.DocumentLoader;
+import com.bleushan.laboratoire1.document.DocumentSpool;
+import com.bleushan.laboratoire1.document.DocumentWriter;
+import com.bleushan.laboratoire1.document.EditJournal;
+import com.bleushan.laboratoire1.document.InsufficientSpaceException;
+import com.bleushan.laboratoire1.document.LineIndex;
+import com.bleushan.laboratoire1.document.MappedText;
+import com.bleushan.laboratoire1.document.PagedText;
+import com.bleushan.laboratoire1.document.PieceTable;
+import com.bleushan.laboratoire1.document.SaveTask;
+import com.bleushan.laboratoire1.document.VersionStore;
+import com.bleushan.laboratoire1.utils.DescriptorAllocator;
+import com.bleushan.laboratoire1.utils.MainThreadExecutor;
 import com.bleushan.laboratoire1.utils.MemoryUnit;
+import com.bleushan.laboratoire1.utils.Metric;
+import com.bleushan.laboratoire1.utils.OperationLog;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel.MapMode;
-import java.nio.charset.CharacterCodingException;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
-import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * A {@link Fragment} subclass that represent a card view of a text document.
@@ -71,7 +90,11 @@ import java.util.Calendar;
  * fragment.
  */
 public class DocumentCardFragment extends Fragment implements OnClickListener, TextWatcher,
-                                                              OnFocusChangeListener {
+                                                              OnFocusChangeListener,
+                                                              DocumentLoader.Callback,
+                                                              SaveTask.Callback,
+                                                              VersionStore.ListCallback,
+                                                              VersionStore.RestoreCallback {
 
   /**
    * Request code constant that's passed for reading a document
@@ -81,21 +104,115 @@ public class DocumentCardFragment extends Fragment implements OnClickListener, T
    * Request code constant that's passed for creating a document
    */
   public static final int CREATE_CODE = 69;
+  /**
+   * Request code constant that's passed for recovering the unsaved document of a previous session
+   */
+  public static final int RECOVER_CODE = 7;
   private static final String ARG_REQUEST_CODE = "ARG_REQUEST_CODE";
+  private static final String ARG_URI = "ARG_URI";
+  private static final String ARG_JOURNAL = "ARG_JOURNAL";
   private static final String TAG = DocumentCardFragment.class.getSimpleName();
+  /**
+   * The maximum value of the save progress bar.
+   */
+  private static final int SAVE_PROGRESS_MAX = 1000;
+  /**
+   * The share of the application heap a document may take in the content text box. Only the
+   * documents above it are shown in the read-only paged viewer, any other one is edited.
+   */
+  private static final int VIEW_ONLY_HEAP_SHARE = 2;
+  /**
+   * The estimated size, in bytes, of the layout of a line of the content text box.
+   */
+  private static final int LAYOUT_LINE_SIZE = 32;
   private final File documentsDir =
     Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOCUMENTS);
   /**
-   * The charset used to read or write files
+   * The charset used to write the document. It's the one detected when the document was loaded, or
+   * the platform default for new documents.
    */
-  private final Charset charset = Charset.defaultCharset();
+  private Charset charset = Charset.defaultCharset();
   private EditText titleEditText;
   private EditText contentEditText;
-  private String initialFileContent = "";
+  private View contentInputLayout;
+  /**
+   * The list showing the pages of a document too big to be edited.
+   */
+  private ListView pagesListView;
+  /**
+   * The pages of the document, if it's too big to be edited.
+   */
+  private PagedText pagedText;
+  /**
+   * The document model. It holds the text of the content text box, which edits it through a
+   * {@link DocumentEditable}, so the original text is read from the file rather than the heap.
+   */
+  private PieceTable document = new PieceTable("");
+  /**
+   * Tracks whether the text box content differs from the document original text.
+   */
+  private ChangeTracker changeTracker = new ChangeTracker("");
+  /**
+   * The index of the lines of the text box content.
+   */
+  private LineIndex lineIndex = new LineIndex();
   private Button saveButton;
   private Uri fileUri;
   private boolean hasDocumentDir = false;
   private boolean isLoadingDocument = false;
+  /**
+   * The loader streaming the document content into the content text box, if one is running.
+   */
+  private DocumentLoader documentLoader;
+  /**
+   * The spool copying a document that can only be streamed, like a compressed one, into a file
+   * before it's loaded, if one is running.
+   */
+  private DocumentSpool documentSpool;
+  /**
+   * The recorded revisions of the document, latest first.
+   */
+  private List<VersionStore.Revision> revisions = Collections.emptyList();
+  /**
+   * The file descriptor the document is loaded from. It is kept open for as long as the fragment
+   * lives because the original text of the document is read from it on demand.
+   */
+  private ParcelFileDescriptor documentDescriptor;
+  /**
+   * The modification time of the document when it was opened, or -1 if unknown.
+   */
+  private long documentLastModified = -1;
+  /**
+   * The size, in bytes, of the document when it was opened, or -1 for a new document.
+   */
+  private long documentByteLength = -1;
+  /**
+   * When the document started loading, as returned by {@link System#nanoTime()}.
+   */
+  private long loadStartTime;
+  /**
+   * The journal of the unsaved edits.
+   */
+  private EditJournal journal;
+  /**
+   * The session being recovered, until its edits are applied to the document.
+   */
+  private EditJournal.Session recoveredSession;
+  /**
+   * The task saving the document, if one is running.
+   */
+  private SaveTask saveTask;
+  /**
+   * The file descriptor the document is being saved to.
+   */
+  private ParcelFileDescriptor saveDescriptor;
+  private String saveFileName;
+  private ProgressBar saveProgressBar;
+  /**
+   * The content of the text box while the view is destroyed, the fragment outlives its view across
+   * configuration changes.
+   */
+  private Editable retainedContent;
 
   public DocumentCardFragment() {
     // Required empty public constructor
@@ -111,28 +228,77 @@ public class DocumentCardFragment extends Fragment implements OnClickListener, T
    *
    * @param requestCode
    *   The request code to be passed along the intent
+   * @param journalName
+   *   The name of the directory, in the {@link #getJournalDirectory(Context)}, the edits are
+   *   journaled to
    *
    * @return A shiny new {@link DocumentCardFragment}
    *
    * @see DocumentCardFragment#READ_CODE
    * @see DocumentCardFragment#CREATE_CODE
    */
-  public static DocumentCardFragment newInstance(int requestCode) {
+  public static DocumentCardFragment newInstance(int requestCode, @NonNull String journalName) {
     Bundle bundle = new Bundle();
     DocumentCardFragment fragment = new DocumentCardFragment();
     bundle.putInt(ARG_REQUEST_CODE, requestCode);
+    bundle.putString(ARG_JOURNAL, journalName);
     fragment.setArguments(bundle);
     return fragment;
   }
 
+  /**
+   * Instantiate a document card fragment for a document that's already known, without going
+   * through the document picker.
+   *
+   * @param uri
+   *   The document to open
+   * @param journalName
+   *   The name of the directory, in the {@link #getJournalDirectory(Context)}, the edits are
+   *   journaled to
+   *
+   * @return A shiny new {@link DocumentCardFragment}
+   */
+  public static DocumentCardFragment newInstance(@NonNull Uri uri, @NonNull String journalName) {
+    Bundle bundle = new Bundle();
+    DocumentCardFragment fragment = new DocumentCardFragment();
+    bundle.putParcelable(ARG_URI, uri);
+    bundle.putString(ARG_JOURNAL, journalName);
+    fragment.setArguments(bundle);
+    return fragment;
+  }
+
+  /**
+   * Gets the directory holding the journals of the unsaved edits, one directory per card.
+   *
+   * @param context
+   *   The application context
+   *
+   * @return the journals directory, in the cache directory
+   */
+  public static File getJournalDirectory(@NonNull Context context) {
+    return new File(context.getCacheDir(), "journal");
+  }
+
   @Override
   public void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
+    // Keep the document, and the tasks loading or saving it, when the activity is recreated.
+    this.setRetainInstance(true);
     this.hasDocumentDir = (this.documentsDir.mkdirs() || this.documentsDir.isDirectory());
+    File journalDir = getJournalDirectory(this.getActivity());
     Bundle args = this.getArguments();
+    if ((args != null) && (args.getString(ARG_JOURNAL) != null)) {
+      journalDir = new File(journalDir, args.getString(ARG_JOURNAL));
+    }
+    this.journal = new EditJournal(journalDir);
     if (args != null) {
       int requestCode = args.getInt(ARG_REQUEST_CODE, 0);
-      if (requestCode == READ_CODE) {
+      if (requestCode == CREATE_CODE) {
+        this.journal.start(null, "", -1, -1);
+      } else if (requestCode == RECOVER_CODE) {
+        // The session is replayed once the view exists.
+        this.recoveredSession = EditJournal.recover(journalDir);
+      } else if (requestCode == READ_CODE) {
         Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
         intent.addCategory(Intent.CATEGORY_OPENABLE);
         // This sets the intent so that the document picker shows only *.txt files.
@@ -155,50 +321,109 @@ public class DocumentCardFragment extends Fragment implements OnClickListener, T
     }
     this.contentEditText = ((EditText) view.findViewById(R.id.document_content_edit_text));
     if (this.contentEditText != null) {
+      // A whole document may not fit in the saved state, the content is carried over from the
+      // previous text box instead. It's set before the watcher so it isn't mirrored again.
+      this.contentEditText.setSaveEnabled(false);
+      this.contentEditText.setEditableFactory(DocumentEditable.Factory.getInstance());
+      this.contentEditText.setText((this.retainedContent != null) ? this.retainedContent : "");
+      this.document = ((DocumentEditable) this.contentEditText.getText()).getDocument();
       this.contentEditText.addTextChangedListener(this);
     }
+    this.contentInputLayout = view.findViewById(R.id.document_content_til);
+    this.pagesListView = ((ListView) view.findViewById(R.id.document_pages));
+    this.saveProgressBar = ((ProgressBar) view.findViewById(R.id.document_save_progress));
     this.saveButton = ((Button) view.findViewById(R.id.document_save));
     if (this.saveButton != null) {
       this.saveButton.setOnClickListener(this);
     }
+    if (this.retainedContent != null) {
+      // The view is created again after a configuration change, the document is already open.
+      this.retainedContent = null;
+      if (this.contentEditText != null) {
+        this.contentEditText.setEnabled(!this.isLoadingDocument);
+      }
+      if (this.pagedText != null) {
+        this.showPages();
+      }
+      if (this.saveTask != null) {
+        this.setSaving(true);
+      }
+    } else if (this.recoveredSession != null) {
+      this.recoverSession(this.recoveredSession);
+    } else if ((this.fileUri == null) && (this.getArguments() != null)) {
+      // The card of a document that was evicted from the workspace, it's loaded again.
+      Uri uri = this.getArguments().getParcelable(ARG_URI);
+      if (uri != null) {
+        this.fileUri = uri;
+        if (this.titleEditText != null) {
+          this.titleEditText.setText(getFileName(uri));
+        }
+        this.openDocument(this.getActivity());
+      }
+    }
     return view;
   }
 
+  @Override
+  public void onDestroyView() {
+    if (this.contentEditText != null) {
+      this.retainedContent = this.contentEditText.getText();
+    }
+    super.onDestroyView();
+  }
+
   @Override
   public void onClick(View v) {
     switch (v.getId()) {
       case R.id.document_save:
+        // While saving, the save button cancels the save.
+        if (this.saveTask != null) {
+          this.saveTask.cancel();
+          break;
+        }
         if ((this.contentEditText != null) &&
-            (this.titleEditText != null)) {
+            (this.titleEditText != null) &&
+            (this.fileUri != null)) {
           String fileName = this.titleEditText.getText().toString();
           Activity activity = this.getActivity();
           if (activity != null) {
-            try (OutputStream out = activity.getContentResolver().openOutputStream(this.fileUri)) {
-              if (out != null) {
+            // Open the file in read-write mode so that only the changed bytes need to be written.
+            try {
+              ParcelFileDescriptor pfd =
+                activity.getContentResolver().openFileDescriptor(this.fileUri, "rw");
+              if (pfd != null) {
                 // Check if the uri is file://something because we create files using Java's raw
                 // file api. We should use the request code instead of this hack around.
                 // FIXME: Cleanup the fragment file management API.
                 if (this.fileUri.getScheme().equals(ContentResolver.SCHEME_FILE)) {
                   this.writeLog(fileName, "File created");
                 }
-                // Write the text box content to the file with the current fragment charset.
-                out.write(this.contentEditText.getText()
-                                              .toString()
-                                              .getBytes(this.charset));
-                this.writeLog(fileName, "File saved");
+                this.saveDescriptor = pfd;
+                this.saveFileName = fileName;
+                // Write the document changes to the file with the charset it was read with, in the
+                // background. The document must not change until the save is over.
+                DocumentWriter writer = new DocumentWriter(this.document,
+                                                           this.changeTracker,
+                                                           this.charset,
+                                                           activity.getCacheDir());
+                // Check and reserve the space the file needs before it's touched.
+                File file = this.fileUri.getScheme().equals(ContentResolver.SCHEME_FILE) ?
+                            new File(this.fileUri.getPath()) : null;
+                writer.setAllocator(new DescriptorAllocator(pfd.getFileDescriptor(), file));
+                this.saveTask =
+                  new SaveTask(writer,
+                               new FileOutputStream(pfd.getFileDescriptor()).getChannel(),
+                               MainThreadExecutor.getInstance());
+                this.setSaving(true);
+                this.saveTask.save(this);
               }
             } catch (IOException e) {
               e.printStackTrace();
-            } finally {
               this.writeLog(fileName, "File closed");
+              this.showError(R.string.app_error_filewrite);
             }
           }
         }
-        // Because, it's presented as a card, we remove the fragment from view.
-        this.getFragmentManager()
-            .beginTransaction()
-            .remove(this)
-            .commit();
         break;
     }
   }
@@ -210,8 +435,7 @@ public class DocumentCardFragment extends Fragment implements OnClickListener, T
       this.fileUri = data.getData();
       if (this.fileUri != null) {
         if (this.titleEditText != null) {
-          String fileName = this.fileUri.getLastPathSegment();
-          fileName = fileName.substring(fileName.lastIndexOf("/") + 1);
+          String fileName = getFileName(this.fileUri);
           this.titleEditText.setText(fileName);
           String message = null;
           if (requestCode == READ_CODE) {
@@ -224,60 +448,604 @@ public class DocumentCardFragment extends Fragment implements OnClickListener, T
             this.writeLog(fileName, message);
           }
         }
-        // Open a file descriptor to the Uri.
-        // Because we target KitKat or higher and we compile with Java 7, we can use
-        // try-with-resource statements. This will close the resource automatically.
+        this.openDocument(activity);
+      }
+    } else if (resultCode == Activity.RESULT_CANCELED) {
+      // Remove the fragment.
+      // Things got canceled so there's nothing to show.
+      this.removeCard();
+    }
+  }
+
+  /**
+   * @return the document of the card, or null if none was opened or saved yet
+   */
+  public Uri getDocumentUri() {
+    return this.fileUri;
+  }
+
+  /**
+   * @return the title of the document, possibly empty
+   */
+  @NonNull
+  public String getDocumentTitle() {
+    return this.getTitle();
+  }
+
+  /**
+   * @return the recorded revisions of the document, latest first
+   */
+  @NonNull
+  public List<VersionStore.Revision> getRevisions() {
+    return this.revisions;
+  }
+
+  /**
+   * Replaces the content of the text box with a revision of the document, in the background. The
+   * revision is restored as an edit, which is only written once the document is saved.
+   *
+   * @param index
+   *   The index of the revision, in {@link #getRevisions()}
+   */
+  public void restoreRevision(int index) {
+    Activity activity = this.getActivity();
+    if ((activity != null) && (this.contentEditText != null) && (this.pagedText == null) &&
+        !this.isLoadingDocument && (this.saveTask == null)) {
+      VersionStore.getInstance(activity).restore(this.revisions.get(index),
+                                                 MainThreadExecutor.getInstance(), this);
+    }
+  }
+
+  /**
+   * Estimates the heap used by the document. The text box only holds the chars typed since the
+   * document was loaded, the original text stays in the file, but it lays out every line. While
+   * the document loads, the text box holds every char it was given.
+   *
+   * @return the estimated size, in bytes, of the document on the heap
+   */
+  public long getFootprint() {
+    long footprint = (4L + LAYOUT_LINE_SIZE) * this.lineIndex.getLineCount();
+    if (this.contentEditText != null) {
+      footprint += 2L * (this.isLoadingDocument ? this.contentEditText.length() :
+                         this.document.getAddedLength());
+    }
+    if (this.pagedText != null) {
+      // A page decodes to at most as many chars as it has bytes.
+      footprint += 2L * PagedText.CACHED_PAGES * PagedText.PAGE_SIZE;
+    }
+    return footprint;
+  }
+
+  /**
+   * Tells whether the card can be dropped and opened again later without losing anything: its
+   * document was loaded from a file, it's neither loading nor saving, and there's no unsaved
+   * change.
+   *
+   * @return true if the card can be evicted
+   */
+  public boolean isEvictable() {
+    boolean isLoaded = (this.documentByteLength >= 0) || (this.pagedText != null);
+    return (this.fileUri != null) && isLoaded && !this.isLoadingDocument &&
+           (this.saveTask == null) && (this.recoveredSession == null) &&
+           ((this.pagedText != null) || (this.contentEditText == null) ||
+            !this.changeTracker.isModified());
+  }
+
+  /**
+   * Moves the cursor of the content text box to the start of a line.
+   *
+   * @param line
+   *   The index of the line, it's clamped to the lines of the document
+   *
+   * @return whether the cursor was moved, which it isn't until the lines of the document are
+   * indexed
+   */
+  public boolean goToLine(int line) {
+    if ((this.contentEditText == null) || this.isLoadingDocument || !this.lineIndex.isBuilt()) {
+      return false;
+    }
+    int clamped = Math.max(0, Math.min(line, this.lineIndex.getLineCount() - 1));
+    this.contentEditText.setSelection(this.lineIndex.getLineStart(clamped));
+    this.contentEditText.requestFocus();
+    return true;
+  }
+
+  /**
+   * Helper method to open the document at {@link #fileUri}.
+   */
+  private void openDocument(@NonNull Activity activity) {
+    // Open a file descriptor to the Uri and stream its content into the content text box in
+    // the background. The descriptor stays open until the loader is done with it.
+    try {
+      this.loadStartTime = System.nanoTime();
+      this.documentLastModified =
+        DocumentCache.getLastModified(activity.getContentResolver(), this.fileUri);
+      // A document that can only be streamed may have been copied already, the last time it was
+      // opened.
+      File spoolDir = getSpoolDir(activity);
+      ParcelFileDescriptor pfd =
+        DocumentSpool.openKept(spoolDir, this.fileUri, this.documentLastModified);
+      if (pfd == null) {
+        pfd = activity.getContentResolver().openFileDescriptor(this.fileUri, "r");
+      }
+      Metric.DOCUMENT_OPEN.recordSince(this.loadStartTime);
+      if ((pfd != null) && (this.contentEditText != null)) {
         this.isLoadingDocument = true;
-        try (ParcelFileDescriptor pfd =
-               activity.getContentResolver().openFileDescriptor(this.fileUri, "r")) {
-          if ((pfd != null) && (this.contentEditText != null)) {
-            // Compute the file size.
-            long size = pfd.getStatSize();
-            // Check if the file descriptor is actually a file. if it's not, value is -1
-            if (size != -1) {
-              // Bind the file descriptor to a MappedByteBuffer. Because we open the file in
-              // read-only mode we cannot quite the take full advantage of the MappedByteBuffer as a
-              // memory mapped I/O mechanism.
-              MappedByteBuffer buffer =
-                new FileInputStream(pfd.getFileDescriptor()).getChannel()
-                                                            .map(MapMode.READ_ONLY, 0, size);
-              // Load the entire file into memory.
-              // It will crash and burn if the file is bigger that the available memory.
-              buffer.load();
-              if (buffer.isLoaded()) {
-                // Try to decode the buffer with the current fragment charset encoding if it fail
-                // remove the fragment and show a snackbar.
-                // TODO: Support more charset.
-                try {
-                  this.initialFileContent = this.charset.newDecoder().decode(buffer).toString();
-                  this.contentEditText.setText(this.initialFileContent);
-                  this.contentEditText.requestFocus();
-                  this.contentEditText.setSelection(this.initialFileContent.length());
-                } catch (CharacterCodingException e) {
-                  View view = this.getView();
-                  if (view != null) {
-                    Snackbar.make(view, R.string.app_error_fileread, Snackbar.LENGTH_SHORT)
-                            .show();
-                  }
-                  this.getFragmentManager().beginTransaction().remove(this).commit();
-                }
-              }
-            }
+        // The edits made while the text box is being filled couldn't be told apart from the
+        // document content.
+        this.contentEditText.setEnabled(false);
+        // A pipe has no size, it's copied into a file that can be mapped before it's loaded.
+        if (pfd.getStatSize() < 0) {
+          this.spoolDocument(pfd, spoolDir);
+          return;
+        }
+        this.loadDocument(activity, pfd);
+      } else if (pfd != null) {
+        pfd.close();
+      }
+    } catch (IOException e) {
+      this.onLoadFailed(e);
+    }
+  }
+
+  /**
+   * Helper method to copy a document that can only be streamed into a file in the background, and
+   * load it from there.
+   */
+  private void spoolDocument(@NonNull ParcelFileDescriptor pfd, @NonNull File directory) {
+    this.documentSpool = new DocumentSpool(pfd, directory, MainThreadExecutor.getInstance());
+    this.documentSpool.keep(this.fileUri, this.documentLastModified);
+    this.documentSpool.spool(new DocumentSpool.Callback() {
+      @Override
+      public void onSpooled(@NonNull ParcelFileDescriptor descriptor) {
+        DocumentCardFragment.this.documentSpool = null;
+        // The activity may have been recreated since the spool started.
+        Activity activity = DocumentCardFragment.this.getActivity();
+        try {
+          if (activity != null) {
+            DocumentCardFragment.this.loadDocument(activity, descriptor);
+          } else {
+            descriptor.close();
           }
         } catch (IOException e) {
-          e.printStackTrace();
-          View view = this.getView();
-          if (view != null) {
-            Snackbar.make(view, R.string.app_error_fileread, Snackbar.LENGTH_SHORT)
-                    .show();
-          }
-          this.getFragmentManager().beginTransaction().remove(this).commit();
+          DocumentCardFragment.this.onLoadFailed(e);
         }
-        this.isLoadingDocument = false;
       }
-    } else if (resultCode == Activity.RESULT_CANCELED) {
-      // Remove the fragment.
-      // Things got canceled so there's nothing to show.
+
+      @Override
+      public void onSpoolFailed(@NonNull IOException e) {
+        DocumentCardFragment.this.documentSpool = null;
+        DocumentCardFragment.this.onLoadFailed(e);
+      }
+    });
+  }
+
+  /**
+   * Helper method to get the directory the documents that can only be streamed are copied to.
+   */
+  @NonNull
+  private static File getSpoolDir(@NonNull Context context) throws IOException {
+    File directory = new File(context.getCacheDir(), "spool");
+    if (!directory.mkdirs() && !directory.isDirectory()) {
+      throw new IOException("Unable to create " + directory);
+    }
+    return directory;
+  }
+
+  /**
+   * Helper method to load the document from a file descriptor, which the fragment then owns.
+   */
+  private void loadDocument(@NonNull Activity activity, @NonNull ParcelFileDescriptor pfd)
+    throws IOException {
+    this.documentDescriptor = pfd;
+    if (this.contentEditText != null) {
+      FileChannel channel = new FileInputStream(pfd.getFileDescriptor()).getChannel();
+      if ((pfd.getStatSize() > getViewOnlySize(activity)) && (this.pagesListView != null)) {
+        this.openPages(channel);
+        return;
+      }
+      // A document that didn't change since it was last decoded is taken from the cache.
+      DocumentCache.Entry cached = DocumentCache.getInstance()
+                                                .get(this.fileUri,
+                                                     this.documentLastModified,
+                                                     pfd.getStatSize());
+      if (cached != null) {
+        long start = System.nanoTime();
+        this.contentEditText.setText(cached.getText());
+        Metric.DOCUMENT_SET_TEXT.recordSince(start);
+        MappedText text = cached.open(channel);
+        this.lineIndex = LineIndex.build(channel, text.getCharset(), text.getTextOffset(),
+                                         MainThreadExecutor.getInstance());
+        this.onDocumentLoaded(text);
+      } else {
+        this.documentLoader = new DocumentLoader(channel, MainThreadExecutor.getInstance());
+        this.documentLoader.load(this);
+      }
+    }
+  }
+
+  /**
+   * Gets the size, in bytes, above which a document is too big to be edited. While the document
+   * loads, the text box takes about four bytes of heap per byte of a document in a single byte
+   * charset, its chars and the room they grow into. Once it's loaded, they are read from the file.
+   *
+   * @param context
+   *   The context to get the application heap size from
+   *
+   * @return the size above which a document is shown in the paged viewer
+   */
+  private static long getViewOnlySize(@NonNull Context context) {
+    ActivityManager activityManager =
+      ((ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE));
+    return MemoryUnit.MEGABYTE.toByte(activityManager.getMemoryClass()) /
+           (4L * VIEW_ONLY_HEAP_SHARE);
+  }
+
+  /**
+   * Shows a document too big to be edited in the paged viewer. Only the pages scrolled to are
+   * ever read, so the document is neither loaded, cached nor journaled.
+   */
+  private void openPages(@NonNull FileChannel channel) throws IOException {
+    CharsetDetector.Result detected = CharsetDetector.detect(channel);
+    this.charset = detected.getCharset();
+    this.pagedText = new PagedText(channel, this.charset, detected.getByteOrderMarkLength());
+    this.showPages();
+    this.isLoadingDocument = false;
+    Metric.DOCUMENT_LOAD.recordSince(this.loadStartTime);
+    this.notifyFootprintChanged();
+  }
+
+  /**
+   * Helper method to show the pages of the document in place of the content text box.
+   */
+  private void showPages() {
+    if (this.pagesListView == null) {
+      return;
+    }
+    PageAdapter adapter = new PageAdapter(this.pagedText);
+    this.pagesListView.setAdapter(adapter);
+    this.pagesListView.setOnScrollListener(adapter);
+    this.pagesListView.setVisibility(View.VISIBLE);
+    if (this.contentInputLayout != null) {
+      this.contentInputLayout.setVisibility(View.GONE);
+    }
+    // There's nothing to save since the document can't be edited.
+    if (this.saveButton != null) {
+      this.saveButton.setEnabled(false);
+    }
+  }
+
+  @Override
+  public void onDestroy() {
+    // The fragment is retained, it's only destroyed once its card is closed rather than when the
+    // activity is recreated, the tasks it runs can be cancelled.
+    if (this.documentLoader != null) {
+      this.documentLoader.cancel();
+    }
+    // The save descriptor is closed once the save task has stopped.
+    if (this.saveTask != null) {
+      this.saveTask.cancel();
+    }
+    this.closeDocument();
+    // The journal is kept so that the unsaved edits can be recovered.
+    this.journal.close();
+    super.onDestroy();
+  }
+
+  @Override
+  public void onTextLoaded(@NonNull CharSequence text) {
+    if (this.contentEditText != null) {
+      long start = System.nanoTime();
+      this.contentEditText.append(text);
+      Metric.DOCUMENT_SET_TEXT.recordSince(start);
+    }
+  }
+
+  @Override
+  public void onDecodingStarted(@NonNull Charset charset, long textOffset, boolean isRestart) {
+    if (this.documentLoader == null) {
+      return;
+    }
+    // The lines are indexed while the document loads, counting the chars the way they are decoded.
+    // The edits are mirrored into the index.
+    this.lineIndex.cancel();
+    this.lineIndex = LineIndex.build(this.documentLoader.getChannel(), charset, textOffset,
+                                     MainThreadExecutor.getInstance());
+    // The text box holds the decoded chunks only, in a document of its own that's cached once
+    // they're all in.
+    if (this.contentEditText != null) {
+      this.contentEditText.setText("");
+    }
+    if (!isRestart) {
+      return;
+    }
+    // The document is loaded again from its start, with another charset.
+    View view = this.getView();
+    if (view != null) {
+      Snackbar.make(view, this.getString(R.string.app_warning_charset, charset.displayName()),
+                    Snackbar.LENGTH_LONG)
+              .show();
+    }
+  }
+
+  @Override
+  public void onLoadFinished(long byteCount, int charCount) {
+    if (this.documentLoader != null) {
+      MappedText text = this.documentLoader.getText();
+      this.documentLoader = null;
+      // The decoded chunks were appended to the document of the text box, which reads the file
+      // once the document is loaded. They are handed over to the cache as they are, for the next
+      // time the document is opened.
+      PieceTable content = null;
+      if (this.contentEditText != null) {
+        content = ((DocumentEditable) this.contentEditText.getText()).getDocument();
+      }
+      this.onDocumentLoaded(text);
+      DocumentCache.getInstance().put(this.fileUri, this.documentLastModified, text, content);
+    }
+  }
+
+  /**
+   * Makes a loaded document the fragment document and lets the user edit it.
+   *
+   * @param text
+   *   The document original text, the text box must already hold it
+   */
+  private void onDocumentLoaded(@NonNull MappedText text) {
+    Metric.DOCUMENT_LOAD.recordSince(this.loadStartTime);
+    this.isLoadingDocument = false;
+    this.charset = text.getCharset();
+    // The text box holds the same chars as the original text, it reads them from the file from
+    // now on.
+    this.document = new PieceTable(text);
+    if (this.contentEditText != null) {
+      ((DocumentEditable) this.contentEditText.getText()).setDocument(this.document);
+    }
+    this.changeTracker = new ChangeTracker(this.document.getOriginal());
+    this.documentByteLength = text.getByteLength();
+    this.journal.start(this.fileUri.toString(), this.getTitle(), this.documentLastModified,
+                       this.documentByteLength);
+    if (this.contentEditText != null) {
+      this.contentEditText.setEnabled(true);
+      this.contentEditText.requestFocus();
+      this.contentEditText.setSelection(text.length());
+    }
+    if (this.recoveredSession != null) {
+      EditJournal.Session session = this.recoveredSession;
+      this.recoveredSession = null;
+      // The edits only make sense on top of the very document they were made to.
+      if ((session.lastModified == this.documentLastModified) &&
+          (session.byteLength == this.documentByteLength)) {
+        this.applyEdits(session);
+      } else {
+        this.showError(R.string.app_error_recovery);
+      }
+    }
+    this.notifyFootprintChanged();
+    // The document as it was opened is the first revision to go back to.
+    this.recordRevision();
+  }
+
+  /**
+   * Helper method to record the document as it is in its file, and to list its revisions once
+   * it's recorded. Nothing is recorded if the document didn't change since its latest revision.
+   */
+  private void recordRevision() {
+    Activity activity = this.getActivity();
+    if ((activity != null) && (this.fileUri != null)) {
+      VersionStore store = VersionStore.getInstance(activity);
+      store.record(this.fileUri);
+      store.list(this.fileUri, MainThreadExecutor.getInstance(), this);
+    }
+  }
+
+  @Override
+  public void onRevisionsListed(@NonNull Uri uri, @NonNull List<VersionStore.Revision> revisions) {
+    if (uri.equals(this.fileUri) && this.isAdded()) {
+      this.revisions = revisions;
+      this.getActivity().invalidateOptionsMenu();
+    }
+  }
+
+  @Override
+  public void onRevisionRestored(@NonNull VersionStore.Revision revision,
+                                 @NonNull String text,
+                                 @NonNull Charset charset) {
+    // The document may have started saving since.
+    if ((this.contentEditText != null) && !this.isLoadingDocument && (this.saveTask == null)) {
+      // The document is still written with its own charset. The revision replaces the content of
+      // the document rather than the text box one.
+      this.contentEditText.getText().replace(0, this.contentEditText.length(), text);
+      this.contentEditText.setSelection(0);
+      this.notifyFootprintChanged();
+    }
+  }
+
+  @Override
+  public void onRestoreFailed(@NonNull IOException e) {
+    e.printStackTrace();
+    this.showError(R.string.app_error_fileread);
+  }
+
+  /**
+   * Helper method to recover the session of a previous process.
+   */
+  private void recoverSession(@NonNull EditJournal.Session session) {
+    if (this.titleEditText != null) {
+      this.titleEditText.setText(session.title);
+    }
+    Activity activity = this.getActivity();
+    if (session.uri != null) {
+      this.fileUri = Uri.parse(session.uri);
+    }
+    if (session.byteLength >= 0) {
+      // The edits are applied once the original document is loaded again.
+      if (activity != null) {
+        this.openDocument(activity);
+      }
+    } else {
+      // A new document, the edits make the whole text.
+      this.recoveredSession = null;
+      this.journal.start(session.uri, session.title, -1, -1);
+      this.applyEdits(session);
+    }
+  }
+
+  /**
+   * Helper method to replay recovered edits in the content text box, which edits the document. They
+   * are tracked and journaled again like any other edit.
+   */
+  private void applyEdits(@NonNull EditJournal.Session session) {
+    if (this.contentEditText == null) {
+      return;
+    }
+    Editable editable = this.contentEditText.getText();
+    for (EditJournal.Edit edit : session.edits) {
+      if ((edit.start < 0) || (edit.before < 0) ||
+          ((edit.start + edit.before) > editable.length())) {
+        // The journal doesn't match the document.
+        this.showError(R.string.app_error_recovery);
+        return;
+      }
+      editable.replace(edit.start, edit.start + edit.before, edit.text);
+    }
+    this.contentEditText.setSelection(editable.length());
+  }
+
+  /**
+   * Helper method to compact the journal into a checkpoint. The checkpoint holds the changed range
+   * of the document only.
+   */
+  private void checkpointJournal() {
+    String uri = (this.fileUri != null) ? this.fileUri.toString() : null;
+    int first = this.changeTracker.getFirstChange();
+    if (first < 0) {
+      this.journal.checkpoint(uri, this.getTitle(), this.documentLastModified,
+                              this.documentByteLength, 0, 0, "");
+    } else {
+      int last = this.changeTracker.getLastChange();
+      int delta = this.document.length() - this.document.getOriginal().length();
+      this.journal.checkpoint(uri, this.getTitle(), this.documentLastModified,
+                              this.documentByteLength, first, last - delta,
+                              this.document.subSequence(first, last).toString());
+    }
+  }
+
+  /**
+   * @return the document title, as typed by the user
+   */
+  @NonNull
+  private String getTitle() {
+    return (this.titleEditText != null) ? this.titleEditText.getText().toString() : "";
+  }
+
+  @Override
+  public void onLoadFailed(@NonNull IOException e) {
+    e.printStackTrace();
+    this.closeDocument();
+    // The document couldn't be read, or it isn't valid in the charset detected from its first
+    // bytes. Remove the fragment and show a snackbar.
+    if (this.recoveredSession != null) {
+      this.recoveredSession = null;
+      this.journal.discard();
+    }
+    this.showError(R.string.app_error_fileread);
+    this.removeCard();
+  }
+
+  @Override
+  public void onLoadCancelled() {
+    this.closeDocument();
+  }
+
+  @Override
+  public void onSaveProgress(float progress, long bytesPerSecond) {
+    if (this.saveProgressBar != null) {
+      this.saveProgressBar.setIndeterminate(false);
+      this.saveProgressBar.setProgress((int) (progress * SAVE_PROGRESS_MAX));
+    }
+  }
+
+  @Override
+  public void onSaveFinished(long byteCount, long bytesPerSecond) {
+    String fileName = this.saveFileName;
+    this.writeLog(fileName, "File saved");
+    // The edits are safely written, there's nothing left to recover.
+    this.journal.discard();
+    // The cached text is the one from before the save.
+    DocumentCache.getInstance().invalidate(this.fileUri);
+    this.recordRevision();
+    if (BuildConfig.DEBUG) {
+      StringBuilder message = new StringBuilder(fileName).append(": ");
+      MemoryUnit.formatBytes(byteCount, false, message).append(" written at ");
+      MemoryUnit.formatBytes(bytesPerSecond, false, message).append("/s");
+      Log.d(TAG, message.toString());
+    }
+    this.endSave();
+    // Because, it's presented as a card, we remove the fragment from view once the document is
+    // safely written.
+    this.removeCard();
+  }
+
+  @Override
+  public void onSaveFailed(@NonNull IOException e) {
+    e.printStackTrace();
+    this.endSave();
+    this.showError((e instanceof InsufficientSpaceException) ? R.string.app_error_nospace :
+                   R.string.app_error_filewrite);
+  }
+
+  @Override
+  public void onSaveCancelled() {
+    this.endSave();
+  }
+
+  /**
+   * Helper method to release the resources held by a save once it's over.
+   */
+  private void endSave() {
+    this.writeLog(this.saveFileName, "File closed");
+    this.saveTask = null;
+    this.saveFileName = null;
+    if (this.saveDescriptor != null) {
+      try {
+        this.saveDescriptor.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      this.saveDescriptor = null;
+    }
+    this.setSaving(false);
+  }
+
+  /**
+   * Helper method to switch the card between its editing and saving states. While saving, the
+   * document can't be edited and the save button cancels the save.
+   */
+  private void setSaving(boolean saving) {
+    if (this.titleEditText != null) {
+      this.titleEditText.setEnabled(!saving);
+    }
+    if (this.contentEditText != null) {
+      this.contentEditText.setEnabled(!saving);
+    }
+    if (this.saveProgressBar != null) {
+      this.saveProgressBar.setIndeterminate(true);
+      this.saveProgressBar.setVisibility(saving ? View.VISIBLE : View.GONE);
+    }
+    if (this.saveButton != null) {
+      this.saveButton.setText(saving ? android.R.string.cancel : android.R.string.ok);
+    }
+  }
+
+  /**
+   * Helper method to remove the card, through the activity workspace if it has one.
+   */
+  private void removeCard() {
+    Activity activity = this.getActivity();
+    if (activity instanceof Host) {
+      ((Host) activity).onCardClosed(this);
+    } else if (this.isAdded()) {
       this.getFragmentManager()
           .beginTransaction()
           .remove(this)
@@ -285,24 +1053,90 @@ public class DocumentCardFragment extends Fragment implements OnClickListener, T
     }
   }
 
+  /**
+   * Helper method to let the activity know the document grew on the heap.
+   */
+  private void notifyFootprintChanged() {
+    Activity activity = this.getActivity();
+    if (activity instanceof Host) {
+      ((Host) activity).onCardFootprintChanged(this);
+    }
+  }
+
+  /**
+   * Helper method to get the file name of a document from its Uri.
+   */
+  @NonNull
+  private static String getFileName(@NonNull Uri uri) {
+    String fileName = uri.getLastPathSegment();
+    return fileName.substring(fileName.lastIndexOf("/") + 1);
+  }
+
+  /**
+   * Helper method to show an error message in a snackbar.
+   */
+  private void showError(int message) {
+    View view = this.getView();
+    if (view != null) {
+      Snackbar.make(view, message, Snackbar.LENGTH_SHORT)
+              .show();
+    }
+  }
+
+  /**
+   * Helper method to release the resources held by the loaded document.
+   */
+  private void closeDocument() {
+    this.isLoadingDocument = false;
+    if (this.documentSpool != null) {
+      this.documentSpool.cancel();
+      this.documentSpool = null;
+    }
+    this.documentLoader = null;
+    this.lineIndex.cancel();
+    if (this.pagedText != null) {
+      this.pagedText.close();
+      this.pagedText = null;
+    }
+    if (this.documentDescriptor != null) {
+      try {
+        this.documentDescriptor.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      this.documentDescriptor = null;
+    }
+  }
+
   @Override
   public void beforeTextChanged(CharSequence s, int start, int count, int after) {
   }
 
   @Override
   public void onTextChanged(CharSequence s, int start, int before, int count) {
+    // The document model is the text box text, the change is mirrored into what tracks it. While
+    // loading, the text box is being filled with the original text.
+    if (!this.isLoadingDocument) {
+      this.changeTracker.onTextChanged(s, start, before, count);
+      this.journal.append(start, before, s, start, start + count);
+      this.lineIndex.replace(start, start + before, s, start, start + count);
+    }
   }
 
   @Override
   public void afterTextChanged(Editable s) {
-    if (this.initialFileContent != null) {
-      if (s.toString().compareToIgnoreCase(this.initialFileContent) != 0) {
+    // The text box is filled one chunk at a time while loading, don't compare each intermediate
+    // state against the file content.
+    if (!this.isLoadingDocument) {
+      if (this.journal.isCheckpointDue()) {
+        this.checkpointJournal();
+      }
+      if (this.changeTracker.isModified()) {
         if (this.saveButton != null) {
-          this.saveButton.setEnabled(!s.toString().isEmpty());
+          this.saveButton.setEnabled(s.length() > 0);
         }
-        // Check if we have both a textbox to pull data from and if we're not loading from a file
-        // before writing to the log.
-        if ((this.titleEditText != null) && (!this.isLoadingDocument)) {
+        // Check if we have a textbox to pull data from before writing to the log.
+        if (this.titleEditText != null) {
           this.writeLog(this.titleEditText.getText().toString(), "File modified");
         }
       }
@@ -310,32 +1144,19 @@ public class DocumentCardFragment extends Fragment implements OnClickListener, T
   }
 
   /**
-   * Helper method to log file operation to a log file.
+   * Helper method to log file operation to the operation log.
    *
    * @param filename
    *   The name of the file that's been operated on
    * @param message
    *   The message to add to the log.
+   *
+   * @see OperationLog
    */
   private void writeLog(@NonNull String filename, @NonNull String message) {
     Context cxt = this.getActivity();
     if (cxt != null) {
-      File logFile = new File(cxt.getCacheDir().getPath(), "log.txt");
-      if (logFile.canWrite()) {
-        // This is to ensure that the log file is never bigger than 1 MB
-        boolean writeNew = (logFile.length() <= MemoryUnit.MEGABYTE.toByte(1));
-        try (FileOutputStream logOutputStream =
-               new FileOutputStream(logFile, writeNew)) {
-          String logMessage = Calendar.getInstance().getTime().toString() + " " + filename + ": " +
-                              message + "\n";
-          if (BuildConfig.DEBUG) {
-            Log.d(TAG, logMessage);
-          }
-          logOutputStream.write(logMessage.getBytes());
-        } catch (IOException e) {
-          e.printStackTrace();
-        }
-      }
+      OperationLog.getInstance(cxt).log(filename, message);
     }
   }
 
@@ -353,8 +1174,34 @@ public class DocumentCardFragment extends Fragment implements OnClickListener, T
           this.fileUri = Uri.fromFile(new File(this.documentsDir, textBuilder.toString()));
         }
         editText.setText(textBuilder.toString());
+        // Record where the document is to be saved.
+        this.checkpointJournal();
       }
     }
   }
 
+  /**
+   * The interface implemented by an activity that keeps track of its document cards.
+   */
+  public interface Host {
+
+    /**
+     * Invoked when a card is done, because its document was saved or none was picked. The card is
+     * left for the activity to remove.
+     *
+     * @param fragment
+     *   The card
+     */
+    void onCardClosed(@NonNull DocumentCardFragment fragment);
+
+    /**
+     * Invoked when a card got bigger on the heap, once its document is loaded.
+     *
+     * @param fragment
+     *   The card
+     *
+     * @see DocumentCardFragment#getFootprint()
+     */
+    void onCardFootprintChanged(@NonNull DocumentCardFragment fragment);
+  }
 }
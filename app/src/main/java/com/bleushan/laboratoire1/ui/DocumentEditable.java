@@ -0,0 +1,568 @@
+/*
+ * DocumentEditable.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.ui;
+
+import android.support.annotation.NonNull;
+import android.text.Editable;
+import android.text.InputFilter;
+import android.text.NoCopySpan;
+import android.text.Selection;
+import android.text.SpanWatcher;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.TextWatcher;
+
+import com.bleushan.laboratoire1.document.MappedText;
+import com.bleushan.laboratoire1.document.PieceTable;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An {@link Editable} whose chars are held by a {@link PieceTable}.
+ * <p/>
+ * Installed through {@link Factory} on a text box, it makes the document model the text the text
+ * box edits: once the document is loaded, its original text stays in the mapped file and the heap
+ * only holds the chars typed since. The spans, the watchers and the filters behave as they do in
+ * a {@link SpannableStringBuilder}, which the text box would use otherwise.
+ * <p/>
+ * This class is not thread safe.
+ */
+public class DocumentEditable implements Editable {
+
+  private static final InputFilter[] NO_FILTERS = new InputFilter[0];
+  private static final int START_MASK = 0xF0;
+  private static final int END_MASK = 0x0F;
+  private static final int START_SHIFT = 4;
+  private static final int MARK = 1;
+  private static final int POINT = 2;
+  private static final int PARAGRAPH = 3;
+  private PieceTable document;
+  /**
+   * The spans, in the order they were added.
+   */
+  private final List<Span> spans = new ArrayList<>();
+  private InputFilter[] filters = NO_FILTERS;
+
+  /**
+   * Creates an editable text holding a copy of a text and of its spans.
+   *
+   * @param text
+   *   The text. A {@link String} or a {@link MappedText} doesn't change, the document refers to
+   *   it rather than copying it. So does a {@link PieceTable}, like a cached document, which must
+   *   not change afterward.
+   */
+  public DocumentEditable(@NonNull CharSequence text) {
+    boolean isImmutable = (text instanceof String) || (text instanceof MappedText) ||
+                          (text instanceof PieceTable);
+    this.document = new PieceTable(isImmutable ? text : text.toString());
+    if (text instanceof Spanned) {
+      this.copySpans((Spanned) text);
+    }
+  }
+
+  /**
+   * Creates an editable text editing the same document as another one. It gets a copy of the
+   * spans of the other text, the other text must not be edited anymore.
+   *
+   * @param text
+   *   The text whose document is edited
+   */
+  public DocumentEditable(@NonNull DocumentEditable text) {
+    this.document = text.document;
+    this.copySpans(text);
+  }
+
+  private void copySpans(@NonNull Spanned text) {
+    for (Object what : text.getSpans(0, text.length(), Object.class)) {
+      if (!(what instanceof NoCopySpan)) {
+        this.spans.add(new Span(what, text.getSpanStart(what), text.getSpanEnd(what),
+                                text.getSpanFlags(what)));
+      }
+    }
+  }
+
+  /**
+   * @return the document holding the text
+   */
+  @NonNull
+  public PieceTable getDocument() {
+    return this.document;
+  }
+
+  /**
+   * Swaps the document holding the text for another one holding the very same chars, like the
+   * document read from a file once it's been loaded into the text. Nothing changes as far as the
+   * watchers and the spans are concerned, so none of them is notified.
+   *
+   * @param document
+   *   The document, it must be as long as the text
+   */
+  public void setDocument(@NonNull PieceTable document) {
+    if (document.length() != this.document.length()) {
+      throw new IllegalArgumentException("document length " + document.length() +
+                                         ", text length " + this.document.length());
+    }
+    this.document = document;
+  }
+
+  @Override
+  public DocumentEditable replace(int st, int en, CharSequence source, int start, int end) {
+    this.checkRange("replace", st, en);
+    for (InputFilter filter : this.filters) {
+      CharSequence filtered = filter.filter(source, start, end, this, st, en);
+      if (filtered != null) {
+        source = filtered;
+        start = 0;
+        end = filtered.length();
+      }
+    }
+    int before = en - st;
+    int count = end - start;
+    if ((before == 0) && (count == 0)) {
+      return this;
+    }
+    if (source == this) {
+      // The document can't read the text it's changing.
+      source = this.subSequence(start, end);
+      start = 0;
+      end = count;
+    }
+    TextWatcher[] watchers = this.getSpans(st, st + before, TextWatcher.class);
+    for (TextWatcher watcher : watchers) {
+      watcher.beforeTextChanged(this, st, before, count);
+    }
+    int selectionStart = Selection.getSelectionStart(this);
+    int selectionEnd = Selection.getSelectionEnd(this);
+    this.change(st, en, source, start, end);
+    if ((before > 0) && (count > 0)) {
+      // A selection within the replaced range keeps its relative position in the new text.
+      this.moveSelection(Selection.SELECTION_START, selectionStart, st, en, count);
+      this.moveSelection(Selection.SELECTION_END, selectionEnd, st, en, count);
+    }
+    for (TextWatcher watcher : watchers) {
+      watcher.onTextChanged(this, st, before, count);
+    }
+    for (TextWatcher watcher : watchers) {
+      watcher.afterTextChanged(this);
+    }
+    this.sendSpansChanged();
+    return this;
+  }
+
+  /**
+   * Replaces a range of the text and moves the spans accordingly. The spans the change leaves
+   * empty, while they can't be, are removed before the text changes.
+   */
+  private void change(int st, int en, CharSequence source, int start, int end) {
+    int count = end - start;
+    boolean atEnd = (en == this.length());
+    if (en > st) {
+      for (int i = this.spans.size() - 1; i >= 0; i--) {
+        Span span = this.spans.get(i);
+        if (((span.flags & Spanned.SPAN_POINT_MARK_MASK) == Spanned.SPAN_EXCLUSIVE_EXCLUSIVE) &&
+            (span.start >= st) && (span.end <= en) &&
+            (move(span.start, span.getStartFlag(), st, en, count, atEnd) ==
+             move(span.end, span.getEndFlag(), st, en, count, atEnd))) {
+          this.spans.remove(i);
+          this.sendSpanRemoved(span);
+        }
+      }
+    }
+    this.document.replace(st, en, source, start, end);
+    for (Span span : this.spans) {
+      span.previousStart = span.start;
+      span.previousEnd = span.end;
+      span.start = move(span.start, span.getStartFlag(), st, en, count, atEnd);
+      span.end = move(span.end, span.getEndFlag(), st, en, count, atEnd);
+    }
+    if (source instanceof Spanned) {
+      // The spans of the inserted text are inserted along with it.
+      Spanned spanned = (Spanned) source;
+      for (Object what : spanned.getSpans(start, end, Object.class)) {
+        if (this.indexOf(what) < 0) {
+          Span span = new Span(what,
+                               st + (Math.max(spanned.getSpanStart(what), start) - start),
+                               st + (Math.min(spanned.getSpanEnd(what), end) - start),
+                               spanned.getSpanFlags(what));
+          span.isAdded = true;
+          this.spans.add(span);
+        }
+      }
+    }
+  }
+
+  /**
+   * Moves a span bound once {@code [st, en)} is replaced by {@code count} chars. A bound within
+   * the range goes to the end of the new chars if it's a point, or to their start if it's a mark.
+   * Paragraph bounds behave as marks, but at the end of the text which they follow.
+   */
+  private static int move(int position, int flag, int st, int en, int count, boolean atEnd) {
+    if (position < st) {
+      return position;
+    }
+    if (position > en) {
+      return position + (count - (en - st));
+    }
+    if ((position == en) && (st < en)) {
+      return st + count;
+    }
+    if ((position == st) && (st < en)) {
+      return st;
+    }
+    boolean isPoint = (flag == POINT) || ((flag == PARAGRAPH) && atEnd);
+    return isPoint ? (st + count) : st;
+  }
+
+  private void moveSelection(Object what, int selection, int st, int en, int count) {
+    int index = this.indexOf(what);
+    if ((index >= 0) && (selection > st) && (selection < en)) {
+      Span span = this.spans.get(index);
+      span.start = st + (int) (((long) (selection - st) * count) / (en - st));
+      span.end = span.start;
+      span.flags = Spanned.SPAN_POINT_POINT;
+    }
+  }
+
+  /**
+   * Lets the span watchers know about the spans a change moved or inserted.
+   */
+  private void sendSpansChanged() {
+    List<Span> spans = new ArrayList<>(this.spans);
+    for (Span span : spans) {
+      if (span.isAdded) {
+        span.isAdded = false;
+        span.previousStart = -1;
+        this.sendSpanAdded(span);
+      } else if (span.previousStart >= 0) {
+        int previousStart = span.previousStart;
+        span.previousStart = -1;
+        if ((previousStart != span.start) || (span.previousEnd != span.end)) {
+          this.sendSpanChanged(span, previousStart, span.previousEnd);
+        }
+      }
+    }
+  }
+
+  private void sendSpanAdded(@NonNull Span span) {
+    for (SpanWatcher watcher : this.getSpans(span.start, span.end, SpanWatcher.class)) {
+      watcher.onSpanAdded(this, span.what, span.start, span.end);
+    }
+  }
+
+  private void sendSpanRemoved(@NonNull Span span) {
+    for (SpanWatcher watcher : this.getSpans(span.start, span.end, SpanWatcher.class)) {
+      watcher.onSpanRemoved(this, span.what, span.start, span.end);
+    }
+  }
+
+  private void sendSpanChanged(@NonNull Span span, int previousStart, int previousEnd) {
+    int start = Math.min(previousStart, span.start);
+    int end = Math.min(Math.max(previousEnd, span.end), this.length());
+    for (SpanWatcher watcher : this.getSpans(start, end, SpanWatcher.class)) {
+      watcher.onSpanChanged(this, span.what, previousStart, previousEnd, span.start, span.end);
+    }
+  }
+
+  @Override
+  public DocumentEditable replace(int st, int en, CharSequence text) {
+    return this.replace(st, en, text, 0, text.length());
+  }
+
+  @Override
+  public DocumentEditable insert(int where, CharSequence text, int start, int end) {
+    return this.replace(where, where, text, start, end);
+  }
+
+  @Override
+  public DocumentEditable insert(int where, CharSequence text) {
+    return this.replace(where, where, text, 0, text.length());
+  }
+
+  @Override
+  public DocumentEditable delete(int st, int en) {
+    return this.replace(st, en, "", 0, 0);
+  }
+
+  @Override
+  public DocumentEditable append(CharSequence text) {
+    int length = this.length();
+    return this.replace(length, length, text, 0, text.length());
+  }
+
+  @Override
+  public DocumentEditable append(CharSequence text, int start, int end) {
+    int length = this.length();
+    return this.replace(length, length, text, start, end);
+  }
+
+  @Override
+  public DocumentEditable append(char text) {
+    return this.append(String.valueOf(text));
+  }
+
+  @Override
+  public void clear() {
+    this.replace(0, this.length(), "", 0, 0);
+  }
+
+  @Override
+  public void clearSpans() {
+    for (int i = this.spans.size() - 1; i >= 0; i--) {
+      Span span = this.spans.remove(i);
+      this.sendSpanRemoved(span);
+    }
+  }
+
+  @Override
+  public void setFilters(InputFilter[] filters) {
+    if (filters == null) {
+      throw new IllegalArgumentException();
+    }
+    this.filters = filters;
+  }
+
+  @Override
+  public InputFilter[] getFilters() {
+    return this.filters;
+  }
+
+  @Override
+  public void setSpan(Object what, int start, int end, int flags) {
+    this.checkRange("setSpan", start, end);
+    int index = this.indexOf(what);
+    if (index >= 0) {
+      Span span = this.spans.get(index);
+      int previousStart = span.start;
+      int previousEnd = span.end;
+      span.start = start;
+      span.end = end;
+      span.flags = flags;
+      // The span is already up to date as far as the watchers are concerned.
+      span.previousStart = -1;
+      this.sendSpanChanged(span, previousStart, previousEnd);
+    } else {
+      Span span = new Span(what, start, end, flags);
+      this.spans.add(span);
+      this.sendSpanAdded(span);
+    }
+  }
+
+  @Override
+  public void removeSpan(Object what) {
+    int index = this.indexOf(what);
+    if (index >= 0) {
+      this.sendSpanRemoved(this.spans.remove(index));
+    }
+  }
+
+  private int indexOf(Object what) {
+    for (int i = 0; i < this.spans.size(); i++) {
+      if (this.spans.get(i).what == what) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public <T> T[] getSpans(int start, int end, Class<T> type) {
+    if (type == null) {
+      return (T[]) new Object[0];
+    }
+    List<Span> matching = new ArrayList<>();
+    for (Span span : this.spans) {
+      if (!type.isInstance(span.what) || (span.start > end) || (span.end < start)) {
+        continue;
+      }
+      // Non empty spans and ranges that only touch don't overlap.
+      if ((span.start != span.end) && (start != end) &&
+          ((span.start == end) || (span.end == start))) {
+        continue;
+      }
+      // Higher priorities first, in the order the spans were added otherwise.
+      int at = matching.size();
+      while ((at > 0) && (matching.get(at - 1).getPriority() < span.getPriority())) {
+        at--;
+      }
+      matching.add(at, span);
+    }
+    T[] result = (T[]) Array.newInstance(type, matching.size());
+    for (int i = 0; i < result.length; i++) {
+      result[i] = (T) matching.get(i).what;
+    }
+    return result;
+  }
+
+  @Override
+  public int getSpanStart(Object what) {
+    int index = this.indexOf(what);
+    return (index >= 0) ? this.spans.get(index).start : -1;
+  }
+
+  @Override
+  public int getSpanEnd(Object what) {
+    int index = this.indexOf(what);
+    return (index >= 0) ? this.spans.get(index).end : -1;
+  }
+
+  @Override
+  public int getSpanFlags(Object what) {
+    int index = this.indexOf(what);
+    return (index >= 0) ? this.spans.get(index).flags : 0;
+  }
+
+  @SuppressWarnings("rawtypes")
+  @Override
+  public int nextSpanTransition(int start, int limit, Class type) {
+    if (type == null) {
+      type = Object.class;
+    }
+    for (Span span : this.spans) {
+      if (type.isInstance(span.what)) {
+        if ((span.start > start) && (span.start < limit)) {
+          limit = span.start;
+        }
+        if ((span.end > start) && (span.end < limit)) {
+          limit = span.end;
+        }
+      }
+    }
+    return limit;
+  }
+
+  @Override
+  public int length() {
+    return this.document.length();
+  }
+
+  @Override
+  public char charAt(int index) {
+    return this.document.charAt(index);
+  }
+
+  @Override
+  public void getChars(int start, int end, char[] dest, int destoff) {
+    this.checkRange("getChars", start, end);
+    this.document.getChars(start, end, dest, destoff);
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return new SpannableStringBuilder(this, start, end);
+  }
+
+  @NonNull
+  @Override
+  public String toString() {
+    return this.document.toString();
+  }
+
+  private void checkRange(@NonNull String operation, int start, int end) {
+    if (end < start) {
+      throw new IndexOutOfBoundsException(operation + " (" + start + " ... " + end +
+                                          ") has end before start");
+    }
+    int length = this.length();
+    if ((start > length) || (end > length)) {
+      throw new IndexOutOfBoundsException(operation + " (" + start + " ... " + end +
+                                          ") ends beyond length " + length);
+    }
+    if (start < 0) {
+      throw new IndexOutOfBoundsException(operation + " (" + start + " ... " + end +
+                                          ") starts before 0");
+    }
+  }
+
+  /**
+   * Makes the text boxes it's installed on edit {@link DocumentEditable}s.
+   *
+   * @see android.widget.TextView#setEditableFactory(Editable.Factory)
+   */
+  public static final class Factory extends Editable.Factory {
+
+    private static final Factory INSTANCE = new Factory();
+
+    private Factory() {
+    }
+
+    @NonNull
+    public static Factory getInstance() {
+      return INSTANCE;
+    }
+
+    /**
+     * Creates the text of a text box. When it's given the text of a previous text box, like when
+     * the text box is created again after a configuration change, the new text edits the same
+     * document.
+     */
+    @Override
+    public Editable newEditable(CharSequence source) {
+      return (source instanceof DocumentEditable) ?
+             new DocumentEditable((DocumentEditable) source) : new DocumentEditable(source);
+    }
+  }
+
+  private static final class Span {
+
+    private final Object what;
+    private int start;
+    private int end;
+    private int flags;
+    /**
+     * Where the span was before the latest change, until the watchers are told, or -1.
+     */
+    private int previousStart = -1;
+    private int previousEnd;
+    /**
+     * Whether the span was inserted along with text, until the watchers are told.
+     */
+    private boolean isAdded;
+
+    Span(Object what, int start, int end, int flags) {
+      this.what = what;
+      this.start = start;
+      this.end = end;
+      this.flags = flags;
+    }
+
+    int getStartFlag() {
+      return (this.flags & START_MASK) >> START_SHIFT;
+    }
+
+    int getEndFlag() {
+      return this.flags & END_MASK;
+    }
+
+    int getPriority() {
+      return (this.flags & Spanned.SPAN_PRIORITY) >> Spanned.SPAN_PRIORITY_SHIFT;
+    }
+  }
+}
@@ -27,21 +27,47 @@
 
 package com.bleushan.laboratoire1.ui;
 
+import android.app.ActivityManager;
+import android.content.Context;
 import android.os.Bundle;
+import android.support.annotation.NonNull;
 import android.support.design.widget.Snackbar;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
+import android.text.format.DateUtils;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.SubMenu;
+import android.view.View;
 
+import com.bleushan.laboratoire1.BuildConfig;
 import com.bleushan.laboratoire1.R;
+import com.bleushan.laboratoire1.document.EditJournal;
+import com.bleushan.laboratoire1.document.VersionStore;
+import com.bleushan.laboratoire1.utils.MemoryUnit;
+import com.bleushan.laboratoire1.utils.Metric;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * An {@link AppCompatActivity} subclass that serves as the main entry point for the application.
+ * <p/>
+ * The documents opened are kept in a {@link Workspace}, so the user can switch between them from
+ * the documents menu. The history menu restores a recorded revision of the document shown.
  */
-public class MainActivity extends AppCompatActivity {
+public class MainActivity extends AppCompatActivity implements DocumentCardFragment.Host {
 
   private static final String TAG = MainActivity.class.getSimpleName();
+  /**
+   * The share of the application heap the document cards may use.
+   */
+  private static final int WORKSPACE_BUDGET_SHARE = 4;
+  private Workspace workspace;
 
   @Override
   protected void onCreate(Bundle savedInstanceState) {
@@ -51,6 +77,98 @@ public class MainActivity extends AppCompatActivity {
     if (toolbar != null) {
       this.setSupportActionBar(toolbar);
     }
+    ActivityManager activityManager =
+      ((ActivityManager) this.getSystemService(Context.ACTIVITY_SERVICE));
+    long budget =
+      MemoryUnit.MEGABYTE.toByte(activityManager.getMemoryClass()) / WORKSPACE_BUDGET_SHARE;
+    this.workspace = new Workspace(this.getFragmentManager(), R.id.main_placeholder, budget);
+    if (savedInstanceState != null) {
+      this.workspace.restoreState(savedInstanceState);
+    } else {
+      this.recoverDocuments();
+    }
+    this.updateEmptyView();
+  }
+
+  /**
+   * Reopens the documents that were being edited when the previous process died. The journals
+   * without any unsaved edit are deleted.
+   */
+  private void recoverDocuments() {
+    File[] journalDirs = DocumentCardFragment.getJournalDirectory(this).listFiles();
+    if (journalDirs == null) {
+      return;
+    }
+    for (File journalDir : journalDirs) {
+      if (journalDir.isDirectory() && Workspace.isJournalName(journalDir.getName())) {
+        if (EditJournal.recover(journalDir) != null) {
+          this.workspace.recover(journalDir.getName());
+        } else {
+          File[] files = journalDir.listFiles();
+          if (files != null) {
+            for (File file : files) {
+              if (!file.delete()) {
+                file.deleteOnExit();
+              }
+            }
+          }
+          if (!journalDir.delete()) {
+            journalDir.deleteOnExit();
+          }
+        }
+      }
+    }
+  }
+
+  @Override
+  protected void onSaveInstanceState(Bundle outState) {
+    super.onSaveInstanceState(outState);
+    this.workspace.saveState(outState);
+  }
+
+  @Override
+  public void onTrimMemory(int level) {
+    super.onTrimMemory(level);
+    // Let go of every document that can be reloaded, rather than the whole process.
+    if (level >= TRIM_MEMORY_RUNNING_LOW) {
+      this.workspace.trim(0);
+    }
+  }
+
+  @Override
+  public void onCardClosed(@NonNull DocumentCardFragment fragment) {
+    this.workspace.close(fragment);
+    this.updateEmptyView();
+  }
+
+  @Override
+  public void onCardFootprintChanged(@NonNull DocumentCardFragment fragment) {
+    this.workspace.trim();
+  }
+
+  /**
+   * Helper method to show the placeholder text when no document is open.
+   */
+  private void updateEmptyView() {
+    View emptyView = this.findViewById(R.id.main_empty);
+    if (emptyView != null) {
+      emptyView.setVisibility((this.workspace.size() == 0) ? View.VISIBLE : View.GONE);
+    }
+    this.invalidateOptionsMenu();
+  }
+
+  @Override
+  protected void onStop() {
+    super.onStop();
+    if (BuildConfig.DEBUG) {
+      StringWriter metrics = new StringWriter();
+      try {
+        Metric.dump(metrics);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      Log.d(TAG, metrics.toString());
+    }
   }
 
   @Override
@@ -60,26 +178,75 @@ public class MainActivity extends AppCompatActivity {
     return true;
   }
 
+  @Override
+  public boolean onPrepareOptionsMenu(Menu menu) {
+    MenuItem documentsItem = menu.findItem(R.id.action_documents);
+    if (documentsItem != null) {
+      SubMenu documents = documentsItem.getSubMenu();
+      documents.clear();
+      int activeIndex = this.workspace.getActiveIndex();
+      for (int i = 0; i < this.workspace.size(); i++) {
+        String title = this.workspace.getTitle(i);
+        MenuItem item = documents.add(R.id.action_documents, i, i,
+                                      title.isEmpty() ? this.getString(R.string.app_info_nofile) :
+                                      title);
+        item.setCheckable(true);
+        item.setChecked(i == activeIndex);
+      }
+      documentsItem.setVisible(this.workspace.size() > 0);
+    }
+    MenuItem historyItem = menu.findItem(R.id.action_history);
+    if (historyItem != null) {
+      SubMenu history = historyItem.getSubMenu();
+      history.clear();
+      DocumentCardFragment active = this.workspace.getActiveFragment();
+      List<VersionStore.Revision> revisions =
+        (active != null) ? active.getRevisions() : Collections.<VersionStore.Revision>emptyList();
+      for (int i = 0; i < revisions.size(); i++) {
+        history.add(R.id.action_history, i, i,
+                    DateUtils.formatDateTime(this, revisions.get(i).getTime(),
+                                             DateUtils.FORMAT_SHOW_DATE |
+                                             DateUtils.FORMAT_SHOW_TIME));
+      }
+      historyItem.setVisible(!revisions.isEmpty());
+    }
+    MenuItem closeItem = menu.findItem(R.id.action_closeFile);
+    if (closeItem != null) {
+      closeItem.setVisible(this.workspace.size() > 0);
+    }
+    return super.onPrepareOptionsMenu(menu);
+  }
+
   @Override
   public boolean onOptionsItemSelected(MenuItem item) {
     // Handle action bar item clicks here. The action bar will
     // automatically handle clicks on the Home/Up button, so long
     // as you specify a parent activity in AndroidManifest.xml.
     Toolbar toolbar = ((Toolbar) this.findViewById(R.id.main_toolbar));
+    if (item.getGroupId() == R.id.action_documents) {
+      this.workspace.show(item.getItemId());
+      this.updateEmptyView();
+      return true;
+    }
+    if (item.getGroupId() == R.id.action_history) {
+      DocumentCardFragment active = this.workspace.getActiveFragment();
+      if (active != null) {
+        active.restoreRevision(item.getItemId());
+      }
+      return true;
+    }
     switch (item.getItemId()) {
       case R.id.action_newFile:
-        this.getFragmentManager()
-            .beginTransaction()
-            .replace(R.id.main_placeholder,
-                     DocumentCardFragment.newInstance(DocumentCardFragment.CREATE_CODE))
-            .commit();
+        this.workspace.open(DocumentCardFragment.CREATE_CODE);
+        this.updateEmptyView();
         return true;
       case R.id.action_openFile:
-        this.getFragmentManager()
-            .beginTransaction()
-            .replace(R.id.main_placeholder,
-                     DocumentCardFragment.newInstance(DocumentCardFragment.READ_CODE))
-            .commit();
+        this.workspace.open(DocumentCardFragment.READ_CODE);
+        this.updateEmptyView();
+        return true;
+      case R.id.action_closeFile:
+        this.workspace.closeActive();
+        this.updateEmptyView();
         return true;
       case R.id.action_settings:
         if (toolbar != null) {
@@ -0,0 +1,102 @@
+/*
+ * PageAdapter.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.ui;
+
+import android.support.annotation.NonNull;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import com.bleushan.laboratoire1.R;
+import com.bleushan.laboratoire1.document.PagedText;
+
+/**
+ * Shows the pages of a {@link PagedText} in a list, one recycled text view per page.
+ * <p/>
+ * A page is decoded when it's first shown. As the list scrolls, the pages around the visible ones
+ * are decoded in the background so that they're ready when they show up.
+ */
+public class PageAdapter extends BaseAdapter implements AbsListView.OnScrollListener {
+
+  /**
+   * The number of pages decoded ahead of, and behind, the visible ones.
+   */
+  public static final int PREFETCH_PAGES = 2;
+  private final PagedText text;
+
+  public PageAdapter(@NonNull PagedText text) {
+    this.text = text;
+  }
+
+  @Override
+  public int getCount() {
+    return this.text.getPageCount();
+  }
+
+  @Override
+  public CharSequence getItem(int position) {
+    return this.text.getPage(position);
+  }
+
+  @Override
+  public long getItemId(int position) {
+    return position;
+  }
+
+  @Override
+  public boolean hasStableIds() {
+    return true;
+  }
+
+  @Override
+  public View getView(int position, View convertView, ViewGroup parent) {
+    TextView view = (convertView instanceof TextView) ?
+                    ((TextView) convertView) :
+                    ((TextView) LayoutInflater.from(parent.getContext())
+                                              .inflate(R.layout.list_item_document_page, parent,
+                                                       false));
+    view.setText(this.getItem(position));
+    return view;
+  }
+
+  @Override
+  public void onScrollStateChanged(AbsListView view, int scrollState) {
+  }
+
+  @Override
+  public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                       int totalItemCount) {
+    if (visibleItemCount > 0) {
+      this.text.prefetch(firstVisibleItem - PREFETCH_PAGES,
+                         firstVisibleItem + visibleItemCount + PREFETCH_PAGES - 1);
+    }
+  }
+}
@@ -0,0 +1,384 @@
+/*
+ * Workspace.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.ui;
+
+import android.app.FragmentManager;
+import android.app.FragmentTransaction;
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The documents open in an activity, each in a {@link DocumentCardFragment} of its own, of which a
+ * single one is shown at a time.
+ * <p/>
+ * The cards that aren't shown are only hidden, so switching back to one of them is immediate, but
+ * the heap they use stays bounded by a budget. Once the cards go over it, the least recently shown
+ * ones that hold no unsaved change are evicted: their fragment is removed and a stub, telling the
+ * document and its title, is kept in its place. The document is reloaded from its file when the
+ * stub is shown again, which the {@link com.bleushan.laboratoire1.document.DocumentCache} usually
+ * makes cheap. Cards with unsaved changes are never evicted, they'd lose them.
+ * <p/>
+ * Each card journals its edits in a directory of its own, named after its fragment tag.
+ */
+public class Workspace {
+
+  private static final String STATE_TAGS = "workspace.tags";
+  private static final String STATE_URIS = "workspace.uris";
+  private static final String STATE_TITLES = "workspace.titles";
+  private static final String STATE_LAST_USED = "workspace.lastUsed";
+  private static final String STATE_ACTIVE = "workspace.active";
+  private static final String TAG_PREFIX = "document-";
+  private final FragmentManager fragmentManager;
+  private final int containerId;
+  private final long budget;
+  /**
+   * The documents, in the order they were opened.
+   */
+  private final List<Entry> entries = new ArrayList<>();
+  private Entry active;
+  /**
+   * Counts the times a document was shown, to tell the least recently shown ones.
+   */
+  private long clock = 0;
+
+  /**
+   * @param fragmentManager
+   *   The fragment manager of the activity
+   * @param containerId
+   *   The id of the view the cards are added to
+   * @param budget
+   *   The heap, in bytes, the cards may use before being evicted
+   */
+  public Workspace(@NonNull FragmentManager fragmentManager, int containerId, long budget) {
+    this.fragmentManager = fragmentManager;
+    this.containerId = containerId;
+    this.budget = budget;
+  }
+
+  /**
+   * Tells whether a directory name is the one of a card journal.
+   *
+   * @param name
+   *   The name of the directory
+   *
+   * @return true if a card tag would have this name
+   */
+  public static boolean isJournalName(@NonNull String name) {
+    return name.startsWith(TAG_PREFIX);
+  }
+
+  /**
+   * Opens a new card and shows it.
+   *
+   * @param requestCode
+   *   The request code the card is created with
+   *
+   * @see DocumentCardFragment#newInstance(int, String)
+   */
+  public void open(int requestCode) {
+    this.open(requestCode, TAG_PREFIX + UUID.randomUUID());
+  }
+
+  /**
+   * Opens a card for the session left in a journal directory and shows it.
+   *
+   * @param journalName
+   *   The name of the journal directory, as returned by {@link #isJournalName(String)}
+   */
+  public void recover(@NonNull String journalName) {
+    this.open(DocumentCardFragment.RECOVER_CODE, journalName);
+  }
+
+  private void open(int requestCode, @NonNull String tag) {
+    Entry entry = new Entry(tag);
+    entry.fragment = DocumentCardFragment.newInstance(requestCode, tag);
+    this.entries.add(entry);
+    this.show(entry);
+  }
+
+  /**
+   * @return the number of open documents
+   */
+  public int size() {
+    return this.entries.size();
+  }
+
+  /**
+   * @param index
+   *   The index of a document, in the order they were opened
+   *
+   * @return the title of the document, possibly empty
+   */
+  @NonNull
+  public String getTitle(int index) {
+    Entry entry = this.entries.get(index);
+    return (entry.fragment != null) ? entry.fragment.getDocumentTitle() : entry.title;
+  }
+
+  /**
+   * @return the index of the document shown, or -1 if none is
+   */
+  public int getActiveIndex() {
+    return this.entries.indexOf(this.active);
+  }
+
+  /**
+   * @return the card shown, or null if none is
+   */
+  @Nullable
+  public DocumentCardFragment getActiveFragment() {
+    return (this.active != null) ? this.active.fragment : null;
+  }
+
+  /**
+   * Shows a document, reloading it if it was evicted.
+   *
+   * @param index
+   *   The index of the document, in the order they were opened
+   */
+  public void show(int index) {
+    this.show(this.entries.get(index));
+  }
+
+  private void show(@NonNull Entry entry) {
+    FragmentTransaction transaction = this.fragmentManager.beginTransaction();
+    if ((this.active != null) && (this.active != entry) && (this.active.fragment != null)) {
+      transaction.hide(this.active.fragment);
+    }
+    if (entry.fragment == null) {
+      entry.fragment = DocumentCardFragment.newInstance(entry.uri, entry.tag);
+      transaction.add(this.containerId, entry.fragment, entry.tag);
+    } else if (entry.fragment.isAdded()) {
+      transaction.show(entry.fragment);
+    } else {
+      transaction.add(this.containerId, entry.fragment, entry.tag);
+    }
+    entry.lastUsed = ++this.clock;
+    this.active = entry;
+    this.evict(transaction, this.budget);
+    transaction.commit();
+  }
+
+  /**
+   * Closes the document shown and shows the most recently shown of the others. Its journal is kept
+   * if it holds unsaved changes, so they're recovered the next time the application starts.
+   */
+  public void closeActive() {
+    if (this.active != null) {
+      this.close(this.active);
+    }
+  }
+
+  /**
+   * Closes the card of a document, if it's still open.
+   *
+   * @param fragment
+   *   The card of the document
+   */
+  public void close(@NonNull DocumentCardFragment fragment) {
+    for (Entry entry : this.entries) {
+      if (entry.fragment == fragment) {
+        this.close(entry);
+        return;
+      }
+    }
+  }
+
+  private void close(@NonNull Entry entry) {
+    this.entries.remove(entry);
+    if (entry.fragment != null) {
+      this.fragmentManager.beginTransaction().remove(entry.fragment).commit();
+    }
+    if (entry == this.active) {
+      this.active = null;
+      Entry next = null;
+      for (Entry other : this.entries) {
+        if ((next == null) || (other.lastUsed > next.lastUsed)) {
+          next = other;
+        }
+      }
+      if (next != null) {
+        this.show(next);
+      }
+    }
+  }
+
+  /**
+   * Evicts documents until the cards fit in the budget. It's called when a card grows, and when
+   * the system runs low on memory with a smaller budget.
+   *
+   * @param budget
+   *   The heap, in bytes, the cards may use
+   */
+  public void trim(long budget) {
+    FragmentTransaction transaction = this.fragmentManager.beginTransaction();
+    if (this.evict(transaction, budget)) {
+      // A document may finish loading, or memory run low, after the activity state was saved. The
+      // evicted cards are then simply restored along with the others.
+      transaction.commitAllowingStateLoss();
+    }
+  }
+
+  /**
+   * Trims the cards down to the budget given at construction.
+   *
+   * @see #trim(long)
+   */
+  public void trim() {
+    this.trim(this.budget);
+  }
+
+  /**
+   * Removes the fragments of the least recently shown documents that can be evicted, until the
+   * cards fit in a budget or there's nothing left to evict. The document shown is never evicted.
+   *
+   * @return whether a fragment was removed
+   */
+  private boolean evict(@NonNull FragmentTransaction transaction, long budget) {
+    long footprint = 0;
+    List<Entry> candidates = new ArrayList<>();
+    for (Entry entry : this.entries) {
+      if (entry.fragment != null) {
+        footprint += entry.fragment.getFootprint();
+        if ((entry != this.active) && entry.fragment.isEvictable()) {
+          candidates.add(entry);
+        }
+      }
+    }
+    Collections.sort(candidates, new Comparator<Entry>() {
+      @Override
+      public int compare(Entry lhs, Entry rhs) {
+        return Long.compare(lhs.lastUsed, rhs.lastUsed);
+      }
+    });
+    boolean evicted = false;
+    for (int i = 0; (i < candidates.size()) && (footprint > budget); i++) {
+      Entry entry = candidates.get(i);
+      footprint -= entry.fragment.getFootprint();
+      entry.uri = entry.fragment.getDocumentUri();
+      entry.title = entry.fragment.getDocumentTitle();
+      transaction.remove(entry.fragment);
+      entry.fragment = null;
+      evicted = true;
+    }
+    return evicted;
+  }
+
+  /**
+   * Saves the documents of the workspace. Their fragments are saved by the fragment manager.
+   *
+   * @param outState
+   *   The activity saved state
+   */
+  public void saveState(@NonNull Bundle outState) {
+    int size = this.entries.size();
+    String[] tags = new String[size];
+    String[] uris = new String[size];
+    String[] titles = new String[size];
+    long[] lastUsed = new long[size];
+    for (int i = 0; i < size; i++) {
+      Entry entry = this.entries.get(i);
+      tags[i] = entry.tag;
+      Uri uri = (entry.fragment != null) ? entry.fragment.getDocumentUri() : entry.uri;
+      uris[i] = (uri != null) ? uri.toString() : null;
+      titles[i] = this.getTitle(i);
+      lastUsed[i] = entry.lastUsed;
+    }
+    outState.putStringArray(STATE_TAGS, tags);
+    outState.putStringArray(STATE_URIS, uris);
+    outState.putStringArray(STATE_TITLES, titles);
+    outState.putLongArray(STATE_LAST_USED, lastUsed);
+    outState.putInt(STATE_ACTIVE, this.getActiveIndex());
+  }
+
+  /**
+   * Restores the documents saved by {@link #saveState(Bundle)}, once the fragment manager has
+   * restored their fragments.
+   *
+   * @param savedInstanceState
+   *   The activity saved state
+   */
+  public void restoreState(@NonNull Bundle savedInstanceState) {
+    String[] tags = savedInstanceState.getStringArray(STATE_TAGS);
+    String[] uris = savedInstanceState.getStringArray(STATE_URIS);
+    String[] titles = savedInstanceState.getStringArray(STATE_TITLES);
+    long[] lastUsed = savedInstanceState.getLongArray(STATE_LAST_USED);
+    if ((tags == null) || (uris == null) || (titles == null) || (lastUsed == null)) {
+      return;
+    }
+    int activeIndex = savedInstanceState.getInt(STATE_ACTIVE, -1);
+    for (int i = 0; i < tags.length; i++) {
+      Entry entry = new Entry(tags[i]);
+      entry.fragment = (DocumentCardFragment) this.fragmentManager.findFragmentByTag(tags[i]);
+      entry.uri = (uris[i] != null) ? Uri.parse(uris[i]) : null;
+      entry.title = titles[i];
+      entry.lastUsed = lastUsed[i];
+      this.clock = Math.max(this.clock, entry.lastUsed);
+      // A card that was never given a document, and isn't there anymore, can't be reloaded.
+      if ((entry.fragment != null) || (entry.uri != null)) {
+        this.entries.add(entry);
+        if (i == activeIndex) {
+          this.active = entry;
+        }
+      }
+    }
+  }
+
+  /**
+   * An open document, either loaded in its card or evicted down to a stub.
+   */
+  private static final class Entry {
+
+    final String tag;
+    /**
+     * The card of the document, or null if it was evicted.
+     */
+    @Nullable
+    DocumentCardFragment fragment;
+    /**
+     * The document and its title, as they were when the card was evicted.
+     */
+    @Nullable
+    Uri uri;
+    @NonNull
+    String title = "";
+    long lastUsed = 0;
+
+    Entry(@NonNull String tag) {
+      this.tag = tag;
+    }
+  }
+}
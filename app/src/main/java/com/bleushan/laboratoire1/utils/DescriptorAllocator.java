@@ -0,0 +1,115 @@
+/*
+ * DescriptorAllocator.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.utils;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStatVfs;
+
+import com.bleushan.laboratoire1.document.DocumentWriter;
+import com.bleushan.laboratoire1.document.InsufficientSpaceException;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+/**
+ * A {@link DocumentWriter.Allocator} for a file descriptor.
+ * <p/>
+ * From Lollipop on, the usable space is read from the file system of the descriptor and the space
+ * is reserved with {@code posix_fallocate}. File systems that can't reserve space, such as the
+ * emulated external storage of some devices, simply grow the file as it's written. Before
+ * Lollipop, the usable space is only known for a file path, and space can't be reserved.
+ */
+public class DescriptorAllocator implements DocumentWriter.Allocator {
+
+  private final FileDescriptor descriptor;
+  private final File file;
+
+  /**
+   * @param descriptor
+   *   The descriptor of the file being written
+   * @param file
+   *   The file being written, if it's known
+   */
+  public DescriptorAllocator(@NonNull FileDescriptor descriptor, @Nullable File file) {
+    this.descriptor = descriptor;
+    this.file = file;
+  }
+
+  @Override
+  public long getUsableSpace() throws IOException {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+      return this.getUsableSpaceLollipop();
+    }
+    if (this.file != null) {
+      File directory = this.file.getParentFile();
+      long usable = (directory != null) ? directory.getUsableSpace() : 0;
+      // 0 means the space couldn't be read.
+      return (usable > 0) ? usable : Long.MAX_VALUE;
+    }
+    return Long.MAX_VALUE;
+  }
+
+  @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+  private long getUsableSpaceLollipop() throws IOException {
+    try {
+      StructStatVfs stat = Os.fstatvfs(this.descriptor);
+      return stat.f_bavail * stat.f_frsize;
+    } catch (ErrnoException e) {
+      throw new IOException(e);
+    }
+  }
+
+  @Override
+  public void allocate(long offset, long length) throws IOException {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+      this.allocateLollipop(offset, length);
+    }
+  }
+
+  @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+  private void allocateLollipop(long offset, long length) throws IOException {
+    try {
+      Os.posix_fallocate(this.descriptor, offset, length);
+    } catch (ErrnoException e) {
+      if (e.errno == OsConstants.ENOSPC) {
+        throw new InsufficientSpaceException(length, this.getUsableSpace());
+      }
+      if ((e.errno != OsConstants.EOPNOTSUPP) && (e.errno != OsConstants.ENOSYS) &&
+          (e.errno != OsConstants.EINVAL)) {
+        throw new IOException(e);
+      }
+    }
+  }
+}
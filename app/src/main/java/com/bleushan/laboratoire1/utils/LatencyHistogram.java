@@ -0,0 +1,216 @@
+/*
+ * LatencyHistogram.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.utils;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, lock-free histogram of latencies, in nanoseconds.
+ * <p/>
+ * Latencies are counted in log-linear buckets: each power of two is split in
+ * {@link #SUB_BUCKET_COUNT} buckets of equal width, so a recorded latency is known within 12.5%
+ * whatever its magnitude, and the whole range of a long fits in {@link #BUCKET_COUNT} buckets.
+ * Recording is a bucket index computation and a couple of atomic increments, it never allocates nor
+ * blocks, and may be done from any thread.
+ * <p/>
+ * A {@link Snapshot} reads the counters one at a time, the latencies recorded while it's being
+ * taken may be partly in it.
+ */
+public final class LatencyHistogram {
+
+  /**
+   * The number of buckets each power of two is split in.
+   */
+  public static final int SUB_BUCKET_COUNT = 8;
+  private static final int SUB_BUCKET_BITS = 3;
+  /**
+   * The number of buckets of a histogram.
+   */
+  public static final int BUCKET_COUNT = bucketOf(Long.MAX_VALUE) + 1;
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * @return the index of the bucket a latency is counted in
+   */
+  static int bucketOf(long nanos) {
+    if (nanos < SUB_BUCKET_COUNT) {
+      return (int) Math.max(nanos, 0);
+    }
+    int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(nanos)) - SUB_BUCKET_BITS;
+    return ((shift + 1) << SUB_BUCKET_BITS) +
+           (int) ((nanos >>> shift) & (SUB_BUCKET_COUNT - 1));
+  }
+
+  /**
+   * @return the lowest latency counted in a bucket
+   */
+  static long lowestOf(int bucket) {
+    if (bucket < SUB_BUCKET_COUNT) {
+      return bucket;
+    }
+    int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+    return ((long) (SUB_BUCKET_COUNT + (bucket & (SUB_BUCKET_COUNT - 1)))) << shift;
+  }
+
+  /**
+   * @return the highest latency counted in a bucket
+   */
+  static long highestOf(int bucket) {
+    if (bucket < SUB_BUCKET_COUNT) {
+      return bucket;
+    }
+    return lowestOf(bucket) + ((1L << ((bucket >>> SUB_BUCKET_BITS) - 1)) - 1);
+  }
+
+  /**
+   * Records a latency.
+   *
+   * @param nanos
+   *   The latency, in nanoseconds. A negative latency is counted as zero.
+   */
+  public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    this.counts.incrementAndGet(bucketOf(nanos));
+    this.sum.addAndGet(nanos);
+    long max;
+    while (nanos > (max = this.max.get())) {
+      if (this.max.compareAndSet(max, nanos)) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Records the time elapsed since an instant.
+   *
+   * @param startNanos
+   *   The instant, as returned by {@link System#nanoTime()}
+   *
+   * @return the current instant, so that consecutive phases can be timed from one another
+   */
+  public long recordSince(long startNanos) {
+    long now = System.nanoTime();
+    this.record(now - startNanos);
+    return now;
+  }
+
+  /**
+   * Clears the recorded latencies.
+   */
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      this.counts.set(i, 0);
+    }
+    this.sum.set(0);
+    this.max.set(0);
+  }
+
+  /**
+   * @return a copy of the recorded latencies
+   */
+  @NonNull
+  public Snapshot getSnapshot() {
+    long[] counts = new long[BUCKET_COUNT];
+    long count = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts[i] = this.counts.get(i);
+      count += counts[i];
+    }
+    return new Snapshot(counts, count, this.sum.get(), this.max.get());
+  }
+
+  /**
+   * An immutable copy of the latencies recorded by a histogram.
+   */
+  public static final class Snapshot {
+
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    Snapshot(@NonNull long[] counts, long count, long sum, long max) {
+      this.counts = counts;
+      this.count = count;
+      this.sum = sum;
+      this.max = max;
+    }
+
+    /**
+     * @return the number of recorded latencies
+     */
+    public long getCount() {
+      return this.count;
+    }
+
+    /**
+     * @return the mean latency, in nanoseconds, or 0 if none was recorded
+     */
+    public long getMean() {
+      return (this.count > 0) ? (this.sum / this.count) : 0;
+    }
+
+    /**
+     * @return the highest recorded latency, in nanoseconds
+     */
+    public long getMax() {
+      return this.max;
+    }
+
+    /**
+     * Gets a percentile of the recorded latencies. It's the highest latency of the bucket the
+     * percentile falls in, and never more than the highest recorded latency.
+     *
+     * @param percentile
+     *   The percentile, between 0 and 100
+     *
+     * @return the latency, in nanoseconds, or 0 if none was recorded
+     */
+    public long getPercentile(double percentile) {
+      if (this.count == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil((this.count * percentile) / 100));
+      long seen = 0;
+      for (int i = 0; i < this.counts.length; i++) {
+        seen += this.counts[i];
+        if (seen >= rank) {
+          return Math.min(highestOf(i), this.max);
+        }
+      }
+      return this.max;
+    }
+  }
+}
@@ -0,0 +1,219 @@
+/*
+ * LogSegments.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.utils;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * A log stored as a sequence of append-only segment files.
+ * <p/>
+ * Records are appended to the newest segment until it's bigger than a maximum size or older than
+ * a maximum age, at which point a new segment is started and, if there are too many of them, the
+ * oldest one is deleted. A rotation therefore costs one file creation and at most one deletion, and
+ * an existing segment is never rewritten. The size of the current segment is tracked in memory so
+ * writing doesn't need to stat the file.
+ * <p/>
+ * A segment is named after the time it was created, so its age carries over from one process to
+ * the next.
+ * <p/>
+ * This class is not thread safe, it's meant to be used from the {@link OperationLog} writer
+ * thread only.
+ */
+final class LogSegments {
+
+  private static final String PREFIX = "log.";
+  private static final String SUFFIX = ".txt";
+  private final File directory;
+  private final long maxSegmentSize;
+  private final long maxSegmentAge;
+  private final int maxSegments;
+  /**
+   * The creation times of the retained segments, oldest first. They're unique, a segment created
+   * within the same millisecond as the previous one is dated one millisecond later.
+   */
+  private final ArrayDeque<Long> segments = new ArrayDeque<Long>();
+  private FileChannel channel;
+  private long segmentSize;
+
+  /**
+   * @param directory
+   *   The directory holding the segments
+   * @param maxSegmentSize
+   *   The size, in bytes, after which a segment is rotated
+   * @param maxSegmentAge
+   *   The age, in milliseconds, after which a segment is rotated
+   * @param maxSegments
+   *   The number of segments to retain
+   */
+  LogSegments(@NonNull File directory, long maxSegmentSize, long maxSegmentAge, int maxSegments) {
+    this.directory = directory;
+    this.maxSegmentSize = maxSegmentSize;
+    this.maxSegmentAge = maxSegmentAge;
+    this.maxSegments = Math.max(1, maxSegments);
+  }
+
+  private static long parseCreationTime(@NonNull String name) {
+    if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+      try {
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+      } catch (NumberFormatException e) {
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Appends bytes to the current segment, rotating it first if needed.
+   *
+   * @param bytes
+   *   The bytes to append, all of them are written
+   */
+  void write(@NonNull ByteBuffer bytes) throws IOException {
+    if (this.channel == null) {
+      this.open();
+    } else if ((this.segmentSize >= this.maxSegmentSize) ||
+               ((System.currentTimeMillis() - this.segments.peekLast()) >= this.maxSegmentAge)) {
+      this.rotate();
+    }
+    while (bytes.hasRemaining()) {
+      this.segmentSize += this.channel.write(bytes);
+    }
+  }
+
+  /**
+   * Flushes the current segment to the storage device.
+   */
+  void force() throws IOException {
+    if (this.channel != null) {
+      this.channel.force(false);
+    }
+  }
+
+  /**
+   * Moves a log file written before the log was segmented into the directory. It's dated from its
+   * last modification, so it's rotated and deleted like the other segments.
+   *
+   * @param file
+   *   The log file, nothing is done if it doesn't exist
+   */
+  void migrate(@NonNull File file) {
+    if (!file.isFile()) {
+      return;
+    }
+    File target = new File(this.directory, PREFIX + file.lastModified() + SUFFIX);
+    if ((!this.directory.mkdirs() && !this.directory.isDirectory()) || target.exists() ||
+        !file.renameTo(target)) {
+      // The log isn't worth keeping if it can't be moved.
+      if (!file.delete()) {
+        file.deleteOnExit();
+      }
+    }
+  }
+
+  /**
+   * Closes the current segment. The next write reopens the newest one.
+   */
+  void close() {
+    if (this.channel != null) {
+      try {
+        this.channel.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      this.channel = null;
+    }
+  }
+
+  /**
+   * Lists the existing segments and resumes the newest one. This is the only time the directory is
+   * listed.
+   */
+  private void open() throws IOException {
+    if (!this.directory.mkdirs() && !this.directory.isDirectory()) {
+      throw new IOException("Unable to create " + this.directory);
+    }
+    this.segments.clear();
+    String[] names = this.directory.list();
+    if (names != null) {
+      long[] creationTimes = new long[names.length];
+      int count = 0;
+      for (String name : names) {
+        long creationTime = parseCreationTime(name);
+        if (creationTime >= 0) {
+          creationTimes[count++] = creationTime;
+        }
+      }
+      Arrays.sort(creationTimes, 0, count);
+      for (int i = 0; i < count; i++) {
+        this.segments.addLast(creationTimes[i]);
+      }
+    }
+    if (this.segments.isEmpty()) {
+      this.segments.addLast(System.currentTimeMillis());
+    }
+    this.openSegment(this.segments.peekLast());
+    this.trim();
+  }
+
+  private void rotate() throws IOException {
+    // The segment is never written again, nothing of it may be lost.
+    this.force();
+    this.close();
+    long creationTime = Math.max(System.currentTimeMillis(), this.segments.peekLast() + 1);
+    this.segments.addLast(creationTime);
+    this.openSegment(creationTime);
+    this.trim();
+  }
+
+  private void openSegment(long creationTime) throws IOException {
+    this.channel = new FileOutputStream(new File(this.directory, PREFIX + creationTime + SUFFIX),
+                                        true).getChannel();
+    this.segmentSize = this.channel.size();
+  }
+
+  /**
+   * Deletes the oldest segments until no more than the maximum are retained.
+   */
+  private void trim() {
+    while (this.segments.size() > this.maxSegments) {
+      File oldest = new File(this.directory, PREFIX + this.segments.pollFirst() + SUFFIX);
+      if (!oldest.delete() && oldest.exists()) {
+        oldest.deleteOnExit();
+      }
+    }
+  }
+}
@@ -27,331 +27,571 @@
 
 package com.bleushan.laboratoire1.utils;
 
+import android.support.annotation.NonNull;
+
+import java.math.BigInteger;
+import java.math.RoundingMode;
+
 /**
  * Memory unit size conversion utilities. Inspired by {@link java.util.concurrent.TimeUnit}
+ * <p/>
+ * The binary units are powers of two of a byte ({@link #KILOBYTE} is 1024 bytes), the SI units
+ * powers of ten ({@link #SI_KILOBYTE} is 1000 bytes). A unit is stored as the exponents of its size
+ * in bits, 2<sup>a</sup>&times;5<sup>b</sup>, so a conversion between two units of the same family
+ * is a single shift, and the factor of any other conversion comes from a table computed once.
+ * <p/>
+ * Like {@link java.util.concurrent.TimeUnit}, the {@code long} conversions truncate toward zero and
+ * saturate to {@link Long#MAX_VALUE} or {@link Long#MIN_VALUE} when they would overflow. The
+ * conversions that take a {@link RoundingMode} round as it says instead, and the {@code double}
+ * conversions keep the fractional part.
  */
 public enum MemoryUnit {
-  BIT {
-    @Override
-    public long toBit(long size) { return size; }
-
-    @Override
-    public long toByte(long size) { return size / (MemoryUnit.C1 / MemoryUnit.C0); }
-
-    @Override
-    public long toKilobyte(long size) { return size / (MemoryUnit.C2 / MemoryUnit.C0); }
+  BIT(-3, 0, "bit"),
+  BYTE(0, 0, "B"),
+  KILOBYTE(10, 0, "KiB"),
+  MEGABYTE(20, 0, "MiB"),
+  GIGABYTE(30, 0, "GiB"),
+  TERABYTE(40, 0, "TiB"),
+  PETABYTE(50, 0, "PiB"),
+  SI_KILOBYTE(0, 3, "kB"),
+  SI_MEGABYTE(0, 6, "MB"),
+  SI_GIGABYTE(0, 9, "GB"),
+  SI_TERABYTE(0, 12, "TB"),
+  SI_PETABYTE(0, 15, "PB");
 
-    @Override
-    public long toMegabyte(long size) { return size / (MemoryUnit.C3 / MemoryUnit.C0); }
-
-    @Override
-    public long toGigabyte(long size) { return size / (MemoryUnit.C4 / MemoryUnit.C0); }
-
-    @Override
-    public long toTerabyte(long size) { return size / (MemoryUnit.C5 / MemoryUnit.C0); }
-
-    @Override
-    public long toPetabyte(long size) { return size / (MemoryUnit.C6 / MemoryUnit.C0); }
+  /**
+   * The maximum number of chars a formatted size takes, as in "-1023.9 KiB".
+   */
+  public static final int MAX_FORMATTED_LENGTH = 11;
+  private static final MemoryUnit[] UNITS = MemoryUnit.values();
+  private static final MemoryUnit[] BINARY_UNITS =
+    {BYTE, KILOBYTE, MEGABYTE, GIGABYTE, TERABYTE, PETABYTE};
+  private static final MemoryUnit[] SI_UNITS =
+    {BYTE, SI_KILOBYTE, SI_MEGABYTE, SI_GIGABYTE, SI_TERABYTE, SI_PETABYTE};
+  /**
+   * The prefixes of the unit symbols, in the order of {@link #BINARY_UNITS} and {@link #SI_UNITS}.
+   */
+  private static final String PREFIXES = "_KMGTP";
+  private static final long[] POWERS_OF_TEN = new long[19];
+  /**
+   * The conversion factors between the units that aren't a power of two of one another, indexed by
+   * {@link #index(MemoryUnit, MemoryUnit)}. A size is converted by multiplying it by the multiplier
+   * and dividing it by the divisor.
+   */
+  private static final long[] MULTIPLIERS = new long[UNITS.length * UNITS.length];
+  private static final long[] DIVISORS = new long[UNITS.length * UNITS.length];
+  /**
+   * The largest size that can be multiplied by each multiplier without overflowing.
+   */
+  private static final long[] LIMITS = new long[UNITS.length * UNITS.length];
+  /**
+   * The conversion factors between all units, as doubles.
+   */
+  private static final double[] FACTORS = new double[UNITS.length * UNITS.length];
 
-    @Override
-    public long convert(long size, MemoryUnit unit) { return unit.toBit(size); }
-  },
-  BYTE {
-    @Override
-    public long toBit(long size) {
-      return MemoryUnit.scale(size,
-                              MemoryUnit.C1 / MemoryUnit.C0,
-                              (MemoryUnit.MAX / (MemoryUnit.C1 / MemoryUnit.C0)));
+  static {
+    POWERS_OF_TEN[0] = 1;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
     }
+    for (MemoryUnit source : UNITS) {
+      for (MemoryUnit target : UNITS) {
+        int index = index(source, target);
+        int twos = source.twos - target.twos;
+        int fives = source.fives - target.fives;
+        MULTIPLIERS[index] = pow(Math.max(twos, 0), Math.max(fives, 0));
+        DIVISORS[index] = pow(Math.max(-twos, 0), Math.max(-fives, 0));
+        LIMITS[index] = Long.MAX_VALUE / MULTIPLIERS[index];
+        FACTORS[index] = Math.scalb(Math.pow(5, fives), twos);
+      }
+    }
+  }
 
-    @Override
-    public long toByte(long size) { return size; }
-
-    @Override
-    public long toKilobyte(long size) { return size / (MemoryUnit.C2 / MemoryUnit.C1); }
-
-    @Override
-    public long toMegabyte(long size) { return size / (MemoryUnit.C3 / MemoryUnit.C1); }
-
-    @Override
-    public long toGigabyte(long size) { return size / (MemoryUnit.C4 / MemoryUnit.C1); }
+  /**
+   * The exponent of two of the size of the unit, in bits.
+   */
+  private final int twos;
+  /**
+   * The exponent of five of the size of the unit, in bits.
+   */
+  private final int fives;
+  /**
+   * The size of the unit, in bytes, or 0 for a unit smaller than a byte.
+   */
+  private final long byteSize;
+  private final String symbol;
 
-    @Override
-    public long toTerabyte(long size) { return size / (MemoryUnit.C5 / MemoryUnit.C1); }
+  /**
+   * @param byteShift
+   *   The exponent of two of the size of the unit, in bytes
+   * @param decimalExponent
+   *   The exponent of ten of the size of the unit, in bytes
+   * @param symbol
+   *   The symbol of the unit
+   */
+  MemoryUnit(int byteShift, int decimalExponent, @NonNull String symbol) {
+    this.twos = byteShift + 3 + decimalExponent;
+    this.fives = decimalExponent;
+    this.byteSize = (byteShift < 0) ? 0 : pow(byteShift + decimalExponent, decimalExponent);
+    this.symbol = symbol;
+  }
 
-    @Override
-    public long toPetabyte(long size) { return size / (MemoryUnit.C6 / MemoryUnit.C1); }
+  private static int index(@NonNull MemoryUnit source, @NonNull MemoryUnit target) {
+    return (source.ordinal() * UNITS.length) + target.ordinal();
+  }
 
-    @Override
-    public long convert(long size, MemoryUnit unit) {return unit.toByte(size);}
-  },
-  KILOBYTE {
-    @Override
-    public long toBit(long size) {
-      return MemoryUnit.scale(size,
-                              MemoryUnit.C2 / MemoryUnit.C0,
-                              (MemoryUnit.MAX /
-                               (MemoryUnit.C2 / MemoryUnit.C0)));
+  /**
+   * @return 2<sup>twos</sup>&times;5<sup>fives</sup>
+   */
+  private static long pow(int twos, int fives) {
+    long value = 1L << twos;
+    for (int i = 0; i < fives; i++) {
+      value *= 5;
     }
+    return value;
+  }
 
-    @Override
-    public long toByte(long size) {
-      return MemoryUnit.scale(size,
-                              MemoryUnit.C2 / MemoryUnit.C1,
-                              (MemoryUnit.MAX /
-                               (MemoryUnit.C2 / MemoryUnit.C1)));
+  /**
+   * Converts a size, truncating toward zero and saturating on overflow. This is the fast path every
+   * {@code long} conversion goes through.
+   */
+  private static long convert(long size, @NonNull MemoryUnit source, @NonNull MemoryUnit target) {
+    if (source.fives == target.fives) {
+      int shift = source.twos - target.twos;
+      if (shift >= 0) {
+        return shiftLeft(size, shift);
+      }
+      return shiftRight(size, -shift);
     }
+    return convert(size, index(source, target), RoundingMode.DOWN);
+  }
 
-    @Override
-    public long toKilobyte(long size) {return size;}
-
-    @Override
-    public long toMegabyte(long size) {return size / (MemoryUnit.C3 / MemoryUnit.C2);}
-
-    @Override
-    public long toGigabyte(long size) {return size / (MemoryUnit.C4 / MemoryUnit.C2);}
-
-    @Override
-    public long toTerabyte(long size) {return size / (MemoryUnit.C5 / MemoryUnit.C2);}
-
-    @Override
-    public long toPetabyte(long size) {return size / (MemoryUnit.C6 / MemoryUnit.C2);}
-
-    @Override
-    public long convert(long size, MemoryUnit unit) {return unit.toKilobyte(size);}
-  },
-  MEGABYTE {
-    @Override
-    public long toBit(long size) {
-      return MemoryUnit.scale(size,
-                              MemoryUnit.C3 / MemoryUnit.C0,
-                              (MemoryUnit.MAX /
-                               (MemoryUnit.C3 / MemoryUnit.C0)));
+  /**
+   * Multiplies a size by a power of two, saturating on overflow.
+   */
+  private static long shiftLeft(long size, int shift) {
+    long limit = Long.MAX_VALUE >> shift;
+    if (size > limit) {
+      return Long.MAX_VALUE;
     }
-
-    @Override
-    public long toByte(long size) {
-      return MemoryUnit.scale(size,
-                              MemoryUnit.C3 / MemoryUnit.C1,
-                              (MemoryUnit.MAX /
-                               (MemoryUnit.C3 / MemoryUnit.C1)));
+    if (size < -limit) {
+      return Long.MIN_VALUE;
     }
+    return size << shift;
+  }
 
-    @Override
-    public long toKilobyte(long size) {
-      return MemoryUnit.scale(size,
-                              MemoryUnit.C3 / MemoryUnit.C2,
-                              (MemoryUnit.MAX /
-                               (MemoryUnit.C3 / MemoryUnit.C2)));
+  /**
+   * Divides a size by a power of two, truncating toward zero.
+   */
+  private static long shiftRight(long size, int shift) {
+    if (shift >= Long.SIZE) {
+      return 0;
     }
+    // Negate the size as an unsigned value, so that Long.MIN_VALUE is handled as well.
+    return (size >= 0) ? (size >>> shift) : -((-size) >>> shift);
+  }
 
-    @Override
-    public long toMegabyte(long size) {return size;}
-
-    @Override
-    public long toGigabyte(long size) {return size / (MemoryUnit.C4 / MemoryUnit.C3);}
-
-    @Override
-    public long toTerabyte(long size) {return size / (MemoryUnit.C5 / MemoryUnit.C3);}
-
-    @Override
-    public long toPetabyte(long size) {return size / (MemoryUnit.C6 / MemoryUnit.C3);}
-
-    @Override
-    public long convert(long size, MemoryUnit unit) {return unit.toMegabyte(size);}
-  },
-  GIGABYTE {
-    @Override
-    public long toBit(long size) {
-      return MemoryUnit.scale(size,
-                              MemoryUnit.C4 / MemoryUnit.C0,
-                              (MemoryUnit.MAX /
-                               (MemoryUnit.C4 / MemoryUnit.C0)));
+  /**
+   * Converts a size with a factor of the table.
+   */
+  private static long convert(long size, int index, @NonNull RoundingMode roundingMode) {
+    long multiplier = MULTIPLIERS[index];
+    long divisor = DIVISORS[index];
+    long limit = LIMITS[index];
+    long quotient = size / divisor;
+    long remainder = size % divisor;
+    if (quotient > limit) {
+      return Long.MAX_VALUE;
     }
-
-    @Override
-    public long toByte(long size) {
-      return MemoryUnit.scale(size,
-                              MemoryUnit.C4 / MemoryUnit.C1,
-                              (MemoryUnit.MAX /
-                               (MemoryUnit.C4 / MemoryUnit.C1)));
+    if (quotient < -limit) {
+      return Long.MIN_VALUE;
     }
-
-    @Override
-    public long toKilobyte(long size) {
-      return MemoryUnit.scale(size,
-                              MemoryUnit.C4 / MemoryUnit.C2,
-                              (MemoryUnit.MAX /
-                               (MemoryUnit.C4 / MemoryUnit.C2)));
+    if ((remainder > limit) || (remainder < -limit)) {
+      return convertExactly(size, multiplier, divisor, roundingMode);
     }
+    // size * multiplier / divisor, without overflowing the product.
+    long high = quotient * multiplier;
+    long product = remainder * multiplier;
+    long low = product / divisor;
+    long result = high + low;
+    if (((high ^ result) & (low ^ result)) < 0) {
+      return (high < 0) ? Long.MIN_VALUE : Long.MAX_VALUE;
+    }
+    return round(result, product % divisor, divisor, roundingMode);
+  }
 
-    @Override
-    public long toMegabyte(long size) {
-      return MemoryUnit.scale(size,
-                              MemoryUnit.C4 / MemoryUnit.C3,
-                              (MemoryUnit.MAX /
-                               (MemoryUnit.C4 / MemoryUnit.C3)));
+  /**
+   * Slow path of {@link #convert(long, int, RoundingMode)}, for the few units whose factor doesn't
+   * fit the intermediate products in a long.
+   */
+  private static long convertExactly(long size, long multiplier, long divisor,
+                                     @NonNull RoundingMode roundingMode) {
+    BigInteger[] division = BigInteger.valueOf(size)
+                                      .multiply(BigInteger.valueOf(multiplier))
+                                      .divideAndRemainder(BigInteger.valueOf(divisor));
+    if (division[0].bitLength() >= Long.SIZE) {
+      return (division[0].signum() < 0) ? Long.MIN_VALUE : Long.MAX_VALUE;
     }
+    return round(division[0].longValue(), division[1].longValue(), divisor, roundingMode);
+  }
 
-    @Override
-    public long toGigabyte(long size) { return size; }
+  /**
+   * Rounds the result of a division.
+   *
+   * @param quotient
+   *   The quotient, truncated toward zero
+   * @param remainder
+   *   The remainder, it has the sign of the dividend
+   * @param divisor
+   *   The divisor, it's positive
+   * @param roundingMode
+   *   How to round the quotient
+   *
+   * @return the rounded quotient
+   */
+  private static long round(long quotient, long remainder, long divisor,
+                            @NonNull RoundingMode roundingMode) {
+    if (remainder == 0) {
+      return quotient;
+    }
+    int sign = (remainder < 0) ? -1 : 1;
+    boolean increment;
+    switch (roundingMode) {
+      case UNNECESSARY:
+        throw new ArithmeticException("Rounding necessary");
+      case DOWN:
+        increment = false;
+        break;
+      case UP:
+        increment = true;
+        break;
+      case FLOOR:
+        increment = (sign < 0);
+        break;
+      case CEILING:
+        increment = (sign > 0);
+        break;
+      default:
+        // Compare the remainder to half the divisor, without overflowing.
+        long absRemainder = Math.abs(remainder);
+        long other = divisor - absRemainder;
+        if (absRemainder != other) {
+          increment = (absRemainder > other);
+        } else if (roundingMode == RoundingMode.HALF_EVEN) {
+          increment = ((quotient & 1) != 0);
+        } else {
+          increment = (roundingMode == RoundingMode.HALF_UP);
+        }
+        break;
+    }
+    if (!increment) {
+      return quotient;
+    }
+    long result = quotient + sign;
+    // Saturate rather than wrap around.
+    return ((result ^ quotient) < 0) && (quotient != 0) ? quotient : result;
+  }
 
-    @Override
-    public long toTerabyte(long size) {return size / (MemoryUnit.C5 / MemoryUnit.C4);}
+  /**
+   * Converts a size in a given unit to this unit, truncating toward zero. Conversions that would
+   * overflow saturate to {@link Long#MIN_VALUE} or {@link Long#MAX_VALUE}.
+   *
+   * @param sourceSize
+   *   The size in the given unit
+   * @param sourceUnit
+   *   The unit of the size
+   *
+   * @return the size in this unit
+   */
+  public long convert(long sourceSize, @NonNull MemoryUnit sourceUnit) {
+    return convert(sourceSize, sourceUnit, this);
+  }
 
-    @Override
-    public long toPetabyte(long size) {return size / (MemoryUnit.C6 / MemoryUnit.C4);}
+  /**
+   * Converts a size in a given unit to this unit, rounding as told. Conversions that would overflow
+   * saturate to {@link Long#MIN_VALUE} or {@link Long#MAX_VALUE}.
+   *
+   * @param sourceSize
+   *   The size in the given unit
+   * @param sourceUnit
+   *   The unit of the size
+   * @param roundingMode
+   *   How to round the fractional part of the converted size
+   *
+   * @return the size in this unit
+   *
+   * @throws ArithmeticException
+   *   If the rounding mode is {@link RoundingMode#UNNECESSARY} and the size has a fractional part
+   *   in this unit
+   */
+  public long convert(long sourceSize, @NonNull MemoryUnit sourceUnit,
+                      @NonNull RoundingMode roundingMode) {
+    if (this.fives == sourceUnit.fives) {
+      int shift = sourceUnit.twos - this.twos;
+      if (shift >= 0) {
+        return shiftLeft(sourceSize, shift);
+      }
+      long quotient = shiftRight(sourceSize, -shift);
+      return round(quotient, sourceSize - (quotient << -shift), 1L << -shift, roundingMode);
+    }
+    return convert(sourceSize, index(sourceUnit, this), roundingMode);
+  }
 
-    @Override
-    public long convert(long size, MemoryUnit unit) {return unit.toGigabyte(size);}
+  /**
+   * Converts a fractional size in a given unit to this unit.
+   *
+   * @param sourceSize
+   *   The size in the given unit
+   * @param sourceUnit
+   *   The unit of the size
+   *
+   * @return the size in this unit
+   */
+  public double convert(double sourceSize, @NonNull MemoryUnit sourceUnit) {
+    return sourceSize * FACTORS[index(sourceUnit, this)];
+  }
 
-  },
-  TERABYTE {
-    @Override
-    public long toBit(long size) {
-      return MemoryUnit.scale(size,
-                              MemoryUnit.C5 / MemoryUnit.C0,
-                              (MemoryUnit.MAX /
-                               (MemoryUnit.C5 / MemoryUnit.C0)));
+  /**
+   * Formats a size in bytes with the largest unit it's at least one of, and a single decimal, as
+   * in "1.5 GiB" or "200 MB". The decimal is left out when it's zero.
+   *
+   * @param bytes
+   *   The size, in bytes
+   * @param si
+   *   Whether to use the SI units, otherwise the binary units are used
+   * @param out
+   *   The builder the formatted size is appended to
+   *
+   * @return the builder
+   */
+  @NonNull
+  public static StringBuilder formatBytes(long bytes, boolean si, @NonNull StringBuilder out) {
+    int format = selectFormat(bytes, si);
+    if (bytes < 0) {
+      out.append('-');
     }
-
-    @Override
-    public long toByte(long size) {
-      return MemoryUnit.scale(size,
-                              MemoryUnit.C5 / MemoryUnit.C1,
-                              (MemoryUnit.MAX /
-                               (MemoryUnit.C5 / MemoryUnit.C1)));
+    int digits = digitCount(formatInteger(format));
+    for (int i = digits - 1; i >= 0; i--) {
+      out.append((char) ('0' + ((formatInteger(format) / POWERS_OF_TEN[i]) % 10)));
     }
-
-    @Override
-    public long toKilobyte(long size) {
-      return MemoryUnit.scale(size,
-                              MemoryUnit.C5 / MemoryUnit.C2,
-                              (MemoryUnit.MAX /
-                               (MemoryUnit.C5 / MemoryUnit.C2)));
+    if (formatDecimal(format) != 0) {
+      out.append('.').append((char) ('0' + formatDecimal(format)));
     }
+    return out.append(' ').append(formatUnit(format, si).symbol);
+  }
 
-    @Override
-    public long toMegabyte(long size) {
-      return MemoryUnit.scale(size,
-                              MemoryUnit.C5 / MemoryUnit.C3,
-                              (MemoryUnit.MAX /
-                               (MemoryUnit.C5 / MemoryUnit.C3)));
+  /**
+   * Formats a size in bytes, like {@link #formatBytes(long, boolean, StringBuilder)}, into an
+   * array.
+   *
+   * @param bytes
+   *   The size, in bytes
+   * @param si
+   *   Whether to use the SI units, otherwise the binary units are used
+   * @param dest
+   *   The array the formatted size is written to
+   * @param offset
+   *   The index in the array where the first char is written. There must be room for
+   *   {@link #MAX_FORMATTED_LENGTH} chars past it.
+   *
+   * @return the number of chars written
+   */
+  public static int formatBytes(long bytes, boolean si, @NonNull char[] dest, int offset) {
+    if ((offset < 0) || (offset > (dest.length - MAX_FORMATTED_LENGTH))) {
+      throw new IndexOutOfBoundsException("offset " + offset + ", length " + dest.length);
     }
-
-    @Override
-    public long toGigabyte(long size) {
-      return MemoryUnit.scale(size,
-                              MemoryUnit.C5 / MemoryUnit.C4,
-                              (MemoryUnit.MAX /
-                               (MemoryUnit.C5 / MemoryUnit.C4)));
+    int format = selectFormat(bytes, si);
+    int index = offset;
+    if (bytes < 0) {
+      dest[index++] = '-';
     }
-
-    @Override
-    public long toTerabyte(long size) { return size; }
-
-    @Override
-    public long toPetabyte(long size) {return size / (MemoryUnit.C6 / MemoryUnit.C5);}
-
-    @Override
-    public long convert(long size, MemoryUnit unit) {return unit.toTerabyte(size);}
-
-  },
-  PETABYTE {
-    @Override
-    public long toBit(long size) {
-      return MemoryUnit.scale(size,
-                              MemoryUnit.C6 / MemoryUnit.C0,
-                              (MemoryUnit.MAX /
-                               (MemoryUnit.C6 / MemoryUnit.C0)));
+    int integer = formatInteger(format);
+    index += digitCount(integer);
+    for (int i = index - 1; integer > 0; i--) {
+      dest[i] = (char) ('0' + (integer % 10));
+      integer /= 10;
     }
-
-    @Override
-    public long toByte(long size) {
-      return MemoryUnit.scale(size,
-                              MemoryUnit.C6 / MemoryUnit.C1,
-                              (MemoryUnit.MAX /
-                               (MemoryUnit.C6 / MemoryUnit.C1)));
+    if (formatInteger(format) == 0) {
+      dest[index - 1] = '0';
     }
-
-    @Override
-    public long toKilobyte(long size) {
-      return MemoryUnit.scale(size,
-                              MemoryUnit.C6 / MemoryUnit.C2,
-                              (MemoryUnit.MAX /
-                               (MemoryUnit.C6 / MemoryUnit.C2)));
+    if (formatDecimal(format) != 0) {
+      dest[index++] = '.';
+      dest[index++] = (char) ('0' + formatDecimal(format));
     }
+    dest[index++] = ' ';
+    String symbol = formatUnit(format, si).symbol;
+    symbol.getChars(0, symbol.length(), dest, index);
+    return (index + symbol.length()) - offset;
+  }
 
-    @Override
-    public long toMegabyte(long size) {
-      return MemoryUnit.scale(size,
-                              MemoryUnit.C6 / MemoryUnit.C3,
-                              (MemoryUnit.MAX /
-                               (MemoryUnit.C6 / MemoryUnit.C3)));
+  /**
+   * Chooses how to format a size. The result packs, from the lowest bits up, the index of the unit
+   * in {@link #BINARY_UNITS} or {@link #SI_UNITS}, the decimal digit, and the integer part.
+   */
+  private static int selectFormat(long bytes, boolean si) {
+    MemoryUnit[] units = si ? SI_UNITS : BINARY_UNITS;
+    int unit = 0;
+    while ((unit < (units.length - 1)) &&
+           ((bytes >= units[unit + 1].byteSize) || (bytes <= -units[unit + 1].byteSize))) {
+      unit++;
     }
-
-    @Override
-    public long toGigabyte(long size) {
-      return MemoryUnit.scale(size,
-                              MemoryUnit.C6 / MemoryUnit.C4,
-                              (MemoryUnit.MAX /
-                               (MemoryUnit.C6 / MemoryUnit.C4)));
+    long byteSize = units[unit].byteSize;
+    // Take the magnitude of both parts rather than of the size, which may be Long.MIN_VALUE.
+    long integer = Math.abs(bytes / byteSize);
+    long decimal = ((Math.abs(bytes % byteSize) * 10) + (byteSize / 2)) / byteSize;
+    if (decimal == 10) {
+      integer++;
+      decimal = 0;
     }
-
-    @Override
-    public long toTerabyte(long size) {
-      return MemoryUnit.scale(size,
-                              MemoryUnit.C6 / MemoryUnit.C5,
-                              (MemoryUnit.MAX /
-                               (MemoryUnit.C6 / MemoryUnit.C5)));
+    // 1023.96 KiB is rounded up to 1024.0 KiB, which is better said 1 MiB.
+    if ((unit < (units.length - 1)) && (integer == (units[unit + 1].byteSize / byteSize))) {
+      unit++;
+      integer = 1;
     }
+    return (int) ((integer << 8) | (decimal << 4) | unit);
+  }
 
-    @Override
-    public long toPetabyte(long size) { return size; }
+  private static int formatInteger(int format) {
+    return format >>> 8;
+  }
 
-    @Override
-    public long convert(long size, MemoryUnit unit) {return unit.toPetabyte(size);}
+  private static int formatDecimal(int format) {
+    return (format >>> 4) & 0xF;
+  }
 
-  };
+  @NonNull
+  private static MemoryUnit formatUnit(int format, boolean si) {
+    return (si ? SI_UNITS : BINARY_UNITS)[format & 0xF];
+  }
 
-  private static final long C0 = 1L;
-  private static final long C1 = MemoryUnit.C0 * 8L;
-  private static final long C2 = MemoryUnit.C1 * 1024L;
-  private static final long C3 = MemoryUnit.C2 * 1024L;
-  private static final long C4 = MemoryUnit.C3 * 1024L;
-  private static final long C5 = MemoryUnit.C4 * 1024L;
-  private static final long C6 = MemoryUnit.C5 * 1024L;
-  private static final long MAX = Long.MAX_VALUE;
+  private static int digitCount(long value) {
+    int count = 1;
+    while ((count < POWERS_OF_TEN.length) && (value >= POWERS_OF_TEN[count])) {
+      count++;
+    }
+    return count;
+  }
 
   /**
-   * Scale s by m, checking for overflow.
-   * This has a short name to make above code more readable.
+   * Parses a size, as in "1.5 GiB" or "200MB", to bytes. Nothing is allocated unless the size is
+   * malformed.
+   * <p/>
+   * The size is a positive decimal number, optionally followed by a unit symbol, and optionally
+   * surrounded by whitespace. The symbols are case insensitive: "B" is a byte, "KiB" to "PiB" and
+   * "K" to "P" are the binary units, and "kB" to "PB" are the SI units. A size without a symbol is
+   * in bytes. Decimals are rounded half up to a whole byte, decimals past the precision of a long
+   * are ignored.
+   *
+   * @param text
+   *   The text to parse
+   *
+   * @return the size, in bytes
+   *
+   * @throws NumberFormatException
+   *   If the text isn't a size, or if the size doesn't fit in a long
    */
-  private static long scale(long s, long m, long over) {
-    if (s > over) {
-      return Long.MAX_VALUE;
+  public static long parseBytes(@NonNull CharSequence text) {
+    int length = text.length();
+    int index = skipWhitespace(text, 0);
+    long mantissa = 0;
+    int decimals = 0;
+    int digits = 0;
+    boolean isDecimal = false;
+    boolean isTruncated = false;
+    for (; index < length; index++) {
+      char c = text.charAt(index);
+      if ((c == '.') && !isDecimal) {
+        isDecimal = true;
+      } else if ((c >= '0') && (c <= '9')) {
+        digits++;
+        if (mantissa <= ((Long.MAX_VALUE - (c - '0')) / 10)) {
+          if (!isTruncated && (!isDecimal || (decimals < (POWERS_OF_TEN.length - 1)))) {
+            mantissa = (mantissa * 10) + (c - '0');
+            decimals += isDecimal ? 1 : 0;
+          } else {
+            isTruncated = true;
+          }
+        } else if (isDecimal) {
+          isTruncated = true;
+        } else {
+          throw new NumberFormatException("Size too large: \"" + text + "\"");
+        }
+      } else {
+        break;
+      }
     }
-    if (s < -over) {
-      return Long.MIN_VALUE;
+    if (digits == 0) {
+      throw new NumberFormatException("Invalid size: \"" + text + "\"");
+    }
+    index = skipWhitespace(text, index);
+    MemoryUnit unit = BYTE;
+    if (index < length) {
+      int prefix = PREFIXES.indexOf(Character.toUpperCase(text.charAt(index)));
+      if (prefix > 0) {
+        index++;
+        unit = BINARY_UNITS[prefix];
+        if ((index < length) && (Character.toUpperCase(text.charAt(index)) == 'I')) {
+          index++;
+          if ((index < length) && (Character.toUpperCase(text.charAt(index)) == 'B')) {
+            index++;
+          }
+        } else if ((index < length) && (Character.toUpperCase(text.charAt(index)) == 'B')) {
+          index++;
+          unit = SI_UNITS[prefix];
+        }
+      } else if (Character.toUpperCase(text.charAt(index)) == 'B') {
+        index++;
+      }
+    }
+    if (skipWhitespace(text, index) != length) {
+      throw new NumberFormatException("Invalid size: \"" + text + "\"");
+    }
+    // Ignore the decimals that would make the fractional product overflow. They are truncated,
+    // rounding them up could carry into the integer part and push it past the limit.
+    long limit = Long.MAX_VALUE / unit.byteSize;
+    while ((decimals > 0) && (POWERS_OF_TEN[decimals] > limit)) {
+      mantissa /= 10;
+      decimals--;
     }
-    return s * m;
+    long divisor = POWERS_OF_TEN[decimals];
+    long integer = mantissa / divisor;
+    long fraction = (mantissa % divisor) * unit.byteSize;
+    long bytes = fraction / divisor;
+    if ((fraction % divisor) * 2 >= divisor) {
+      bytes++;
+    }
+    if ((integer > limit) || ((integer * unit.byteSize) > (Long.MAX_VALUE - bytes))) {
+      throw new NumberFormatException("Size too large: \"" + text + "\"");
+    }
+    return (integer * unit.byteSize) + bytes;
   }
 
-  public long convert(long sourceSize, MemoryUnit sourceUnit) {
-    throw new AbstractMethodError();
+  private static int skipWhitespace(@NonNull CharSequence text, int index) {
+    while ((index < text.length()) && Character.isWhitespace(text.charAt(index))) {
+      index++;
+    }
+    return index;
+  }
+
+  /**
+   * @return the symbol of the unit, as in "KiB" or "MB"
+   */
+  @NonNull
+  public String getSymbol() {
+    return this.symbol;
   }
 
-  public long toBit(long size) {throw new AbstractMethodError();}
+  public long toBit(long size) { return convert(size, this, BIT); }
 
-  public long toByte(long size) {throw new AbstractMethodError();}
+  public long toByte(long size) { return convert(size, this, BYTE); }
 
-  public long toKilobyte(long size) {throw new AbstractMethodError();}
+  public long toKilobyte(long size) { return convert(size, this, KILOBYTE); }
 
-  public long toMegabyte(long size) {throw new AbstractMethodError();}
+  public long toMegabyte(long size) { return convert(size, this, MEGABYTE); }
 
-  public long toGigabyte(long size) {throw new AbstractMethodError();}
+  public long toGigabyte(long size) { return convert(size, this, GIGABYTE); }
 
-  public long toTerabyte(long size) {throw new AbstractMethodError();}
+  public long toTerabyte(long size) { return convert(size, this, TERABYTE); }
 
-  public long toPetabyte(long size) {throw new AbstractMethodError();}
+  public long toPetabyte(long size) { return convert(size, this, PETABYTE); }
 }
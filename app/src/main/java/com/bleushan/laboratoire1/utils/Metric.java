@@ -0,0 +1,163 @@
+/*
+ * Metric.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.utils;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The latencies the application keeps track of, each recorded in its own
+ * {@link LatencyHistogram}.
+ * <p/>
+ * Timing a phase is a matter of reading {@link System#nanoTime()} before it and handing that
+ * instant to {@link #recordSince(long)} after it.
+ */
+public enum Metric {
+  /**
+   * Opening the descriptor of a document.
+   */
+  DOCUMENT_OPEN("document.open"),
+  /**
+   * Mapping a window of a document being loaded.
+   */
+  DOCUMENT_MAP("document.map"),
+  /**
+   * Decoding a window of a document being loaded.
+   */
+  DOCUMENT_DECODE("document.decode"),
+  /**
+   * Handing a chunk of decoded text over to the text box.
+   */
+  DOCUMENT_SET_TEXT("document.setText"),
+  /**
+   * Loading a whole document, from opening its descriptor to having it in the text box.
+   */
+  DOCUMENT_LOAD("document.load"),
+  /**
+   * Building the line index of a document, from detecting its charset to merging its chunks.
+   */
+  DOCUMENT_INDEX("document.index"),
+  /**
+   * Encoding the changed range of a document being saved into the staging file.
+   */
+  SAVE_ENCODE("save.encode"),
+  /**
+   * Shifting the bytes that follow the change of a document being saved, and copying the staged
+   * range into its file.
+   */
+  SAVE_WRITE("save.write"),
+  /**
+   * Recording a revision of a document in the version store, from reading it to writing its
+   * chunks.
+   */
+  VERSION_RECORD("version.record"),
+  PROVIDER_QUERY_ROOTS("provider.queryRoots"),
+  PROVIDER_QUERY_DOCUMENT("provider.queryDocument"),
+  PROVIDER_QUERY_CHILD_DOCUMENTS("provider.queryChildDocuments"),
+  PROVIDER_QUERY_SEARCH_DOCUMENTS("provider.querySearchDocuments"),
+  PROVIDER_QUERY_RECENT_DOCUMENTS("provider.queryRecentDocuments");
+
+  private final String label;
+  private final LatencyHistogram histogram = new LatencyHistogram();
+
+  Metric(@NonNull String label) {
+    this.label = label;
+  }
+
+  /**
+   * Writes a snapshot of every metric, one line each, with its count and latency percentiles in
+   * microseconds. The metrics that weren't recorded are left out.
+   *
+   * @param writer
+   *   The writer the snapshots are written to
+   */
+  public static void dump(@NonNull Writer writer) throws IOException {
+    for (Metric metric : values()) {
+      LatencyHistogram.Snapshot snapshot = metric.histogram.getSnapshot();
+      if (snapshot.getCount() > 0) {
+        writer.write(metric.label + " count=" + snapshot.getCount() +
+                     " mean=" + toMicros(snapshot.getMean()) +
+                     " p50=" + toMicros(snapshot.getPercentile(50)) +
+                     " p90=" + toMicros(snapshot.getPercentile(90)) +
+                     " p99=" + toMicros(snapshot.getPercentile(99)) +
+                     " max=" + toMicros(snapshot.getMax()) + " us\n");
+      }
+    }
+  }
+
+  /**
+   * Writes a snapshot of every metric to a file, replacing its content.
+   *
+   * @param file
+   *   The file the snapshots are written to
+   *
+   * @see #dump(Writer)
+   */
+  public static void dump(@NonNull File file) throws IOException {
+    try (Writer writer = new FileWriter(file)) {
+      dump(writer);
+    }
+  }
+
+  private static long toMicros(long nanos) {
+    return TimeUnit.NANOSECONDS.toMicros(nanos);
+  }
+
+  /**
+   * Records the time elapsed since an instant.
+   *
+   * @param startNanos
+   *   The instant, as returned by {@link System#nanoTime()}
+   *
+   * @return the current instant, so that consecutive phases can be timed from one another
+   */
+  public long recordSince(long startNanos) {
+    return this.histogram.recordSince(startNanos);
+  }
+
+  /**
+   * @return the histogram of the latencies of the metric
+   */
+  @NonNull
+  public LatencyHistogram getHistogram() {
+    return this.histogram;
+  }
+
+  /**
+   * @return the label of the metric in the dumps
+   */
+  @NonNull
+  public String getLabel() {
+    return this.label;
+  }
+}
@@ -0,0 +1,395 @@
+/*
+ * OperationLog.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.utils;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.bleushan.laboratoire1.BuildConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The process-wide file operation log.
+ * <p/>
+ * Logging a record never touches the disk: the record is put in a bounded lock-free queue and a
+ * single background writer thread drains the queue in batches. Each batch is written to the
+ * current log segment, which is flushed to the storage device at most once every
+ * {@link #FLUSH_INTERVAL_MS}. What happens when the queue is full is decided by
+ * the {@link OverflowPolicy}.
+ * <p/>
+ * The log is stored in segments that are rotated by size and age, and only the
+ * {@link #MAX_SEGMENTS} newest segments are kept.
+ *
+ * @see LogSegments
+ */
+public final class OperationLog {
+
+  /**
+   * The number of records the queue can hold.
+   */
+  public static final int QUEUE_CAPACITY = 1024;
+  /**
+   * The maximum delay between two flushes of the log to the storage device.
+   */
+  public static final long FLUSH_INTERVAL_MS = 1000;
+  /**
+   * The size after which a log segment is rotated.
+   */
+  public static final long MAX_SEGMENT_SIZE = MemoryUnit.MEGABYTE.toByte(1);
+  /**
+   * The age after which a log segment is rotated.
+   */
+  public static final long MAX_SEGMENT_AGE_MS = TimeUnit.DAYS.toMillis(1);
+  /**
+   * The number of log segments kept.
+   */
+  public static final int MAX_SEGMENTS = 8;
+  /**
+   * How long the writer waits for new records before it checks the queue again. This is the window
+   * in which records are grouped in the same batch.
+   */
+  private static final long BATCH_DELAY_NS = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final String TAG = OperationLog.class.getSimpleName();
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static OperationLog instance;
+  private final RingBuffer queue = new RingBuffer(QUEUE_CAPACITY);
+  private final ConcurrentHashMap<String, AtomicInteger> coalesced =
+    new ConcurrentHashMap<String, AtomicInteger>();
+  private final AtomicLong droppedCount = new AtomicLong();
+  private final Thread writer;
+  private volatile OverflowPolicy overflowPolicy = OverflowPolicy.COALESCE;
+  // The following fields are only accessed from the writer thread.
+  private final ByteBuffer batch = ByteBuffer.allocate((int) MemoryUnit.KILOBYTE.toByte(64));
+  private final LogSegments segments;
+  /**
+   * The log file written before the log was segmented.
+   */
+  private final File legacyLog;
+  private long lastFlush;
+  private boolean hasUnflushedData = false;
+
+  private OperationLog(@NonNull File logDirectory, @NonNull File legacyLog) {
+    this.segments = new LogSegments(logDirectory, MAX_SEGMENT_SIZE, MAX_SEGMENT_AGE_MS,
+                                    MAX_SEGMENTS);
+    this.legacyLog = legacyLog;
+    this.writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        OperationLog.this.runWriter();
+      }
+    }, TAG);
+    this.writer.setDaemon(true);
+    this.writer.start();
+  }
+
+  /**
+   * @param context
+   *   Any context of the application
+   *
+   * @return the operation log of the application, its segments are located in the logs folder of
+   * the cache directory of the application.
+   *
+   * @see Context#getCacheDir()
+   */
+  public static synchronized OperationLog getInstance(@NonNull Context context) {
+    if (instance == null) {
+      File cacheDir = context.getApplicationContext().getCacheDir();
+      instance = new OperationLog(new File(cacheDir, "logs"), new File(cacheDir, "log.txt"));
+    }
+    return instance;
+  }
+
+  public OverflowPolicy getOverflowPolicy() {
+    return this.overflowPolicy;
+  }
+
+  public void setOverflowPolicy(@NonNull OverflowPolicy overflowPolicy) {
+    this.overflowPolicy = overflowPolicy;
+  }
+
+  /**
+   * @return the number of records dropped because the queue was full
+   */
+  public long getDroppedCount() {
+    return this.droppedCount.get();
+  }
+
+  /**
+   * Logs a file operation. This method never blocks, unless the overflow policy is
+   * {@link OverflowPolicy#BLOCK} and the queue is full.
+   *
+   * @param filename
+   *   The name of the file that's been operated on
+   * @param message
+   *   The message to add to the log
+   */
+  public void log(@NonNull String filename, @NonNull String message) {
+    Record record = new Record(System.currentTimeMillis(), filename, message);
+    if (this.queue.offer(record)) {
+      return;
+    }
+    // The queue is full, make sure the writer is awake before applying the policy.
+    LockSupport.unpark(this.writer);
+    switch (this.overflowPolicy) {
+      case BLOCK:
+        while (!this.queue.offer(record)) {
+          LockSupport.parkNanos(BATCH_DELAY_NS / 10);
+        }
+        break;
+      case COALESCE:
+        this.coalesce(filename + ": " + message);
+        break;
+      case DROP:
+      default:
+        this.droppedCount.incrementAndGet();
+        break;
+    }
+  }
+
+  /**
+   * Counts a record that didn't fit in the queue with the identical ones.
+   *
+   * @param key
+   *   The text of the record
+   */
+  private void coalesce(@NonNull String key) {
+    while (true) {
+      AtomicInteger count = this.coalesced.get(key);
+      if (count == null) {
+        AtomicInteger newCount = new AtomicInteger();
+        count = this.coalesced.putIfAbsent(key, newCount);
+        if (count == null) {
+          count = newCount;
+        }
+      }
+      // A negative count was retired by the writer, it won't be read again.
+      int value;
+      do {
+        value = count.get();
+      } while ((value >= 0) && !count.compareAndSet(value, value + 1));
+      if (value >= 0) {
+        return;
+      }
+      this.coalesced.remove(key, count);
+    }
+  }
+
+  private void runWriter() {
+    this.segments.migrate(this.legacyLog);
+    this.lastFlush = System.nanoTime();
+    while (true) {
+      int drained = 0;
+      Record record;
+      while ((record = this.queue.poll()) != null) {
+        this.append(record.timestamp, record.filename + ": " + record.message);
+        drained++;
+      }
+      if (!this.coalesced.isEmpty()) {
+        Iterator<Map.Entry<String, AtomicInteger>> entries = this.coalesced.entrySet().iterator();
+        while (entries.hasNext()) {
+          Map.Entry<String, AtomicInteger> entry = entries.next();
+          AtomicInteger count = entry.getValue();
+          // The count is detached before it's written, the records counted since go in the next
+          // batch.
+          int value = count.getAndSet(0);
+          if (value > 0) {
+            this.append(System.currentTimeMillis(), entry.getKey() + " (x" + value + ")");
+          }
+          // The count is only retired if nothing was counted since it was detached.
+          if (count.compareAndSet(0, -1)) {
+            this.coalesced.remove(entry.getKey(), count);
+          }
+        }
+      }
+      this.writeBatch();
+      long now = System.nanoTime();
+      if (this.hasUnflushedData &&
+          ((now - this.lastFlush) >= TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MS))) {
+        this.flush();
+        this.lastFlush = now;
+      }
+      if (drained == 0) {
+        LockSupport.parkNanos(BATCH_DELAY_NS);
+      }
+    }
+  }
+
+  /**
+   * Formats a log line and adds it to the current batch.
+   */
+  private void append(long timestamp, @NonNull String text) {
+    String line = new Date(timestamp).toString() + " " + text + "\n";
+    if (BuildConfig.DEBUG) {
+      Log.d(TAG, line);
+    }
+    byte[] bytes = line.getBytes(UTF_8);
+    if (bytes.length > this.batch.remaining()) {
+      this.writeBatch();
+    }
+    if (bytes.length > this.batch.remaining()) {
+      this.write(ByteBuffer.wrap(bytes));
+    } else {
+      this.batch.put(bytes);
+    }
+  }
+
+  private void writeBatch() {
+    if (this.batch.position() > 0) {
+      this.batch.flip();
+      this.write(this.batch);
+      this.batch.clear();
+    }
+  }
+
+  private void write(@NonNull ByteBuffer bytes) {
+    try {
+      this.segments.write(bytes);
+      this.hasUnflushedData = true;
+    } catch (IOException e) {
+      // There's no one to report to, drop the batch and start over with a new channel.
+      e.printStackTrace();
+      bytes.position(bytes.limit());
+      this.segments.close();
+    }
+  }
+
+  private void flush() {
+    try {
+      this.segments.force();
+      this.hasUnflushedData = false;
+    } catch (IOException e) {
+      e.printStackTrace();
+      this.segments.close();
+    }
+  }
+
+  /**
+   * What to do with a record when the queue is full.
+   */
+  public enum OverflowPolicy {
+    /**
+     * Wait for the writer to make room in the queue.
+     */
+    BLOCK,
+    /**
+     * Drop the record.
+     */
+    DROP,
+    /**
+     * Count identical records and log each of them once, with its count, in the next batch.
+     */
+    COALESCE
+  }
+
+  private static final class Record {
+
+    final long timestamp;
+    final String filename;
+    final String message;
+
+    Record(long timestamp, String filename, String message) {
+      this.timestamp = timestamp;
+      this.filename = filename;
+      this.message = message;
+    }
+  }
+
+  /**
+   * A bounded lock-free multiple producers, single consumer queue. Each slot has a sequence number
+   * telling whether it's ready to be written or read for a given lap around the buffer.
+   */
+  private static final class RingBuffer {
+
+    private final int mask;
+    private final AtomicReferenceArray<Record> slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private long head = 0;
+
+    RingBuffer(int capacity) {
+      // Round the capacity up to a power of two so that indexes can be masked.
+      int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+      this.mask = size - 1;
+      this.slots = new AtomicReferenceArray<Record>(size);
+      this.sequences = new AtomicLongArray(size);
+      for (int i = 0; i < size; i++) {
+        this.sequences.set(i, i);
+      }
+    }
+
+    boolean offer(@NonNull Record record) {
+      long position;
+      int index;
+      while (true) {
+        position = this.tail.get();
+        index = (int) (position & this.mask);
+        long difference = this.sequences.get(index) - position;
+        if (difference == 0) {
+          if (this.tail.compareAndSet(position, position + 1)) {
+            break;
+          }
+        } else if (difference < 0) {
+          return false;
+        }
+      }
+      this.slots.set(index, record);
+      this.sequences.lazySet(index, position + 1);
+      return true;
+    }
+
+    /**
+     * Must only be called from the consumer thread.
+     */
+    Record poll() {
+      int index = (int) (this.head & this.mask);
+      if (this.sequences.get(index) != (this.head + 1)) {
+        return null;
+      }
+      Record record = this.slots.get(index);
+      this.slots.lazySet(index, null);
+      this.sequences.lazySet(index, this.head + this.mask + 1);
+      this.head++;
+      return record;
+    }
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * ParallelExecutor.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.utils;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An {@link Executor} that runs its commands on a pool of one thread per core. It is meant for
+ * processor bound work split in independent tasks, like scanning or decoding the chunks of a file,
+ * so that the tasks of every such job share the cores instead of competing for them.
+ * <p/>
+ * The tasks must never wait for one another, the pool being bounded. The threads are stopped
+ * once they have been idle for a while.
+ */
+public final class ParallelExecutor implements Executor {
+
+  private static final ParallelExecutor INSTANCE = new ParallelExecutor();
+  private final int parallelism = Runtime.getRuntime().availableProcessors();
+  private final ThreadPoolExecutor executor =
+    new ThreadPoolExecutor(this.parallelism, this.parallelism, 1, TimeUnit.SECONDS,
+                           new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(@NonNull Runnable r) {
+        Thread thread = new Thread(r, ParallelExecutor.class.getSimpleName() + "-" +
+                                      this.count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+  private ParallelExecutor() {
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * @return the shared parallel executor
+   */
+  public static ParallelExecutor getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @return the number of threads of the pool
+   */
+  public int getParallelism() {
+    return this.parallelism;
+  }
+
+  @Override
+  public void execute(@NonNull Runnable command) {
+    this.executor.execute(command);
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * ChangeTrackerTest.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.document;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChangeTrackerTest {
+
+  private static final String ORIGINAL = "The quick brown fox jumps over the lazy dog";
+
+  @Test
+  public void tracksNothingUntilChanged() {
+    ChangeTracker tracker = new ChangeTracker(ORIGINAL);
+    assertFalse(tracker.isModified());
+    assertEquals(-1, tracker.getFirstChange());
+    assertEquals(-1, tracker.getLastChange());
+    assertEquals(ORIGINAL.length(), tracker.length());
+  }
+
+  @Test
+  public void forgetsAnEditThatWasUndone() {
+    StringBuilder text = new StringBuilder(ORIGINAL);
+    ChangeTracker tracker = new ChangeTracker(ORIGINAL);
+    replace(tracker, text, 4, 4, "very ");
+    assertTrue(tracker.isModified());
+    assertEquals(4, tracker.getFirstChange());
+    assertEquals(9, tracker.getLastChange());
+    replace(tracker, text, 4, 9, "");
+    assertFalse(tracker.isModified());
+    assertEquals(-1, tracker.getFirstChange());
+  }
+
+  @Test
+  public void forgetsAReplacementWithTheSameChars() {
+    StringBuilder text = new StringBuilder(ORIGINAL);
+    ChangeTracker tracker = new ChangeTracker(ORIGINAL);
+    replace(tracker, text, 10, 15, "");
+    replace(tracker, text, 10, 10, "brown");
+    assertFalse(tracker.isModified());
+  }
+
+  @Test
+  public void keepsEditsFarApartSeparate() {
+    StringBuilder text = new StringBuilder(ORIGINAL);
+    ChangeTracker tracker = new ChangeTracker(ORIGINAL);
+    replace(tracker, text, 0, 3, "A");
+    replace(tracker, text, text.length() - 3, text.length(), "cat");
+    assertTrue(tracker.isModified());
+    assertEquals(0, tracker.getFirstChange());
+    assertEquals(text.length(), tracker.getLastChange());
+    // Undoing the first edit leaves the second one only.
+    replace(tracker, text, 0, 1, "The");
+    assertTrue(tracker.isModified());
+    assertEquals(text.length() - 3, tracker.getFirstChange());
+    replace(tracker, text, text.length() - 3, text.length(), "dog");
+    assertFalse(tracker.isModified());
+    assertEquals(ORIGINAL, text.toString());
+  }
+
+  @Test
+  public void boundsEveryChangedChar() {
+    StringBuilder text = new StringBuilder(ORIGINAL);
+    ChangeTracker tracker = new ChangeTracker(ORIGINAL);
+    replace(tracker, text, 20, 25, "leaps");
+    replace(tracker, text, 4, 9, "slow");
+    replace(tracker, text, 30, 30, "!");
+    int delta = text.length() - ORIGINAL.length();
+    for (int i = 0; i < tracker.getFirstChange(); i++) {
+      assertEquals(ORIGINAL.charAt(i), text.charAt(i));
+    }
+    for (int i = tracker.getLastChange(); i < text.length(); i++) {
+      assertEquals(ORIGINAL.charAt(i - delta), text.charAt(i));
+    }
+  }
+
+  private static void replace(ChangeTracker tracker,
+                              StringBuilder text,
+                              int start,
+                              int end,
+                              String replacement) {
+    text.replace(start, end, replacement);
+    tracker.onTextChanged(text, start, end - start, replacement.length());
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * CharsetDetectorTest.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.document;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CharsetDetectorTest {
+
+  @Test
+  public void detectsByteOrderMarks() {
+    assertDetected(CharsetDetector.UTF_8, 3, bytes(0xEF, 0xBB, 0xBF, 'a'));
+    assertDetected(CharsetDetector.UTF_16BE, 2, bytes(0xFE, 0xFF, 0, 'a'));
+    assertDetected(CharsetDetector.UTF_16LE, 2, bytes(0xFF, 0xFE, 'a', 0));
+  }
+
+  @Test
+  public void detectsUtf8() {
+    assertDetected(CharsetDetector.UTF_8, 0, bytes('a', 0xC3, 0xA9, 0xE2, 0x82, 0xAC));
+    // A char cut at the end of the sample of a longer file is still valid.
+    assertDetected(CharsetDetector.UTF_8, 0, true, bytes('a', 0xE2, 0x82));
+  }
+
+  @Test
+  public void rejectsInvalidUtf8() {
+    // An overlong form, a surrogate and a char cut by the end of the file.
+    assertDetected(CharsetDetector.ISO_8859_1, 0, bytes(0xC0, 0xAF));
+    assertDetected(CharsetDetector.ISO_8859_1, 0, bytes(0xED, 0xA0, 0xB0));
+    assertDetected(CharsetDetector.ISO_8859_1, 0, false, bytes('a', 0xE2, 0xA2));
+  }
+
+  @Test
+  public void detectsSingleByteCharsets() {
+    assertDetected(CharsetDetector.WINDOWS_1252, 0, bytes(0x93, 'a', 0x94));
+    assertDetected(CharsetDetector.ISO_8859_1, 0, bytes(0x93, 'a', 0x81));
+    assertDetected(CharsetDetector.ISO_8859_1, 0, bytes('a', 0xE9, 'b'));
+  }
+
+  @Test
+  public void fallsBackToSingleByteCharsets() {
+    assertEquals(CharsetDetector.WINDOWS_1252, CharsetDetector.getFallback(CharsetDetector.UTF_8));
+    assertEquals(CharsetDetector.ISO_8859_1,
+                 CharsetDetector.getFallback(CharsetDetector.WINDOWS_1252));
+    assertNull(CharsetDetector.getFallback(CharsetDetector.ISO_8859_1));
+    assertNull(CharsetDetector.getFallback(CharsetDetector.UTF_16LE));
+  }
+
+  private static void assertDetected(Charset charset,
+                                     int byteOrderMarkLength,
+                                     ByteBuffer sample) {
+    assertDetected(charset, byteOrderMarkLength, false, sample);
+  }
+
+  private static void assertDetected(Charset charset,
+                                     int byteOrderMarkLength,
+                                     boolean truncated,
+                                     ByteBuffer sample) {
+    CharsetDetector.Result result = CharsetDetector.detect(sample, truncated);
+    assertEquals(charset, result.getCharset());
+    assertEquals(byteOrderMarkLength, result.getByteOrderMarkLength());
+  }
+
+  private static ByteBuffer bytes(int... values) {
+    byte[] bytes = new byte[values.length];
+    for (int i = 0; i < values.length; i++) {
+      bytes[i] = (byte) values[i];
+    }
+    return ByteBuffer.wrap(bytes);
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * DocumentWriterTest.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.bleushan.laboratoire1.document;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class DocumentWriterTest {
+
+  private final BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+  private final Executor testThreadExecutor = new Executor() {
+    @Override
+    public void execute(Runnable command) {
+      DocumentWriterTest.this.tasks.add(command);
+    }
+  };
+  private File file;
+  private String content;
+
+  @Before
+  public void setUp() throws IOException {
+    this.file = File.createTempFile("DocumentWriterTest", ".txt");
+    // The tail spans a few shifted blocks, and a shift of a few bytes makes each block overlap
+    // where it's moved to.
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; text.length() < (3 * 1024 * 1024); i++) {
+      text.append("ligne ").append(i).append(" été\n");
+    }
+    this.content = text.toString();
+    try (FileOutputStream out = new FileOutputStream(this.file)) {
+      out.write(this.content.getBytes("UTF-8"));
+    }
+  }
+
+  @After
+  public void tearDown() {
+    if (!this.file.delete()) {
+      this.file.deleteOnExit();
+    }
+  }
+
+  @Test
+  public void shiftsTheTailWhenTheFileGrows() throws Exception {
+    this.assertSaves(100, 110, "€ grandit");
+  }
+
+  @Test
+  public void shiftsTheTailWhenTheFileShrinks() throws Exception {
+    this.assertSaves(100, 140, "é");
+  }
+
+  @Test
+  public void writesInPlaceWhenTheLengthMatches() throws Exception {
+    this.assertSaves(100, 103, "abc");
+  }
+
+  /**
+   * Replaces a range of the file text and saves it, then checks the file holds the new text.
+   */
+  private void assertSaves(int start, int end, String replacement) throws Exception {
+    try (FileInputStream in = new FileInputStream(this.file);
+         RandomAccessFile out = new RandomAccessFile(this.file, "rw")) {
+      MappedText text = this.load(in.getChannel());
+      PieceTable document = new PieceTable(text);
+      ChangeTracker changeTracker = new ChangeTracker(text);
+      document.replace(start, end, replacement, 0, replacement.length());
+      changeTracker.onTextChanged(document, start, end - start, replacement.length());
+      DocumentWriter writer = new DocumentWriter(document, changeTracker, text.getCharset(),
+                                                 this.file.getParentFile());
+      final long[] progress = new long[2];
+      writer.setListener(new DocumentWriter.Listener() {
+        @Override
+        public void onProgress(long bytesWritten, long bytesTotal) {
+          assertTrue(bytesWritten >= progress[0]);
+          progress[0] = bytesWritten;
+          progress[1] = bytesTotal;
+        }
+      });
+      writer.write(out.getChannel());
+      // The progress is counted in bytes until the end of the copy, not only while encoding.
+      assertEquals(progress[1], progress[0]);
+    }
+    String expected = this.content.substring(0, start) + replacement + this.content.substring(end);
+    byte[] bytes = Files.readAllBytes(this.file.toPath());
+    assertEquals(expected.getBytes("UTF-8").length, bytes.length);
+    assertTrue(Arrays.equals(expected.getBytes("UTF-8"), bytes));
+  }
+
+  private MappedText load(FileChannel channel) throws Exception {
+    final boolean[] finished = new boolean[1];
+    DocumentLoader loader = new DocumentLoader(channel, this.testThreadExecutor);
+    loader.load(new DocumentLoader.Callback() {
+      @Override
+      public void onDecodingStarted(Charset charset, long textOffset, boolean isRestart) {
+      }
+
+      @Override
+      public void onTextLoaded(CharSequence chunk) {
+      }
+
+      @Override
+      public void onLoadFinished(long byteCount, int charCount) {
+        finished[0] = true;
+      }
+
+      @Override
+      public void onLoadFailed(IOException e) {
+        throw new AssertionError(e);
+      }
+
+      @Override
+      public void onLoadCancelled() {
+        throw new AssertionError("cancelled");
+      }
+    });
+    while (!finished[0]) {
+      Runnable task = this.tasks.poll(10, TimeUnit.SECONDS);
+      assertNotNull("The document wasn't loaded in time", task);
+      task.run();
+    }
+    assertEquals(CharsetDetector.UTF_8, loader.getText().getCharset());
+    return loader.getText();
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * LineIndexTest.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.document;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class LineIndexTest {
+
+  /**
+   * The tasks posted to the test thread, which stands for the main thread.
+   */
+  private final BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+  private final Executor testThreadExecutor = new Executor() {
+    @Override
+    public void execute(Runnable command) {
+      LineIndexTest.this.tasks.add(command);
+    }
+  };
+  private File file;
+
+  @Before
+  public void setUp() throws IOException {
+    this.file = File.createTempFile("LineIndexTest", ".txt");
+  }
+
+  @After
+  public void tearDown() {
+    if (!this.file.delete()) {
+      this.file.deleteOnExit();
+    }
+  }
+
+  @Test
+  public void indexesEditedText() {
+    LineIndex index = new LineIndex("one\ntwo\nthree");
+    assertEquals(3, index.getLineCount());
+    assertEquals(8, index.getLineStart(2));
+    index.replace(3, 4, "\n\n", 0, 2);
+    assertEquals(4, index.getLineCount());
+    assertEquals(14, index.length());
+    assertEquals(3, index.getLineOf(9));
+    assertLinesEqual(new LineIndex("one\n\ntwo\nthree"), index);
+  }
+
+  @Test
+  public void buildMatchesUtf8Decoding() throws Exception {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; text.length() < (2 * LineIndex.CHUNK_SIZE); i++) {
+      text.append("ligne ").append(i).append(" été 😀\n");
+    }
+    this.write(text.toString().getBytes("UTF-8"));
+    this.assertBuildMatchesDecoding(CharsetDetector.UTF_8);
+  }
+
+  @Test
+  public void buildMatchesFallbackDecoding() throws Exception {
+    // The sample is valid UTF-8, the byte that isn't comes much later.
+    byte[] bytes = new byte[(3 * CharsetDetector.SAMPLE_SIZE) + 100];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) (((i % 50) == 49) ? '\n' : ('a' + (i % 26)));
+    }
+    bytes[bytes.length - 20] = (byte) 0xE9;
+    bytes[bytes.length - 10] = (byte) 0x93;
+    this.write(bytes);
+    this.assertBuildMatchesDecoding(CharsetDetector.WINDOWS_1252);
+  }
+
+  /**
+   * Loads the file like the document card does, building the index with the charset the loader
+   * decodes with, and checks the index against the one of the decoded text.
+   */
+  private void assertBuildMatchesDecoding(Charset expectedCharset) throws Exception {
+    try (FileInputStream in = new FileInputStream(this.file)) {
+      final FileChannel channel = in.getChannel();
+      final StringBuilder text = new StringBuilder();
+      final LineIndex[] index = new LineIndex[1];
+      final boolean[] finished = new boolean[1];
+      DocumentLoader loader = new DocumentLoader(channel, this.testThreadExecutor);
+      loader.load(new DocumentLoader.Callback() {
+        @Override
+        public void onDecodingStarted(Charset charset, long textOffset, boolean isRestart) {
+          text.setLength(0);
+          index[0] = LineIndex.build(channel, charset, textOffset,
+                                     LineIndexTest.this.testThreadExecutor);
+        }
+
+        @Override
+        public void onTextLoaded(CharSequence chunk) {
+          text.append(chunk);
+        }
+
+        @Override
+        public void onLoadFinished(long byteCount, int charCount) {
+          finished[0] = true;
+        }
+
+        @Override
+        public void onLoadFailed(IOException e) {
+          throw new AssertionError(e);
+        }
+
+        @Override
+        public void onLoadCancelled() {
+          throw new AssertionError("cancelled");
+        }
+      });
+      while (!finished[0] || (index[0] == null) || !index[0].isBuilt()) {
+        Runnable task = this.tasks.poll(10, TimeUnit.SECONDS);
+        assertNotNull("The document wasn't loaded and indexed in time", task);
+        task.run();
+      }
+      assertEquals(expectedCharset, loader.getText().getCharset());
+      assertEquals(text.length(), loader.getText().length());
+      assertLinesEqual(new LineIndex(text), index[0]);
+    }
+  }
+
+  private void write(byte[] bytes) throws IOException {
+    try (FileOutputStream out = new FileOutputStream(this.file)) {
+      out.write(bytes);
+    }
+  }
+
+  private static void assertLinesEqual(LineIndex expected, LineIndex actual) {
+    assertTrue(actual.isBuilt());
+    assertEquals(expected.length(), actual.length());
+    assertEquals(expected.getLineCount(), actual.getLineCount());
+    for (int i = 0; i < expected.getLineCount(); i++) {
+      assertEquals(expected.getLineStart(i), actual.getLineStart(i));
+    }
+  }
+}
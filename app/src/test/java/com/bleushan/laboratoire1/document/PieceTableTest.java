@@ -0,0 +1,83 @@
+/*
+ * PieceTableTest.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.document;
+
+import org.junit.Test;
+
+import java.nio.CharBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class PieceTableTest {
+
+  @Test
+  public void insertsAndDeletes() {
+    PieceTable table = new PieceTable("Hello world");
+    table.insert(5, ",");
+    table.insert(table.length(), "!");
+    table.delete(0, 1);
+    table.insert(0, "J");
+    assertEquals("Jello, world!", table.toString());
+    assertEquals("Hello world", table.getOriginal().toString());
+    assertEquals(3, table.getAddedLength());
+  }
+
+  @Test
+  public void insertsABufferSlice() {
+    PieceTable table = new PieceTable("");
+    CharBuffer chunk = CharBuffer.wrap("xxHello world".toCharArray()).subSequence(2, 13);
+    table.insert(0, chunk);
+    table.replace(5, 11, chunk, 5, 11);
+    assertEquals("Hello world", table.toString());
+  }
+
+  @Test
+  public void matchesAStringBuilder() {
+    Random random = new Random(42);
+    String original = "0123456789abcdefghijklmnopqrstuvwxyz";
+    PieceTable table = new PieceTable(original);
+    StringBuilder expected = new StringBuilder(original);
+    for (int i = 0; i < 2000; i++) {
+      int start = random.nextInt(expected.length() + 1);
+      int end = start + random.nextInt(Math.min(8, expected.length() - start) + 1);
+      String text = Integer.toString(random.nextInt(1000));
+      int textStart = random.nextInt(text.length() + 1);
+      table.replace(start, end, text, textStart, text.length());
+      expected.replace(start, end, text.substring(textStart));
+      assertEquals(expected.length(), table.length());
+    }
+    assertEquals(expected.toString(), table.toString());
+    int start = expected.length() / 3;
+    int end = (2 * expected.length()) / 3;
+    assertEquals(expected.substring(start, end), table.subSequence(start, end).toString());
+    char[] chars = new char[end - start];
+    table.getChars(start, end, chars, 0);
+    assertEquals(expected.substring(start, end), new String(chars));
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * MemoryUnitTest.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class MemoryUnitTest {
+
+  @Test
+  public void parsesDecimals() {
+    assertEquals(1536, MemoryUnit.parseBytes("1.5 KiB"));
+    assertEquals(1500, MemoryUnit.parseBytes("1.5kB"));
+    assertEquals(2, MemoryUnit.parseBytes("1.5"));
+  }
+
+  @Test
+  public void truncatesTheDecimalsPastThePrecision() {
+    // Only 3 decimals of a PiB fit in the fractional product.
+    assertEquals(9223370910954868965L, MemoryUnit.parseBytes("8191.99999 PiB"));
+  }
+
+  @Test
+  public void rejectsSizesTooLarge() {
+    try {
+      MemoryUnit.parseBytes("8192 PiB");
+      fail("8192 PiB doesn't fit in a long");
+    } catch (NumberFormatException e) {
+      // Expected.
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * LoadBenchmark.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.document;
+
+import com.bleushan.laboratoire1.utils.MemoryUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the ways of loading a document: the memory mapped and chunked decoding of
+ * {@link DocumentLoader}, with or without charset detection, and a plain streamed read into a
+ * single string.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LoadBenchmark {
+
+  @Param({"64", "1024", "16384"})
+  public int sizeInKilobytes;
+
+  @Param({"UTF-8", "ISO-8859-1", "UTF-16LE"})
+  public String charsetName;
+
+  private Charset charset;
+  private File file;
+
+  @Setup
+  public void setUp() throws IOException {
+    this.charset = Charset.forName(this.charsetName);
+    this.file = TextFiles.create(MemoryUnit.KILOBYTE.toByte(this.sizeInKilobytes), this.charset);
+  }
+
+  @TearDown
+  public void tearDown() {
+    if (!this.file.delete()) {
+      this.file.deleteOnExit();
+    }
+  }
+
+  @Benchmark
+  public int mapped() throws IOException {
+    try (RandomAccessFile file = new RandomAccessFile(this.file, "r")) {
+      return TextFiles.load(file.getChannel(), this.charset).length();
+    }
+  }
+
+  @Benchmark
+  public int mappedWithDetection() throws IOException {
+    try (RandomAccessFile file = new RandomAccessFile(this.file, "r")) {
+      return TextFiles.load(file.getChannel(), null).length();
+    }
+  }
+
+  @Benchmark
+  public int streamed() throws IOException {
+    StringBuilder text = new StringBuilder();
+    char[] chars = new char[DocumentLoader.CHUNK_SIZE];
+    try (Reader reader = new InputStreamReader(new FileInputStream(this.file), this.charset)) {
+      int count;
+      while ((count = reader.read(chars)) != -1) {
+        text.append(chars, 0, count);
+      }
+    }
+    return text.toString().length();
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * SaveBenchmark.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.document;
+
+import com.bleushan.laboratoire1.utils.MemoryUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the save encoding path of {@link DocumentWriter}.
+ * <p/>
+ * The source file is never written to: the document is saved to a copy of it, which the writer
+ * handles the same way as the file the document was loaded from. A same length edit is written in
+ * place, an insertion rewrites everything that follows it, and a new document is encoded in full.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SaveBenchmark {
+
+  @Param({"64", "1024", "16384"})
+  public int sizeInKilobytes;
+
+  @Param({"UTF-8", "ISO-8859-1", "UTF-16LE"})
+  public String charsetName;
+
+  private Charset charset;
+  private File source;
+  private File target;
+  private RandomAccessFile sourceFile;
+  private RandomAccessFile targetFile;
+  private MappedText text;
+  private String content;
+  private File tempDirectory;
+
+  @Setup
+  public void setUp() throws IOException {
+    this.charset = Charset.forName(this.charsetName);
+    this.source = TextFiles.create(MemoryUnit.KILOBYTE.toByte(this.sizeInKilobytes), this.charset);
+    this.target = File.createTempFile("benchmark", ".txt");
+    this.target.deleteOnExit();
+    this.tempDirectory = this.target.getParentFile();
+    this.sourceFile = new RandomAccessFile(this.source, "r");
+    this.targetFile = new RandomAccessFile(this.target, "rw");
+    FileChannel channel = this.sourceFile.getChannel();
+    channel.transferTo(0, channel.size(), this.targetFile.getChannel());
+    this.text = TextFiles.load(channel, this.charset);
+    this.content = this.text.toString();
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    this.sourceFile.close();
+    this.targetFile.close();
+    if (!this.source.delete()) {
+      this.source.deleteOnExit();
+    }
+    if (!this.target.delete()) {
+      this.target.deleteOnExit();
+    }
+  }
+
+  @Benchmark
+  public long sameLengthEdit() throws IOException {
+    // Replace an ASCII char, so that the edit encodes to as many bytes in every charset.
+    int middle = this.text.length() / 2;
+    while (this.text.charAt(middle) >= 0x80) {
+      middle++;
+    }
+    return this.save(this.text, middle, middle + 1, "x");
+  }
+
+  @Benchmark
+  public long insertion() throws IOException {
+    int middle = this.text.length() / 2;
+    return this.save(this.text, middle, middle, "x");
+  }
+
+  @Benchmark
+  public long newDocument() throws IOException {
+    return this.save(this.content, 0, 0, "");
+  }
+
+  /**
+   * Edits a document and saves it to the target file.
+   */
+  private long save(CharSequence original, int start, int end, String replacement)
+    throws IOException {
+    PieceTable document = new PieceTable(original);
+    ChangeTracker changeTracker = new ChangeTracker(original);
+    document.replace(start, end, replacement, 0, replacement.length());
+    changeTracker.onTextChanged(document, start, end - start, replacement.length());
+    DocumentWriter writer = new DocumentWriter(document, changeTracker, this.charset,
+                                               this.tempDirectory);
+    return writer.write(this.targetFile.getChannel());
+  }
+}
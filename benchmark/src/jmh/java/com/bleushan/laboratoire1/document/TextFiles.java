@@ -0,0 +1,134 @@
+/*
+ * TextFiles.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.document;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/**
+ * Helpers shared by the document benchmarks.
+ */
+final class TextFiles {
+
+  /**
+   * Runs the loader callbacks on the loading thread.
+   */
+  static final Executor DIRECT_EXECUTOR = new Executor() {
+    @Override
+    public void execute(@NonNull Runnable command) {
+      command.run();
+    }
+  };
+  /**
+   * A line of French prose, so that the multi byte charsets have accented chars to encode.
+   */
+  private static final String LINE =
+    "Les élèves révisent leurs leçons à la bibliothèque, où règne un calme studieux.\n";
+
+  private TextFiles() {
+  }
+
+  /**
+   * Creates a temporary text file.
+   *
+   * @param size
+   *   The size of the file, in bytes. The file is slightly bigger, since it ends with a whole line.
+   * @param charset
+   *   The charset the file is encoded with
+   *
+   * @return the file, it's deleted when the virtual machine exits
+   */
+  static File create(long size, @NonNull Charset charset) throws IOException {
+    File file = File.createTempFile("benchmark", ".txt");
+    file.deleteOnExit();
+    long lineSize = LINE.getBytes(charset).length;
+    try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), charset)) {
+      for (long written = 0; written < size; written += lineSize) {
+        writer.write(LINE);
+      }
+    }
+    return file;
+  }
+
+  /**
+   * Loads a document and waits for it to be decoded.
+   *
+   * @return the loaded text
+   */
+  static MappedText load(@NonNull FileChannel channel, Charset charset) throws IOException {
+    final CountDownLatch done = new CountDownLatch(1);
+    final IOException[] failure = new IOException[1];
+    DocumentLoader loader = (charset != null) ?
+                            new DocumentLoader(channel, charset, DIRECT_EXECUTOR) :
+                            new DocumentLoader(channel, DIRECT_EXECUTOR);
+    loader.load(new DocumentLoader.Callback() {
+      @Override
+      public void onTextLoaded(@NonNull CharSequence text) {
+      }
+
+      @Override
+      public void onDecodingStarted(@NonNull Charset charset, long textOffset, boolean isRestart) {
+      }
+
+      @Override
+      public void onLoadFinished(long byteCount, int charCount) {
+        done.countDown();
+      }
+
+      @Override
+      public void onLoadFailed(@NonNull IOException e) {
+        failure[0] = e;
+        done.countDown();
+      }
+
+      @Override
+      public void onLoadCancelled() {
+        done.countDown();
+      }
+    });
+    try {
+      done.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    }
+    if (failure[0] != null) {
+      throw failure[0];
+    }
+    return loader.getText();
+  }
+}
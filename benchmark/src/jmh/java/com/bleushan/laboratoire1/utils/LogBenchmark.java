@@ -0,0 +1,134 @@
+/*
+ * LogBenchmark.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the writer side of the {@link OperationLog}, the part of the writeLog path that does
+ * the I/O: formatting the records of a batch, encoding them and appending the batch to the log
+ * segments. The segments are set up like the ones of the operation log.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LogBenchmark {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /**
+   * The number of records written in a batch.
+   */
+  @Param({"1", "16", "256"})
+  public int batchSize;
+
+  /**
+   * The length of the name of the logged file.
+   */
+  @Param({"16", "255"})
+  public int filenameLength;
+
+  private final ByteBuffer batch = ByteBuffer.allocate((int) MemoryUnit.KILOBYTE.toByte(64));
+  private File directory;
+  private LogSegments segments;
+  private String filename;
+
+  @Setup
+  public void setUp() throws IOException {
+    File temp = File.createTempFile("benchmark", "");
+    if (!temp.delete() || !temp.mkdir()) {
+      throw new IOException("Unable to create " + temp);
+    }
+    this.directory = temp;
+    this.segments = new LogSegments(this.directory, MemoryUnit.MEGABYTE.toByte(1),
+                                    TimeUnit.DAYS.toMillis(1), 8);
+    StringBuilder filename = new StringBuilder(this.filenameLength);
+    while (filename.length() < this.filenameLength) {
+      filename.append('é');
+    }
+    this.filename = filename.toString();
+  }
+
+  @TearDown
+  public void tearDown() {
+    this.segments.close();
+    File[] files = this.directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (!file.delete()) {
+          file.deleteOnExit();
+        }
+      }
+    }
+    if (!this.directory.delete()) {
+      this.directory.deleteOnExit();
+    }
+  }
+
+  @Benchmark
+  public void writeBatch() throws IOException {
+    for (int i = 0; i < this.batchSize; i++) {
+      // Formatted the way the operation log formats its records.
+      String line = new Date(System.currentTimeMillis()).toString() + " " + this.filename + ": " +
+                    "File saved" + "\n";
+      byte[] bytes = line.getBytes(UTF_8);
+      if (bytes.length > this.batch.remaining()) {
+        this.flushBatch();
+      }
+      this.batch.put(bytes);
+    }
+    this.flushBatch();
+  }
+
+  @Benchmark
+  public void writeBatchAndForce() throws IOException {
+    this.writeBatch();
+    this.segments.force();
+  }
+
+  private void flushBatch() throws IOException {
+    this.batch.flip();
+    this.segments.write(this.batch);
+    this.batch.clear();
+  }
+}
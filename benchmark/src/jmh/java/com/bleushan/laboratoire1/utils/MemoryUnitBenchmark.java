@@ -0,0 +1,157 @@
+/*
+ * MemoryUnitBenchmark.java
+ * Laboratoire1
+ *
+ * Copyright (c) 2015. Philippe Lafontaine
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.bleushan.laboratoire1.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.math.RoundingMode;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks {@link MemoryUnit} conversions between every pair of units.
+ * <p/>
+ * The sizes include {@link Long#MAX_VALUE} and {@link Long#MIN_VALUE}, which take the saturation
+ * path of the conversions to a smaller unit.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MemoryUnitBenchmark {
+
+  private static final MemoryUnit[] UNITS = MemoryUnit.values();
+
+  @Param({"BIT", "BYTE", "KILOBYTE", "MEGABYTE", "GIGABYTE", "TERABYTE", "PETABYTE",
+          "SI_KILOBYTE", "SI_MEGABYTE", "SI_GIGABYTE", "SI_TERABYTE", "SI_PETABYTE"})
+  public String source;
+
+  @Param({"BIT", "BYTE", "KILOBYTE", "MEGABYTE", "GIGABYTE", "TERABYTE", "PETABYTE",
+          "SI_KILOBYTE", "SI_MEGABYTE", "SI_GIGABYTE", "SI_TERABYTE", "SI_PETABYTE"})
+  public String target;
+
+  @Param({"4096", "9223372036854775807", "-9223372036854775808"})
+  public long size;
+
+  private MemoryUnit sourceUnit;
+  private MemoryUnit targetUnit;
+
+  @Setup
+  public void setUp() {
+    this.sourceUnit = MemoryUnit.valueOf(this.source);
+    this.targetUnit = MemoryUnit.valueOf(this.target);
+  }
+
+  /**
+   * A single conversion. The call site only ever sees one pair of units, so it measures the best
+   * case, once the JIT has specialized it.
+   */
+  @Benchmark
+  public long convert() {
+    return this.targetUnit.convert(this.size, this.sourceUnit);
+  }
+
+  @Benchmark
+  public long convertRounded() {
+    return this.targetUnit.convert(this.size, this.sourceUnit, RoundingMode.HALF_EVEN);
+  }
+
+  @Benchmark
+  public double convertFractional() {
+    return this.targetUnit.convert((double) this.size, this.sourceUnit);
+  }
+
+  /**
+   * Converts between every pair of units from the same call site, the way the application does.
+   */
+  @State(Scope.Thread)
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public static class AllPairs {
+
+    @Param({"4096", "9223372036854775807", "-9223372036854775808"})
+    public long size;
+
+    @Benchmark
+    @OperationsPerInvocation(144)
+    public void convert(Blackhole blackhole) {
+      for (MemoryUnit targetUnit : UNITS) {
+        for (MemoryUnit sourceUnit : UNITS) {
+          blackhole.consume(targetUnit.convert(this.size, sourceUnit));
+        }
+      }
+    }
+  }
+
+  /**
+   * Formats and parses sizes in both families of units.
+   */
+  @State(Scope.Thread)
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public static class Formatting {
+
+    @Param({"512", "1572864", "9223372036854775807"})
+    public long size;
+
+    @Param({"false", "true"})
+    public boolean si;
+
+    private final StringBuilder builder = new StringBuilder(MemoryUnit.MAX_FORMATTED_LENGTH);
+    private final char[] chars = new char[MemoryUnit.MAX_FORMATTED_LENGTH];
+    private String formatted;
+
+    @Setup
+    public void setUp() {
+      this.formatted = MemoryUnit.formatBytes(this.size, this.si, new StringBuilder()).toString();
+    }
+
+    @Benchmark
+    public int formatToBuilder() {
+      this.builder.setLength(0);
+      return MemoryUnit.formatBytes(this.size, this.si, this.builder).length();
+    }
+
+    @Benchmark
+    public int formatToArray() {
+      return MemoryUnit.formatBytes(this.size, this.si, this.chars, 0);
+    }
+
+    @Benchmark
+    public long parse() {
+      return MemoryUnit.parseBytes(this.formatted);
+    }
+  }
+}